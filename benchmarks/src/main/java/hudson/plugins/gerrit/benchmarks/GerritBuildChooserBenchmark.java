@@ -0,0 +1,97 @@
+package hudson.plugins.gerrit.benchmarks;
+
+import hudson.plugins.gerrit.buildchoosers.GerritBuildChooser;
+import hudson.plugins.git.IGitAPI;
+import hudson.plugins.git.Revision;
+import hudson.plugins.git.util.BuildData;
+import org.openjdk.jmh.annotations.*;
+import org.spearce.jgit.lib.ObjectId;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link GerritBuildChooser#getCandidateRevisions} over synthetic git log output.
+ *
+ * The log has the given number of commits, roughly newest first like real git log output.
+ * The last built commit sits at the given depth: 0 is the newest commit, 1 the oldest.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GerritBuildChooserBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int commits;
+
+    @Param({"0.0", "0.01", "0.5", "1.0"})
+    public double depth;
+
+    private GerritBuildChooser chooser;
+    private IGitAPI git;
+    private BuildData data;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(commits);
+        StringBuilder log = new StringBuilder(commits * 55);
+        long time = 1277906400L + commits;
+        String last = null;
+        int lastIndex = (int) Math.round(depth * (commits - 1));
+        for (int i = 0; i < commits; i++) {
+            String sha = randomSha(random);
+            if (i == lastIndex) {
+                last = sha;
+            }
+            // Mostly descending, with some equal times like commits pushed together
+            time -= random.nextInt(3);
+            log.append('\'').append(sha).append('#').append(time).append('\'');
+            if (i < commits - 1) {
+                log.append('\n');
+            }
+        }
+        final String output = log.toString();
+        git = (IGitAPI) Proxy.newProxyInstance(IGitAPI.class.getClassLoader(), new Class[]{IGitAPI.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getAllLogEntries")) {
+                            return output;
+                        }
+                        return null;
+                    }
+                });
+        final Revision lastBuilt = new Revision(ObjectId.fromString(last));
+        data = new BuildData() {
+            @Override
+            public Revision getLastBuiltRevision() {
+                return lastBuilt;
+            }
+        };
+        chooser = new GerritBuildChooser();
+    }
+
+    private static String randomSha(Random random) {
+        StringBuilder sb = new StringBuilder(40);
+        for (int i = 0; i < 40; i++) {
+            sb.append(Character.forDigit(random.nextInt(16), 16));
+        }
+        return sb.toString();
+    }
+
+    @Benchmark
+    public Collection<Revision> pollCall() throws Exception {
+        return chooser.getCandidateRevisions(true, "refs/changes/*", git, null, data);
+    }
+
+    @Benchmark
+    public Collection<Revision> buildCall() throws Exception {
+        return chooser.getCandidateRevisions(false, "refs/changes/*", git, null, data);
+    }
+}
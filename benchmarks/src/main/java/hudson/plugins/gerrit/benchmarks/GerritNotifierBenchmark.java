@@ -0,0 +1,49 @@
+package hudson.plugins.gerrit.benchmarks;
+
+import hudson.plugins.gerrit.GerritNotifier;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command generation in {@link GerritNotifier}, run for every finished build.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GerritNotifierBenchmark {
+
+    private static final String URL = "http://hudson.example.com/job/gerrit-verify/1234/";
+    private static final String REVISION = "1234567890123456789012345678901234567890";
+
+    private GerritNotifier notifier;
+
+    @Setup
+    public void setUp() {
+        notifier = new GerritNotifier(".git", "gerrit.example.com", 29418, "hudson", "+1", "-1", "-1",
+                "/home/hudson/.ssh/id_rsa", "");
+    }
+
+    @Benchmark
+    public String approve() {
+        return notifier.generateApproveCommand(URL, REVISION);
+    }
+
+    @Benchmark
+    public String unstable() {
+        return notifier.generateUnstableCommand(URL, REVISION);
+    }
+
+    @Benchmark
+    public String failed() {
+        return notifier.generateFailedCommand(URL, REVISION);
+    }
+
+    @Benchmark
+    public String didNotFinish() {
+        return notifier.generateDidNotFinishCommand(URL, REVISION);
+    }
+}
@@ -0,0 +1,81 @@
+package hudson.plugins.gerrit.benchmarks;
+
+import hudson.plugins.gerrit.git.GitTools;
+import org.eclipse.jgit.lib.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link GitTools#getHead(File, String)} against a repository on disk.
+ *
+ * Uses the work tree given with -Dgerrit.benchmark.workspace=/path/to/checkout if set,
+ * otherwise creates a small repository in a temporary directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GitToolsBenchmark {
+
+    @Param({"10", "1000"})
+    public int refs;
+
+    private File workspace;
+    private GitTools git;
+
+    @Setup
+    public void setUp() throws IOException {
+        git = new GitTools();
+        String path = System.getProperty("gerrit.benchmark.workspace");
+        if (path != null) {
+            workspace = new File(path);
+            return;
+        }
+        workspace = File.createTempFile("gerrit-benchmark", "");
+        if (!workspace.delete() || !workspace.mkdirs()) {
+            throw new IOException("Failed to create " + workspace);
+        }
+        Repository repo = new Repository(new File(workspace, ".git"));
+        repo.create();
+        ObjectId parent = null;
+        for (int i = 0; i < refs; i++) {
+            parent = commit(repo, parent, i);
+            RefUpdate update = repo.updateRef("refs/changes/" + (i % 100) + "/" + i + "/1");
+            update.setNewObjectId(parent);
+            update.forceUpdate();
+        }
+        RefUpdate head = repo.updateRef(Constants.HEAD);
+        head.setNewObjectId(parent);
+        head.forceUpdate();
+        repo.close();
+    }
+
+    private static ObjectId commit(Repository repo, ObjectId parent, int i) throws IOException {
+        Tree tree = new Tree(repo);
+        tree.setId(new ObjectWriter(repo).writeTree(tree));
+        PersonIdent ident = new PersonIdent("Benchmark", "benchmark@example.com",
+                new Date(1277906400000L + i * 1000L), TimeZone.getTimeZone("UTC"));
+        Commit commit = new Commit(repo);
+        commit.setAuthor(ident);
+        commit.setCommitter(ident);
+        commit.setTree(tree);
+        commit.setMessage("commit " + i);
+        if (parent != null) {
+            commit.setParentIds(new ObjectId[]{parent});
+        }
+        commit.commit();
+        return commit.getCommitId();
+    }
+
+    @Benchmark
+    public ObjectId getHead() {
+        return git.getHead(workspace, ".git");
+    }
+}
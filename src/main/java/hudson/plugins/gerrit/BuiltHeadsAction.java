@@ -0,0 +1,31 @@
+package hudson.plugins.gerrit;
+
+import hudson.model.InvisibleAction;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers HEAD of every repository a build was voted for, so that the next build only votes
+ * on the repositories that changed.
+ */
+public class BuiltHeadsAction extends InvisibleAction {
+
+    /* HEAD by git home. */
+    private final LinkedHashMap<String, String> heads;
+
+    public BuiltHeadsAction(Map<String, String> heads) {
+        this.heads = new LinkedHashMap<String, String>(heads);
+    }
+
+    /**
+     * HEAD of the repository in gitHome, null if it wasn't built.
+     */
+    public String getHead(String gitHome) {
+        return heads.get(gitHome);
+    }
+
+    public Map<String, String> getHeads() {
+        return heads;
+    }
+}
@@ -0,0 +1,202 @@
+package hudson.plugins.gerrit;
+
+import hudson.FilePath.FileCallable;
+import hudson.plugins.gerrit.git.RepositoryCache;
+import hudson.plugins.gerrit.notification.ReviewInput;
+import hudson.plugins.gerrit.notification.Verification;
+import hudson.remoting.VirtualChannel;
+import hudson.tasks.junit.CaseResult;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Turns a verification and the failed tests of its build into a review for
+ * <tt>gerrit review --json</tt>: the vote, the failures listed in the message and a comment
+ * on the line of every test that failed.
+ *
+ * The line is taken from the first frame of the test's own class in its stack trace. That gives
+ * the file relative to a source root, which is looked for under the usual source roots of the
+ * repository. Gerrit rejects a review that comments on a file the revision didn't change, so
+ * only files of the revision's own diff get comments.
+ */
+class FailureReview {
+
+    static final String LABEL = "Verified";
+    /** Source roots tried in order, relative to the repository. */
+    static final String[] SOURCE_ROOTS = {"src/test/java/", "src/main/java/", "test/", "src/", ""};
+    /** At most this many files are looked for in the workspace. */
+    static final int MAX_LOCATED_FILES = 200;
+
+    private static final Pattern FRAME = Pattern.compile("^\\s*at ([\\w$.]+)\\.[\\w$<>]+\\(([\\w$]+\\.java):(\\d+)\\)",
+            Pattern.MULTILINE);
+
+    /**
+     * Where a test failed: file relative to its source root and line.
+     */
+    static final class Location {
+        final String path;
+        final int line;
+
+        Location(String path, int line) {
+            this.path = path;
+            this.line = line;
+        }
+    }
+
+    private FailureReview() {
+    }
+
+    /**
+     * Finds the innermost frame of className, or one of its nested classes, in stackTrace.
+     * Null if the trace doesn't go through the class.
+     */
+    static Location locate(String className, String stackTrace) {
+        if (className == null || stackTrace == null) {
+            return null;
+        }
+        Matcher m = FRAME.matcher(stackTrace);
+        while (m.find()) {
+            String frameClass = m.group(1);
+            if (frameClass.equals(className) || frameClass.startsWith(className + "$")) {
+                int dot = className.lastIndexOf('.');
+                String dir = dot < 0 ? "" : className.substring(0, dot).replace('.', '/') + "/";
+                return new Location(dir + m.group(2), Integer.parseInt(m.group(3)));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Files of the failed tests relative to their source roots, at most {@link #MAX_LOCATED_FILES}.
+     */
+    static ArrayList<String> sourcePaths(List<CaseResult> failed) {
+        LinkedHashSet<String> paths = new LinkedHashSet<String>();
+        for (CaseResult test : failed) {
+            if (paths.size() >= MAX_LOCATED_FILES) {
+                break;
+            }
+            Location location = locate(test.getClassName(), test.getErrorStackTrace());
+            if (location != null) {
+                paths.add(location.path);
+            }
+        }
+        return new ArrayList<String>(paths);
+    }
+
+    /**
+     * Review carrying verification's vote on the label Verified, null if its verdict isn't a number.
+     *
+     * @param sources repository paths of the files named by {@link #sourcePaths} that the revision
+     *                changed, failures in other files are only listed in the message
+     */
+    static ReviewInput create(Verification verification, List<CaseResult> failed, Map<String, String> sources) {
+        int value;
+        try {
+            String verified = verification.getVerified().trim();
+            value = Integer.parseInt(verified.startsWith("+") ? verified.substring(1) : verified);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        ReviewInput review = new ReviewInput(verification.getMessage(), LABEL, value);
+        for (CaseResult test : failed) {
+            review.addFailure(test.getFullName());
+            Location location = locate(test.getClassName(), test.getErrorStackTrace());
+            String path = location == null ? null : sources.get(location.path);
+            if (path != null) {
+                String details = test.getErrorDetails();
+                review.addComment(path, location.line,
+                        details == null ? test.getFullName() + " failed" : test.getFullName() + ": " + details);
+            }
+        }
+        return review;
+    }
+
+    /**
+     * Repository paths of the files revision changed compared to its first parent.
+     */
+    static Set<String> changedPaths(File gitDir, final String revision) throws IOException {
+        return RepositoryCache.getInstance().withRepository(gitDir, new RepositoryCache.RepositoryCallable<Set<String>>() {
+            public Set<String> invoke(Repository repo) throws IOException {
+                RevWalk walk = new RevWalk(repo);
+                try {
+                    RevCommit commit = walk.parseCommit(ObjectId.fromString(revision));
+                    TreeWalk tree = new TreeWalk(repo);
+                    tree.setRecursive(true);
+                    if (commit.getParents().length == 0) {
+                        tree.addTree(new EmptyTreeIterator());
+                    } else {
+                        tree.addTree(walk.parseCommit(commit.getParents()[0]).getTree());
+                    }
+                    tree.addTree(commit.getTree());
+                    tree.setFilter(TreeFilter.ANY_DIFF);
+                    Set<String> changed = new HashSet<String>();
+                    while (tree.next()) {
+                        changed.add(tree.getPathString());
+                    }
+                    return changed;
+                } finally {
+                    walk.dispose();
+                }
+            }
+        });
+    }
+
+    /**
+     * Looks up files relative to a source root in the repository of a git home, on the node that
+     * has the workspace. Returns the repository paths of the files found that revision changed.
+     */
+    static class SourceLocator implements FileCallable<HashMap<String, String>> {
+        private final String gitHome;
+        private final String revision;
+        private final ArrayList<String> paths;
+
+        SourceLocator(String gitHome, String revision, ArrayList<String> paths) {
+            this.gitHome = gitHome;
+            this.revision = revision;
+            this.paths = paths;
+        }
+
+        public HashMap<String, String> invoke(File workspace, VirtualChannel channel) throws IOException {
+            File gitDir = new File(workspace, gitHome);
+            File repository = gitDir.getParentFile();
+            if (repository == null || revision == null) {
+                return new HashMap<String, String>();
+            }
+            return findSources(repository, changedPaths(gitDir, revision), paths);
+        }
+    }
+
+    /**
+     * Repository paths of the files that are named by paths relative to a source root, exist in
+     * repository and are among changed.
+     */
+    static HashMap<String, String> findSources(File repository, Set<String> changed, List<String> paths) {
+        HashMap<String, String> found = new HashMap<String, String>();
+        for (String path : paths) {
+            for (String root : SOURCE_ROOTS) {
+                if (changed.contains(root + path) && new File(repository, root + path).isFile()) {
+                    found.put(path, root + path);
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+}
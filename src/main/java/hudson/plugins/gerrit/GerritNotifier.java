@@ -1,6 +1,15 @@
 package hudson.plugins.gerrit;
 
 import hudson.plugins.gerrit.git.GitTools;
+import hudson.plugins.gerrit.notification.ApproveBatcher;
+import hudson.plugins.gerrit.notification.Delivery;
+import hudson.plugins.gerrit.notification.DeliveryListener;
+import hudson.plugins.gerrit.notification.NotificationDispatcher;
+import hudson.plugins.gerrit.notification.Outbox;
+import hudson.plugins.gerrit.notification.ReviewInput;
+import hudson.plugins.gerrit.notification.SendScheduler;
+import hudson.plugins.gerrit.notification.Verification;
+import hudson.plugins.gerrit.ssh.SSHConnectionPool;
 import hudson.plugins.gerrit.ssh.SSHMarker;
 import hudson.EnvVars;
 import hudson.Extension;
@@ -11,18 +20,38 @@ import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
 import hudson.model.Result;
+import hudson.plugins.git.util.BuildData;
 import hudson.remoting.VirtualChannel;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Notifier;
 import hudson.tasks.Publisher;
+import hudson.tasks.junit.CaseResult;
+import hudson.tasks.test.AbstractTestResultAction;
 import hudson.util.FormValidation;
+import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  *
@@ -39,16 +68,31 @@ public class GerritNotifier extends Notifier implements Serializable {
     private final String unstable_value;
     private final String reject_value;
     private final String gerrit_approve_command = "gerrit approve --verified=%s --message=\"%s\" %s";
+    private final String gerrit_review_command = "gerrit review --json %3$s";
     protected static final String NO_BUILD_URL = "No build url.";
+    static final String DEFAULT_GIT_HOME = ".git";
+    /** At most this many repositories are read at the same time. */
+    static final int MAX_PARALLEL_HEADS = 8;
+    private static final Logger logger = Logger.getLogger(GerritNotifier.class.getName());
     private final String private_key_file_path;
     private final String passPhrase;
 
-    transient SSHMarker marker;
+    transient ApproveBatcher batcher;
+    transient NotificationDispatcher dispatcher;
     transient GitTools git;
 
 
-    public void setMarker(SSHMarker marker) {
-        this.marker = marker;
+    /**
+     * Uses given marker for every connection instead of the shared connection pool.
+     */
+    public void setMarker(final SSHMarker marker) {
+        this.batcher = new ApproveBatcher(new SSHConnectionPool() {
+            @Override
+            protected SSHMarker newMarker() {
+                return marker;
+            }
+        });
+        this.dispatcher = new NotificationDispatcher(batcher);
     }
 
     public void setGitTools(GitTools git) {
@@ -82,6 +126,10 @@ public class GerritNotifier extends Notifier implements Serializable {
         return gerrit_approve_command;
     }
 
+    public String getGerrit_review_command() {
+        return gerrit_review_command;
+    }
+
     public String getPrivate_key_file_path() {
         return private_key_file_path;
     }
@@ -105,7 +153,6 @@ public class GerritNotifier extends Notifier implements Serializable {
         this.reject_value = reject_value;
         this.private_key_file_path = private_key_file_path;
         this.passPhrase = passPhrase;
-        this.marker = new SSHMarker();
         this.git = new GitTools();
 
     }
@@ -114,80 +161,255 @@ public class GerritNotifier extends Notifier implements Serializable {
         return git_home;
     }
 
+    /**
+     * Repositories whose HEAD is voted on: git home is a comma separated list of paths
+     * relative to the workspace, .git if empty.
+     */
+    public List<String> getGitHomes() {
+        List<String> homes = new ArrayList<String>();
+        if (git_home != null) {
+            for (String home : git_home.split(",")) {
+                home = home.trim();
+                if (home.length() > 0 && !homes.contains(home)) {
+                    homes.add(home);
+                }
+            }
+        }
+        if (homes.isEmpty()) {
+            homes.add(DEFAULT_GIT_HOME);
+        }
+        return homes;
+    }
+
 
     public String generateComment(String verify_value, String message, String revision) {
         return String.format(gerrit_approve_command, verify_value, message, revision);
     }
 
     public String generateApproveCommand(final String jobUrl, final String revision) {
-        return generateComment(approve_value, jobUrl, revision);
+        return createApproveVerification(jobUrl, revision).toCommand();
     }
 
     public String generateUnstableCommand(final String jobUrl, final String revision) {
-        return generateComment(unstable_value, "Build is unstable " + jobUrl, revision);
+        return createUnstableVerification(jobUrl, revision).toCommand();
     }
 
     public String generateFailedCommand(final String jobUrl, final String revision) {
-        return generateComment(reject_value, "Build failed " + jobUrl, revision);
+        return createFailedVerification(jobUrl, revision).toCommand();
     }
 
     public String generateDidNotFinishCommand(final String jobUrl, final String revision) {
-        return generateComment("0", "Build did not finish, " + jobUrl, revision);
+        return createDidNotFinishVerification(jobUrl, revision).toCommand();
     }
 
-    private void verifyGerrit(String message)
-            throws IOException, InterruptedException {
+    /**
+     * The job URL is kept out of the message proper, so votes of different builds can share a command.
+     */
+    Verification createVerification(String verify_value, String message, String jobUrl, String revision,
+                                     Verification.Priority priority) {
+        return new Verification(getConnectionKey(), gerrit_approve_command, verify_value, message, revision,
+                priority, "").withLink(jobUrl);
+    }
 
-        File privateKeyFile = new File(private_key_file_path);
-        marker.connect(gerrit_host, gerrit_port);
-        marker.authenticate(gerrit_username, privateKeyFile, passPhrase);
-        marker.executeCommand(message);
-        marker.disconnect();
+    Verification createApproveVerification(final String jobUrl, final String revision) {
+        return createVerification(approve_value, "", jobUrl, revision, Verification.Priority.NORMAL);
     }
 
+    Verification createUnstableVerification(final String jobUrl, final String revision) {
+        return createVerification(unstable_value, "Build is unstable ", jobUrl, revision, Verification.Priority.HIGH);
+    }
 
-    @Override
-    public boolean perform(final AbstractBuild build, Launcher launcher, final BuildListener listener)
-            throws IOException, InterruptedException {
+    Verification createFailedVerification(final String jobUrl, final String revision) {
+        return createVerification(reject_value, "Build failed ", jobUrl, revision, Verification.Priority.HIGH);
+    }
 
-        FilePath ws = build.getWorkspace();
+    /**
+     * Verification of revision for a build that ended with result r.
+     */
+    Verification createVerification(Result r, final String jobUrl, final String revision) {
+        if (r == Result.ABORTED || r == Result.NOT_BUILT) {
+            return createDidNotFinishVerification(jobUrl, revision);
+        } else if (r.isBetterOrEqualTo(Result.SUCCESS)) {
+            return createApproveVerification(jobUrl, revision);
+        } else if (r.isBetterOrEqualTo(Result.UNSTABLE)) {
+            return createUnstableVerification(jobUrl, revision);
+        }
+        return createFailedVerification(jobUrl, revision);
+    }
+
+    Verification createDidNotFinishVerification(final String jobUrl, final String revision) {
+        return createVerification("0", "Build did not finish, ", jobUrl, revision, Verification.Priority.HIGH);
+    }
+
+    public SSHConnectionPool.Key getConnectionKey() {
+        return new SSHConnectionPool.Key(gerrit_host, gerrit_port, gerrit_username,
+                new File(private_key_file_path), passPhrase);
+    }
+
+    boolean isAsynchronous() {
+        return getDescriptor().isAsync_notification();
+    }
+
+    boolean isReviewJson() {
+        return getDescriptor().isReview_json();
+    }
 
-        //Hacky
-        if (marker == null) {
-            marker = new SSHMarker();
+    /**
+     * Replaces every verification by one that sends a JSON review with the failed tests of build.
+     * Failures get a comment on their line only if the job builds a single repository, since the
+     * review names files relative to it, and only in files the revision changed. Verifications whose
+     * verdict isn't a number are kept.
+     */
+    List<Verification> toReviews(AbstractBuild<?, ?> build, List<Verification> verifications)
+            throws IOException, InterruptedException {
+        List<CaseResult> failed = Collections.emptyList();
+        AbstractTestResultAction<?> tests = build.getTestResultAction();
+        if (tests != null && tests.getFailedTests() != null) {
+            failed = tests.getFailedTests();
+        }
+        List<String> homes = getGitHomes();
+        FilePath ws = build.getWorkspace();
+        ArrayList<String> paths = new ArrayList<String>();
+        if (!failed.isEmpty() && homes.size() == 1 && ws != null) {
+            paths = FailureReview.sourcePaths(failed);
         }
-        String head = ws.act(new FileCallable<String>() {
-            // if 'file' is on a different node, this FileCallable will
-            // be transferred to that node and executed there.
+        Map<String, Map<String, String>> sourcesOf = new HashMap<String, Map<String, String>>();
+        List<Verification> reviews = new ArrayList<Verification>();
+        for (Verification verification : verifications) {
+            Map<String, String> sources = sourcesOf.get(verification.getRevision());
+            if (sources == null) {
+                sources = Collections.emptyMap();
+                if (!paths.isEmpty()) {
+                    try {
+                        sources = ws.act(new FailureReview.SourceLocator(homes.get(0), verification.getRevision(),
+                                paths));
+                    } catch (IOException e) {
+                        // Failures are still listed in the message, just without line comments
+                        logger.log(Level.WARNING, "Could not look up the sources of the failed tests", e);
+                    }
+                }
+                sourcesOf.put(verification.getRevision(), sources);
+            }
+            ReviewInput review = FailureReview.create(verification, failed, sources);
+            reviews.add(review == null ? verification
+                    : verification.withInput(gerrit_review_command, review.toJson()));
+        }
+        return reviews;
+    }
 
-            public String invoke(File workspace, VirtualChannel channel) throws IOException{
-                // f and file represents the same thing
-                if (git == null) {
-                    git = new GitTools();
+    /**
+     * Hands verifications to the batcher and waits until the batches they ended up in have been sent.
+     * All of them are handed over before waiting, so votes on several revisions share a command.
+     * In asynchronous mode the verifications are only queued and the outcome is recorded
+     * on the build as a {@link GerritVerificationAction} each.
+     *
+     * Every verification is stored in the {@link Outbox} first, so if Gerrit can't be reached
+     * it is sent later instead of failing the build. When several repositories are voted on,
+     * Gerrit rejecting some of the votes only fails the build if it rejects all of them.
+     */
+    private void verifyGerrit(AbstractBuild build, BuildListener listener, List<Verification> verifications)
+            throws IOException, InterruptedException {
+
+        if (batcher == null) {
+            batcher = ApproveBatcher.getInstance();
+        }
+        Outbox outbox = Outbox.getInstance();
+        List<Delivery> deliveries = new ArrayList<Delivery>();
+        for (int i = 0; i < verifications.size(); i++) {
+            Verification verification = verifications.get(i).withSource(build.getProject().getFullName());
+            verifications.set(i, verification);
+            long id = -1;
+            if (outbox != null) {
+                try {
+                    id = outbox.append(verification);
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Failed to store " + verification + " in the outbox", e);
                 }
-                return git.getHead(workspace, GerritNotifier.this.git_home).name();
             }
-        });
+            if (isAsynchronous()) {
+                if (dispatcher == null) {
+                    dispatcher = NotificationDispatcher.getInstance();
+                }
+                GerritVerificationAction action =
+                        new GerritVerificationAction(verification.getRevision(), verification.getVerified());
+                build.addAction(action);
+                DeliveryListener reporter = new BuildReporter(build, action);
+                dispatcher.dispatch(verification, id < 0 ? reporter : outbox.settling(id, reporter));
+                listener.getLogger().println("Verification of " + verification.getRevision() + " queued for Gerrit");
+                continue;
+            }
+            Delivery delivery = batcher.submit(verification);
+            if (id >= 0) {
+                outbox.settleWhenDone(id, delivery);
+            }
+            deliveries.add(delivery);
+        }
+        IOException failure = null;
+        IOException rejection = null;
+        int rejected = 0;
+        for (int i = 0; i < deliveries.size(); i++) {
+            try {
+                deliveries.get(i).await();
+                if (deliveries.get(i).getOutcome() == Delivery.Outcome.SUPERSEDED) {
+                    listener.getLogger().println("Vote on " + verifications.get(i).getRevision()
+                            + " was replaced by a newer one before it was sent");
+                } else if (deliveries.get(i).getOutcome() == Delivery.Outcome.SKIPPED) {
+                    listener.getLogger().println("Gerrit already has this vote on "
+                            + verifications.get(i).getRevision());
+                }
+            } catch (IOException e) {
+                if (deliveries.size() > 1 && Outbox.isPermanent(e)) {
+                    listener.getLogger().println("Gerrit rejected the vote on " + verifications.get(i).getRevision()
+                            + ": " + e.getMessage());
+                    rejection = rejection == null ? e : rejection;
+                    rejected++;
+                } else if (outbox == null || Outbox.isPermanent(e)) {
+                    failure = failure == null ? e : failure;
+                } else {
+                    listener.getLogger().println("Gerrit could not be reached (" + e.getMessage() + "), verification of "
+                            + verifications.get(i).getRevision() + " will be sent when it is back");
+                }
+            }
+        }
+        if (failure == null && rejected > 0 && rejected == deliveries.size()) {
+            failure = rejection;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+
+    @Override
+    public boolean perform(final AbstractBuild build, Launcher launcher, final BuildListener listener)
+            throws IOException, InterruptedException {
+
+        Collection<String> heads = resolveRevisions(build, listener);
         try {
             Result r = build.getResult();
 
             String buildUrl = getBuildUrl(build, listener);
+            String revisions = join(heads);
             if (r == Result.ABORTED || r == Result.NOT_BUILT) {
                 listener.getLogger().println("Build was aborted, notifying gerrit");
-                verifyGerrit(generateDidNotFinishCommand(buildUrl, head));
             } else {
 
                 if (r.isBetterOrEqualTo(Result.SUCCESS)) {
-                    listener.getLogger().println("Approving " + head);
-                    verifyGerrit(generateApproveCommand(buildUrl, head));
+                    listener.getLogger().println("Approving " + revisions);
                 } else if (r.isBetterOrEqualTo(Result.UNSTABLE)) {
-                    listener.getLogger().println("Rejecting unstable " + head);
-                    verifyGerrit(generateUnstableCommand(buildUrl, head));
+                    listener.getLogger().println("Rejecting unstable " + revisions);
                 } else {
-                    listener.getLogger().println("Rejecting failed " + head);
-                    verifyGerrit(generateFailedCommand(buildUrl, head));
+                    listener.getLogger().println("Rejecting failed " + revisions);
                 }
             }
+            List<Verification> verifications = new ArrayList<Verification>();
+            for (String head : heads) {
+                verifications.add(createVerification(r, buildUrl, head));
+            }
+            if (isReviewJson()) {
+                verifications = toReviews(build, verifications);
+            }
+            verifyGerrit(build, listener, verifications);
         } catch (IOException e) {
             listener.getLogger().println(e.getMessage());
             e.printStackTrace(listener.getLogger());
@@ -201,6 +423,107 @@ public class GerritNotifier extends Notifier implements Serializable {
         return true;
     }
 
+    /**
+     * Returns the revisions to vote on, one per repository unless repositories share a HEAD.
+     * For the workspace's own repository the git plugin records it in {@link BuildData}; otherwise
+     * HEAD of every repository is read from the workspace in one call.
+     *
+     * With several repositories the HEADs are recorded on the build, and a HEAD that the previous
+     * build voted on already is left out: in a super-project most repositories don't change,
+     * and their HEAD is typically merged already, so Gerrit would reject the vote.
+     */
+    Collection<String> resolveRevisions(AbstractBuild<?, ?> build, BuildListener listener)
+            throws IOException, InterruptedException {
+        List<String> homes = getGitHomes();
+        if (homes.size() == 1 && homes.get(0).equals(DEFAULT_GIT_HOME)) {
+            BuildData data = build.getAction(BuildData.class);
+            if (data != null && data.getLastBuiltRevision() != null) {
+                return Collections.singletonList(data.getLastBuiltRevision().getSha1String());
+            }
+        }
+        FilePath ws = build.getWorkspace();
+        Map<String, String> heads = ws.act(new HeadResolver(new ArrayList<String>(homes), git));
+        if (homes.size() == 1) {
+            return heads.values();
+        }
+        build.addAction(new BuiltHeadsAction(heads));
+        AbstractBuild<?, ?> previous = build.getPreviousBuild();
+        BuiltHeadsAction built = previous == null ? null : previous.getAction(BuiltHeadsAction.class);
+        LinkedHashSet<String> changed = new LinkedHashSet<String>();
+        for (Map.Entry<String, String> head : heads.entrySet()) {
+            if (built != null && head.getValue().equals(built.getHead(head.getKey()))) {
+                listener.getLogger().println(head.getKey() + " is unchanged since the last build, not voting on "
+                        + head.getValue());
+            } else {
+                changed.add(head.getValue());
+            }
+        }
+        if (changed.isEmpty()) {
+            // Built again as it was, vote on everything
+            changed.addAll(heads.values());
+        }
+        return changed;
+    }
+
+    private static String join(Collection<String> revisions) {
+        StringBuilder sb = new StringBuilder();
+        for (String revision : revisions) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(revision);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Reads HEAD of every repository on the node that has the workspace, in parallel, and returns
+     * them by git home. Only the git home paths are sent there.
+     */
+    private static class HeadResolver implements FileCallable<LinkedHashMap<String, String>> {
+        private final ArrayList<String> gitHomes;
+        private final transient GitTools git;
+
+        HeadResolver(ArrayList<String> gitHomes, GitTools git) {
+            this.gitHomes = gitHomes;
+            this.git = git;
+        }
+
+        public LinkedHashMap<String, String> invoke(final File workspace, VirtualChannel channel)
+                throws IOException, InterruptedException {
+            final GitTools tools = git != null ? git : new GitTools();
+            LinkedHashMap<String, String> heads = new LinkedHashMap<String, String>();
+            if (gitHomes.size() == 1) {
+                heads.put(gitHomes.get(0), tools.getHead(workspace, gitHomes.get(0)).name());
+                return heads;
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(gitHomes.size(), MAX_PARALLEL_HEADS));
+            try {
+                List<Future<String>> futures = new ArrayList<Future<String>>();
+                for (final String gitHome : gitHomes) {
+                    futures.add(executor.submit(new Callable<String>() {
+                        public String call() {
+                            return tools.getHead(workspace, gitHome).name();
+                        }
+                    }));
+                }
+                for (int i = 0; i < futures.size(); i++) {
+                    heads.put(gitHomes.get(i), futures.get(i).get());
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                IOException ioe = new IOException("Failed to read HEAD: " + e.getCause());
+                ioe.initCause(e.getCause());
+                throw ioe;
+            } finally {
+                executor.shutdownNow();
+            }
+            return heads;
+        }
+    }
+
     String getBuildUrl(AbstractBuild build, BuildListener listener) throws IOException {
         EnvVars vars = null;
         try {
@@ -226,9 +549,51 @@ public class GerritNotifier extends Notifier implements Serializable {
     }
 
     public BuildStepMonitor getRequiredMonitorService() {
+        if (isAsynchronous()) {
+            return BuildStepMonitor.NONE;
+        }
         return BuildStepMonitor.BUILD;
     }
 
+    /**
+     * Records the outcome of a background verification on the build it belongs to.
+     */
+    static class BuildReporter implements DeliveryListener {
+        private final AbstractBuild build;
+        private final GerritVerificationAction action;
+
+        BuildReporter(AbstractBuild build, GerritVerificationAction action) {
+            this.build = build;
+            this.action = action;
+        }
+
+        public void onRetry(Verification verification, int attempt, IOException failure) {
+            update(GerritVerificationAction.State.RETRYING, attempt, failure.getMessage());
+        }
+
+        public void onSuccess(Verification verification, int attempts) {
+            update(GerritVerificationAction.State.SENT, attempts, null);
+        }
+
+        public void onSkipped(Verification verification, Delivery.Outcome outcome) {
+            update(outcome == Delivery.Outcome.SUPERSEDED ? GerritVerificationAction.State.SUPERSEDED
+                    : GerritVerificationAction.State.SKIPPED, action.getAttempts(), null);
+        }
+
+        public void onFailure(Verification verification, int attempts, IOException failure) {
+            update(GerritVerificationAction.State.FAILED, attempts, failure.getMessage());
+        }
+
+        private void update(GerritVerificationAction.State state, int attempts, String error) {
+            action.update(state, attempts, error);
+            try {
+                build.save();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to save " + build, e);
+            }
+        }
+    }
+
     /**
      * Descriptor for {@link GerritNotifier}. Used as a singleton.
      * The class is marked as public so that it can be accessed from views.
@@ -244,6 +609,76 @@ public class GerritNotifier extends Notifier implements Serializable {
 
         String path_to_private_key_file;
 
+        private long batch_max_delay = ApproveBatcher.DEFAULT_MAX_DELAY;
+        private int batch_max_size = ApproveBatcher.DEFAULT_MAX_BATCH_SIZE;
+        private boolean async_notification;
+        private int command_timeout = (int) (SSHMarker.DEFAULT_COMMAND_TIMEOUT / 1000);
+        private int max_connections_per_host = SendScheduler.DEFAULT_MAX_CONCURRENT;
+        private int max_commands_per_second = SendScheduler.DEFAULT_RATE;
+        private int max_channels_per_connection = SSHMarker.DEFAULT_MAX_CHANNELS;
+        private boolean review_json;
+
+        public DescriptorImpl() {
+            load();
+            applyGlobalSettings();
+        }
+
+        public long getBatch_max_delay() {
+            return batch_max_delay;
+        }
+
+        public int getBatch_max_size() {
+            return batch_max_size;
+        }
+
+        public boolean isAsync_notification() {
+            return async_notification;
+        }
+
+        public int getCommand_timeout() {
+            return command_timeout;
+        }
+
+        public int getMax_connections_per_host() {
+            return max_connections_per_host;
+        }
+
+        public int getMax_commands_per_second() {
+            return max_commands_per_second;
+        }
+
+        public int getMax_channels_per_connection() {
+            return max_channels_per_connection;
+        }
+
+        public boolean isReview_json() {
+            return review_json;
+        }
+
+        @Override
+        public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+            batch_max_delay = json.optLong("batch_max_delay", ApproveBatcher.DEFAULT_MAX_DELAY);
+            batch_max_size = json.optInt("batch_max_size", ApproveBatcher.DEFAULT_MAX_BATCH_SIZE);
+            async_notification = json.optBoolean("async_notification", false);
+            command_timeout = json.optInt("command_timeout", (int) (SSHMarker.DEFAULT_COMMAND_TIMEOUT / 1000));
+            max_connections_per_host = json.optInt("max_connections_per_host", SendScheduler.DEFAULT_MAX_CONCURRENT);
+            max_commands_per_second = json.optInt("max_commands_per_second", SendScheduler.DEFAULT_RATE);
+            max_channels_per_connection = json.optInt("max_channels_per_connection", SSHMarker.DEFAULT_MAX_CHANNELS);
+            review_json = json.optBoolean("review_json", false);
+            save();
+            applyGlobalSettings();
+            return true;
+        }
+
+        private void applyGlobalSettings() {
+            ApproveBatcher.getInstance().setMaxDelay(batch_max_delay);
+            ApproveBatcher.getInstance().setMaxBatchSize(batch_max_size);
+            SSHConnectionPool.getInstance().setCommandTimeout(command_timeout * 1000L);
+            SSHConnectionPool.getInstance().setMaxChannelsPerConnection(max_channels_per_connection);
+            SendScheduler.getInstance().setMaxConcurrent(max_connections_per_host);
+            SendScheduler.getInstance().setRate(max_commands_per_second);
+        }
+
         public FormValidation doCheckGerrit_username(@QueryParameter String value)  {
             if (value.length() == 0) {
                 return FormValidation.error("Please set a name");
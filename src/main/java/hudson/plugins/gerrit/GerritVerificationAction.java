@@ -0,0 +1,63 @@
+package hudson.plugins.gerrit;
+
+import hudson.model.Action;
+
+/**
+ * Shows on the build page what happened to the verification that was sent to Gerrit
+ * in the background.
+ */
+public class GerritVerificationAction implements Action {
+
+    public enum State {
+        PENDING, RETRYING, SENT, SUPERSEDED, SKIPPED, FAILED
+    }
+
+    private final String revision;
+    private final String verified;
+    private volatile State state = State.PENDING;
+    private volatile int attempts;
+    private volatile String error;
+
+    public GerritVerificationAction(String revision, String verified) {
+        this.revision = revision;
+        this.verified = verified;
+    }
+
+    public String getRevision() {
+        return revision;
+    }
+
+    public String getVerified() {
+        return verified;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    void update(State state, int attempts, String error) {
+        this.state = state;
+        this.attempts = attempts;
+        this.error = error;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Gerrit Verification";
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
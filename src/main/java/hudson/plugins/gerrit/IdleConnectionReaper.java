@@ -0,0 +1,22 @@
+package hudson.plugins.gerrit;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+import hudson.plugins.gerrit.ssh.SSHConnectionPool;
+
+/**
+ * Closes pooled Gerrit connections that nobody has used for a while.
+ */
+@Extension
+public class IdleConnectionReaper extends PeriodicWork {
+
+    @Override
+    public long getRecurrencePeriod() {
+        return MIN;
+    }
+
+    @Override
+    protected void doRun() {
+        SSHConnectionPool.getInstance().evictIdle();
+    }
+}
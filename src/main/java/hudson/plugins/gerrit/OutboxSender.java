@@ -0,0 +1,60 @@
+package hudson.plugins.gerrit;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.model.PeriodicWork;
+import hudson.plugins.gerrit.notification.ApproveBatcher;
+import hudson.plugins.gerrit.notification.Outbox;
+import hudson.plugins.gerrit.notification.Verification;
+import hudson.plugins.gerrit.ssh.SSHConnectionPool;
+
+/**
+ * Sends the verifications left in the {@link Outbox} after a restart or while Gerrit was unreachable.
+ * The passphrase for each comes from the configuration of the job that sent it.
+ */
+@Extension
+public class OutboxSender extends PeriodicWork {
+
+    @Override
+    public long getRecurrencePeriod() {
+        return MIN;
+    }
+
+    @Override
+    protected void doRun() {
+        Outbox outbox = Outbox.getInstance();
+        if (outbox != null) {
+            outbox.resend(ApproveBatcher.getInstance(), new JobKeyResolver());
+        }
+    }
+
+    /**
+     * Takes the connection of the job's {@link GerritNotifier} if it still uses the same account.
+     */
+    static class JobKeyResolver implements Outbox.KeyResolver {
+        public SSHConnectionPool.Key resolve(Verification verification) {
+            Hudson hudson = Hudson.getInstance();
+            if (hudson == null) {
+                return null;
+            }
+            AbstractProject<?, ?> project = hudson.getItemByFullName(verification.getSource(), AbstractProject.class);
+            if (project == null) {
+                return null;
+            }
+            GerritNotifier notifier = project.getPublishersList().get(GerritNotifier.class);
+            if (notifier == null) {
+                return null;
+            }
+            SSHConnectionPool.Key key = notifier.getConnectionKey();
+            return isSameAccount(key, verification.getConnection()) ? key : null;
+        }
+
+        private static boolean isSameAccount(SSHConnectionPool.Key a, SSHConnectionPool.Key b) {
+            return a.getHost().equals(b.getHost())
+                    && a.getPort() == b.getPort()
+                    && a.getUsername().equals(b.getUsername())
+                    && a.getPrivateKeyFile().equals(b.getPrivateKeyFile());
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package hudson.plugins.gerrit.buildchoosers;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Revisions that concurrent builds of a job have already taken, so each build picks another one.
+ *
+ * A claim is a lease that runs out after {@link #getLeaseTime()} milliseconds; the chooser isn't
+ * told when a build ends, and a crashed build mustn't hold its revision forever. Claims are
+ * taken and renewed with compare-and-set only.
+ */
+public class ClaimRegistry {
+
+    public static final long DEFAULT_LEASE_TIME = 60 * 60 * 1000L;
+
+    /* Concurrent builds of a job get workspaces named workspace, workspace@2, workspace@3... */
+    private static final Pattern CONCURRENT_SUFFIX = Pattern.compile("@\\d+$");
+    private static final int PURGE_THRESHOLD = 1024;
+    private static final ClaimRegistry instance = new ClaimRegistry();
+
+    private final ConcurrentMap<String, Long> leases = new ConcurrentHashMap<String, Long>();
+    private volatile long leaseTime = DEFAULT_LEASE_TIME;
+
+    public static ClaimRegistry getInstance() {
+        return instance;
+    }
+
+    public long getLeaseTime() {
+        return leaseTime;
+    }
+
+    public void setLeaseTime(long leaseTime) {
+        this.leaseTime = leaseTime;
+    }
+
+    /**
+     * Names the job a repository belongs to: its workspace, the same for all concurrent builds.
+     */
+    public static String scope(File gitDir) {
+        File workspace = ".git".equals(gitDir.getName()) && gitDir.getParentFile() != null
+                ? gitDir.getParentFile() : gitDir;
+        return CONCURRENT_SUFFIX.matcher(workspace.getAbsolutePath()).replaceFirst("");
+    }
+
+    /**
+     * Returns true if sha wasn't claimed in scope or its lease had run out, it is claimed now.
+     */
+    public boolean claim(String scope, String sha, long now) {
+        String key = scope + '\n' + sha;
+        Long expiry = now + leaseTime;
+        while (true) {
+            Long current = leases.putIfAbsent(key, expiry);
+            if (current == null) {
+                purgeIfLarge(now);
+                return true;
+            }
+            if (current > now) {
+                return false;
+            }
+            if (leases.replace(key, current, expiry)) {
+                return true;
+            }
+        }
+    }
+
+    public boolean isClaimed(String scope, String sha, long now) {
+        Long expiry = leases.get(scope + '\n' + sha);
+        return expiry != null && expiry > now;
+    }
+
+    public void release(String scope, String sha) {
+        leases.remove(scope + '\n' + sha);
+    }
+
+    public int size() {
+        return leases.size();
+    }
+
+    private void purgeIfLarge(long now) {
+        if (leases.size() < PURGE_THRESHOLD) {
+            return;
+        }
+        for (Map.Entry<String, Long> lease : leases.entrySet()) {
+            if (lease.getValue() <= now) {
+                leases.remove(lease.getKey(), lease.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package hudson.plugins.gerrit.buildchoosers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Commits and their commit times in a memory-mapped file, oldest first. After a small header
+ * every commit takes a fixed-width record of its 8 byte commit time and its 20 byte SHA-1.
+ *
+ * Only the records that are looked at get paged in, so heap use doesn't grow with the history.
+ * Newer commits are appended; a commit older than ones already stored makes the index rewrite
+ * its tail from where the commit belongs. Commits with equal time are stored oldest first in
+ * the order of {@link CommitList#sortNewestFirst()} reversed.
+ *
+ * The header holds the number of records, which is only raised once the records are written.
+ * A rewrite first lowers it to where the rewritten tail starts. Each change is forced to disk
+ * once before the number is raised, a lowered number once more before records are overwritten.
+ */
+public class CommitIndex {
+
+    static final int HEADER = 4 + 8 + 4;
+    static final int RECORD = 8 + CommitList.WORDS * 4;
+
+    private static final int MAGIC = 0x47435332;
+    private static final int MIN_CAPACITY = 1024;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private MappedByteBuffer buffer;
+    private int size;
+
+    private CommitIndex(File file, RandomAccessFile raf) {
+        this.file = file;
+        this.raf = raf;
+    }
+
+    /**
+     * Opens the index stored in file, null if there is none.
+     *
+     * @throws IOException if the file isn't an index or is damaged
+     */
+    public static CommitIndex open(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        CommitIndex index = new CommitIndex(file, raf);
+        try {
+            long length = raf.length();
+            if (length < HEADER || length > Integer.MAX_VALUE) {
+                throw new IOException("Not a commit index: " + file);
+            }
+            index.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            if (index.buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a commit index: " + file);
+            }
+            int size = index.buffer.getInt(4 + 8);
+            if (size < 0 || size > (length - HEADER) / RECORD) {
+                throw new IOException("Damaged commit index: " + file);
+            }
+            index.size = size;
+            return index;
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates an index in file holding commits, which are ordered newest first.
+     */
+    public static CommitIndex create(File file, CommitList commits, long lastFullScan) throws IOException {
+        CommitIndex index = new CommitIndex(file, new RandomAccessFile(file, "rw"));
+        try {
+            index.replace(commits, lastFullScan);
+            return index;
+        } catch (IOException e) {
+            index.close();
+            throw e;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getLastFullScan() {
+        return buffer.getLong(4);
+    }
+
+    /**
+     * Commit time in seconds since epoch.
+     */
+    public long getTime(int index) {
+        return buffer.getLong(position(index));
+    }
+
+    public void copySha(int index, int[] dst, int offset) {
+        int p = position(index) + 8;
+        for (int w = 0; w < CommitList.WORDS; w++) {
+            dst[offset + w] = buffer.getInt(p + w * 4);
+        }
+    }
+
+    public boolean matches(int index, int[] sha) {
+        int p = position(index) + 8;
+        for (int w = 0; w < CommitList.WORDS; w++) {
+            if (buffer.getInt(p + w * 4) != sha[w]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns index of sha among the records from index from on, newest first, or -1.
+     */
+    public int lastIndexOf(int[] sha, int from) {
+        for (int i = size - 1; i >= from; i--) {
+            if (matches(i, sha)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns index of sha among the commits of given time, or -1. Only those commits are looked at.
+     */
+    public int indexOf(int[] sha, long time) {
+        for (int i = lowerBound(time); i < size && getTime(i) == time; i++) {
+            if (matches(i, sha)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Index of the first commit at or after time, {@link #size()} if there is none.
+     */
+    public int lowerBound(long time) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getTime(mid) < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Index of the first commit after time, {@link #size()} if there is none.
+     */
+    public int upperBound(long time) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getTime(mid) <= time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Copies the commits from index from on into a list, newest first.
+     */
+    public CommitList newestFirst(int from) {
+        from = Math.max(0, from);
+        CommitList commits = new CommitList(Math.max(1, size - from));
+        int[] sha = new int[CommitList.WORDS];
+        for (int i = size - 1; i >= from; i--) {
+            copySha(i, sha, 0);
+            commits.add(sha, 0, getTime(i));
+        }
+        return commits;
+    }
+
+    /**
+     * Replaces every record by commits, which are ordered newest first.
+     */
+    public void replace(CommitList commits, long lastFullScan) throws IOException {
+        ensureCapacity(commits.size());
+        buffer.putInt(0, MAGIC);
+        buffer.putLong(4, lastFullScan);
+        truncate(0);
+        int[] sha = new int[CommitList.WORDS];
+        for (int i = 0, n = commits.size(); i < n; i++) {
+            commits.copySha(i, sha, 0);
+            put(n - 1 - i, commits.getTime(i), sha);
+        }
+        commit(commits.size());
+    }
+
+    /**
+     * Adds commits that aren't stored yet, ordered newest first. On equal time they come before
+     * the commits already stored, newest first.
+     */
+    public void insert(CommitList commits) throws IOException {
+        int n = commits.size();
+        if (n == 0) {
+            return;
+        }
+        int from = upperBound(commits.getTime(n - 1));
+        int end = size + n;
+        ensureCapacity(end);
+        // Until the tail is complete again the index ends before it
+        truncate(from);
+        int[] sha = new int[CommitList.WORDS];
+        int i = end - n - 1;
+        int j = 0;
+        for (int k = end - 1; j < n; k--) {
+            if (i >= from && getTime(i) > commits.getTime(j)) {
+                copySha(i, sha, 0);
+                put(k, getTime(i), sha);
+                i--;
+            } else {
+                commits.copySha(j, sha, 0);
+                put(k, commits.getTime(j), sha);
+                j++;
+            }
+        }
+        commit(end);
+    }
+
+    public void close() throws IOException {
+        raf.close();
+    }
+
+    @Override
+    public String toString() {
+        return file + " (" + size + " commits)";
+    }
+
+    private static int position(int index) {
+        return HEADER + index * RECORD;
+    }
+
+    private void put(int index, long time, int[] sha) {
+        int p = position(index);
+        buffer.putLong(p, time);
+        for (int w = 0; w < CommitList.WORDS; w++) {
+            buffer.putInt(p + 8 + w * 4, sha[w]);
+        }
+    }
+
+    /* Drops the records from size on, on disk before any of them is overwritten. */
+    private void truncate(int size) {
+        if (size < this.size) {
+            buffer.putInt(4 + 8, size);
+            buffer.force();
+        }
+        this.size = size;
+    }
+
+    /* Makes the records before size part of the index once they are on disk. */
+    private void commit(int size) {
+        buffer.force();
+        buffer.putInt(4 + 8, size);
+        this.size = size;
+    }
+
+    /* Maps room for at least records records, growing by doubling. */
+    private void ensureCapacity(int records) throws IOException {
+        int capacity = buffer == null ? 0 : (buffer.capacity() - HEADER) / RECORD;
+        if (buffer != null && records <= capacity) {
+            return;
+        }
+        long needed = Math.max(MIN_CAPACITY, Math.max(records, capacity * 2L));
+        long length = HEADER + needed * RECORD;
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Too many commits for " + file + ": " + records);
+        }
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+    }
+}
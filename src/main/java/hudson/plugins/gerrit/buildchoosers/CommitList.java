@@ -0,0 +1,178 @@
+package hudson.plugins.gerrit.buildchoosers;
+
+import org.spearce.jgit.lib.ObjectId;
+
+import java.util.Arrays;
+
+/**
+ * Commits and their commit times stored in parallel primitive arrays.
+ *
+ * A SHA-1 takes five consecutive ints in {@link #shas}, the same layout JGit uses, so
+ * nothing is allocated per commit until an ObjectId is actually needed.
+ */
+public class CommitList implements CommitLogParser.Handler {
+
+    static final int WORDS = 5;
+
+    private long[] times;
+    private int[] shas;
+    private int size;
+
+    public CommitList() {
+        this(256);
+    }
+
+    public CommitList(int capacity) {
+        capacity = Math.max(capacity, 1);
+        times = new long[capacity];
+        shas = new int[capacity * WORDS];
+    }
+
+    public void commit(int[] sha, long commitTime) {
+        add(sha, 0, commitTime);
+    }
+
+    public void add(int[] sha, int offset, long commitTime) {
+        if (size == times.length) {
+            int capacity = times.length * 2;
+            times = Arrays.copyOf(times, capacity);
+            shas = Arrays.copyOf(shas, capacity * WORDS);
+        }
+        times[size] = commitTime;
+        System.arraycopy(sha, offset, shas, size * WORDS, WORDS);
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Commit time in seconds since epoch.
+     */
+    public long getTime(int index) {
+        return times[index];
+    }
+
+    public ObjectId getId(int index) {
+        return ObjectId.fromRaw(shas, index * WORDS);
+    }
+
+    public void copySha(int index, int[] dst, int offset) {
+        System.arraycopy(shas, index * WORDS, dst, offset, WORDS);
+    }
+
+    public boolean matches(int index, int[] sha) {
+        int p = index * WORDS;
+        return shas[p] == sha[0]
+                && shas[p + 1] == sha[1]
+                && shas[p + 2] == sha[2]
+                && shas[p + 3] == sha[3]
+                && shas[p + 4] == sha[4];
+    }
+
+    /**
+     * Returns commit indexes ordered newest first. Commits with equal time keep the order
+     * in which they were added.
+     */
+    public int[] sortNewestFirst() {
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        if (size > 1) {
+            mergeSort(order, new int[size], 0, size);
+        }
+        return order;
+    }
+
+    /* Stable top-down merge sort. Git log output is mostly sorted already, so already
+     * ordered halves are detected and not merged at all. */
+    private void mergeSort(int[] order, int[] tmp, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(order, tmp, from, mid);
+        mergeSort(order, tmp, mid, to);
+        if (times[order[mid - 1]] >= times[order[mid]]) {
+            return;
+        }
+        System.arraycopy(order, from, tmp, from, to - from);
+        int left = from;
+        int right = mid;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < mid && times[tmp[left]] >= times[tmp[right]])) {
+                order[i] = tmp[left++];
+            } else {
+                order[i] = tmp[right++];
+            }
+        }
+    }
+
+    /**
+     * Returns index of sha among the first limit commits, or -1.
+     */
+    public int indexOf(int[] sha, int limit) {
+        for (int i = 0, n = Math.min(limit, size); i < n; i++) {
+            if (matches(i, sha)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int indexOf(int[] sha) {
+        return indexOf(sha, size);
+    }
+
+    /**
+     * Returns a copy ordered newest first, see {@link #sortNewestFirst()}.
+     */
+    public CommitList sorted() {
+        CommitList sorted = new CommitList(size);
+        int[] sha = new int[WORDS];
+        for (int index : sortNewestFirst()) {
+            copySha(index, sha, 0);
+            sorted.add(sha, 0, times[index]);
+        }
+        return sorted;
+    }
+
+    /**
+     * Merges two lists that are both ordered newest first. On equal times commits of first come first.
+     */
+    public static CommitList mergeNewestFirst(CommitList first, CommitList second) {
+        CommitList merged = new CommitList(first.size + second.size);
+        int i = 0;
+        int j = 0;
+        while (i < first.size || j < second.size) {
+            if (j >= second.size || (i < first.size && first.times[i] >= second.times[j])) {
+                merged.add(first.shas, i * WORDS, first.times[i]);
+                i++;
+            } else {
+                merged.add(second.shas, j * WORDS, second.times[j]);
+                j++;
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Decodes a 40 character hex SHA-1 into five ints.
+     */
+    public static int[] toWords(String hex) {
+        if (hex == null || hex.length() != WORDS * 8) {
+            throw new IllegalArgumentException("Not a SHA-1: " + hex);
+        }
+        int[] words = new int[WORDS];
+        for (int i = 0; i < hex.length(); i++) {
+            int nibble = Character.digit(hex.charAt(i), 16);
+            if (nibble < 0) {
+                throw new IllegalArgumentException("Not a SHA-1: " + hex);
+            }
+            words[i >> 3] = (words[i >> 3] << 4) | nibble;
+        }
+        return words;
+    }
+}
@@ -0,0 +1,129 @@
+package hudson.plugins.gerrit.buildchoosers;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Single pass scanner for <tt>git log --pretty=format:'%H#%ct'</tt> output.
+ *
+ * SHA-1 and commit time are decoded in place, one character at a time, so no Strings are
+ * created per line. Each SHA-1 is handed out as five ints in the same layout JGit uses for
+ * ObjectId. Lines that don't look like a commit are skipped.
+ */
+public class CommitLogParser {
+
+    /**
+     * Receives every commit found in the log. The words array is reused between calls.
+     */
+    public interface Handler {
+        void commit(int[] sha, long commitTime);
+    }
+
+    private static final int SHA = 0;
+    private static final int TIME = 1;
+    private static final int SKIP = 2;
+
+    private static final int SHA_LENGTH = 40;
+    private static final char SEPARATOR = '#';
+
+    private final Handler handler;
+    private final int[] words = new int[5];
+    private int state = SHA;
+    private int hexCount;
+    private long time;
+    private boolean hasTime;
+
+    public CommitLogParser(Handler handler) {
+        this.handler = handler;
+    }
+
+    public static void parse(CharSequence log, Handler handler) {
+        CommitLogParser parser = new CommitLogParser(handler);
+        parser.feed(log);
+        parser.finish();
+    }
+
+    public static void parse(Reader log, Handler handler) throws IOException {
+        CommitLogParser parser = new CommitLogParser(handler);
+        char[] buffer = new char[8192];
+        int n;
+        while ((n = log.read(buffer)) >= 0) {
+            parser.feed(buffer, 0, n);
+        }
+        parser.finish();
+    }
+
+    public void feed(CharSequence chars) {
+        for (int i = 0, n = chars.length(); i < n; i++) {
+            feed(chars.charAt(i));
+        }
+    }
+
+    public void feed(char[] chars, int offset, int length) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            feed(chars[i]);
+        }
+    }
+
+    /**
+     * Ends the last line, which usually has no line feed after it.
+     */
+    public void finish() {
+        endOfLine();
+    }
+
+    private void feed(char c) {
+        if (c == '\n' || c == '\r') {
+            endOfLine();
+            return;
+        }
+        if (c == '\'' || state == SKIP) {
+            return;
+        }
+        if (state == SHA) {
+            int nibble = hexValue(c);
+            if (nibble >= 0 && hexCount < SHA_LENGTH) {
+                int w = hexCount >> 3;
+                words[w] = (words[w] << 4) | nibble;
+                hexCount++;
+            } else if (c == SEPARATOR && hexCount == SHA_LENGTH) {
+                state = TIME;
+            } else if (!(Character.isWhitespace(c) && hexCount == 0)) {
+                state = SKIP;
+            }
+        } else {
+            if (c >= '0' && c <= '9') {
+                time = time * 10 + (c - '0');
+                hasTime = true;
+            } else if (!Character.isWhitespace(c)) {
+                state = SKIP;
+            }
+        }
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    private void endOfLine() {
+        if (state == TIME && hasTime) {
+            handler.commit(words, time);
+        }
+        state = SHA;
+        hexCount = 0;
+        time = 0;
+        hasTime = false;
+        for (int i = 0; i < words.length; i++) {
+            words[i] = 0;
+        }
+    }
+}
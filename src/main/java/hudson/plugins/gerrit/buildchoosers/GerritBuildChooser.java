@@ -10,10 +10,12 @@ import hudson.plugins.gerrit.GerritNotifier;
 import hudson.plugins.git.*;
 import hudson.plugins.git.util.*;
 import hudson.util.DescribableList;
-import org.joda.time.DateTime;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.Ref;
+import org.spearce.jgit.lib.Repository;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
 import java.util.logging.Logger;
@@ -21,19 +23,73 @@ import java.util.logging.Logger;
 @Extension
 public class GerritBuildChooser extends BuildChooser {
 
-    private final String separator = "#";
+    private final boolean useRevWalk;
+    private final boolean skipSuperseded;
+    private final boolean narrowFetch;
 
-    @DataBoundConstructor
     public GerritBuildChooser() {
+        this(false, false, false);
+    }
+
+    public GerritBuildChooser(boolean useRevWalk) {
+        this(useRevWalk, false, false);
+    }
+
+    @DataBoundConstructor
+    public GerritBuildChooser(boolean useRevWalk, boolean skipSuperseded, boolean narrowFetch) {
+        this.useRevWalk = useRevWalk;
+        this.skipSuperseded = skipSuperseded;
+        this.narrowFetch = narrowFetch;
+    }
+
+    /**
+     * If true, candidates are found with an in-process JGit walk instead of git log.
+     */
+    public boolean isUseRevWalk() {
+        return useRevWalk;
+    }
+
+    /**
+     * If true, patch sets that already have a newer patch set in the same change aren't built.
+     */
+    public boolean isSkipSuperseded() {
+        return skipSuperseded;
+    }
+
+    /**
+     * If true, new patch sets are found from the remote's ref listing and only the one
+     * to build is fetched, see {@link NarrowFetcher}.
+     */
+    public boolean isNarrowFetch() {
+        return narrowFetch;
     }
 
     /**
      * Determines which Revisions to build.
      *
-     * Uses git log --all to get every commit in repository. Then orders commits by commit time
-     * and determines what to build next.
+     * Uses git log --all to get every commit in repository. Then orders commits by commit time,
+     * newest first and commits with equal time in log order, and determines what to build next.
      *
      * Doesn't care about branches.
+     *
+     * What has been scanned is remembered per repository, later calls only ask git log
+     * for commits at or after the newest one already seen. With {@link #isUseRevWalk()}
+     * the refs are walked in-process instead, stopping at the last built commit.
+     *
+     * A poll that sees the same refs and last build as an earlier poll that found nothing
+     * returns right away without scanning. If only some refs changed since, the in-process
+     * walk starts from those alone.
+     *
+     * With {@link #isSkipSuperseded()} patch sets that have a newer patch set in the
+     * same change are left out.
+     *
+     * When the job builds concurrently, every build claims a different candidate for a while
+     * and gets it as the first one.
+     *
+     * With {@link #isNarrowFetch()} only the remote's ref listing is used instead.
+     *
+     * If the branch is a commit id, e.g. $GERRIT_PATCHSET_REVISION of a build started by
+     * the Gerrit trigger, exactly that commit is built.
      * @throws IOException
      * @throws GitException
      */
@@ -42,24 +98,78 @@ public class GerritBuildChooser extends BuildChooser {
         throws GitException, IOException {
 
         Revision last = data.getLastBuiltRevision();
-        String result = git.getAllLogEntries(singleBranch);
-        Collection<TimedCommit> commits = sortRevList(result);
-        Iterator<TimedCommit> i = commits.iterator();
+        if (singleBranch != null && ObjectId.isId(singleBranch)) {
+            if (isPollCall && last != null && singleBranch.equals(last.getSha1String())) {
+                return Collections.emptyList();
+            }
+            ArrayList<Revision> revs = new ArrayList<Revision>();
+            addToRevs(revs, ObjectId.fromString(singleBranch));
+            return revs;
+        }
+        if (narrowFetch) {
+            Collection<Revision> narrow = narrowCandidates(isPollCall, git, listener, last);
+            if (narrow != null) {
+                return narrow;
+            }
+        }
+        File gitDir = getGitDir(git);
+        Map<String, Ref> allRefs = null;
+        if (gitDir != null && (skipSuperseded || isPollCall && last != null)) {
+            allRefs = readAllRefs(git);
+        }
+        RefSnapshot refs = null;
+        Set<String> changedRefs = null;
+        if (isPollCall && last != null && allRefs != null) {
+            // Same refs and same last build as a poll that found nothing: nothing to build now either
+            refs = RefSnapshot.of(allRefs, last.getSha1String());
+            RefSnapshot quiet = RefSnapshot.getQuiet(gitDir);
+            if (refs != null && refs.sameAs(quiet)) {
+                ScanReport.skipped(repositoryName(git, gitDir)).send();
+                return Collections.emptyList();
+            }
+            if (refs != null && quiet != null && last.getSha1String().equals(quiet.getLastBuilt())) {
+                // That poll found nothing from the other refs. A deleted ref may make an older
+                // patch set the newest of its change again though, so then everything is walked.
+                SortedMap<String, String> changed = refs.changedSince(quiet);
+                listener.getLogger().println(changed.size() + " refs changed since last poll");
+                if (!changed.containsValue(null)) {
+                    changedRefs = changed.keySet();
+                }
+            }
+        }
+        long start = System.nanoTime();
+        int[] lastSha = last == null ? null : CommitList.toWords(last.getSha1String());
+        CommitList commits = scan(git, gitDir, singleBranch, lastSha, changedRefs);
+        PatchSetIndex patchSets = skipSuperseded && allRefs != null ? PatchSetIndex.of(allRefs) : null;
         ArrayList<Revision> revs = new ArrayList<Revision>();
-        DateTime lastBuilt = null;
+        int superseded = 0;
 
-        while(i.hasNext()) {
-            TimedCommit tc = i.next();
+        for (int index = 0; index < commits.size(); index++) {
             //When encountered last build, break
-            if(last != null && tc.commit.name().equals(last.getSha1String())) {
+            if(lastSha != null && commits.matches(index, lastSha)) {
                 break;
             }
-            addToRevs(revs, tc);
+            ObjectId commit = commits.getId(index);
+            if (patchSets != null && patchSets.isSuperseded(commit.name())) {
+                superseded++;
+                continue;
+            }
+            addToRevs(revs, commit);
+        }
+        if (superseded > 0) {
+            listener.getLogger().println("Skipping " + superseded + " superseded patch sets");
         }
 
 
+        if (gitDir != null) {
+            ScanReport.scanned(repositoryName(git, gitDir), commits.size(), revs.size(), System.nanoTime() - start)
+                    .send();
+        }
+        if(refs != null && revs.isEmpty()) {
+            RefSnapshot.setQuiet(gitDir, refs);
+        }
         if(last == null) {
-            return revs;
+            return claimFirstFree(revs, gitDir, isPollCall);
         }
         if(revs.size() == 0 && !isPollCall) {
             return Collections.singletonList(last);
@@ -70,73 +180,172 @@ public class GerritBuildChooser extends BuildChooser {
             finalRevs.add(revs.get(j));
 
         }
-        return finalRevs;
+        return claimFirstFree(finalRevs, gitDir, isPollCall);
 
     }
 
-    private void addToRevs(ArrayList<Revision> revs, TimedCommit tc) {
-        Revision rev = new Revision(tc.commit);
-        rev.getBranches().add(new Branch("timebased", rev.getSha1()));
-        revs.add(rev);
-    }
-
-    /* This returns commits that are always in same order.
-     *
+    /**
+     * Returns every commit that could be a candidate, newest first. Walking the refs, only
+     * changedRefs are walked unless it is null; git log only looks at commits after the
+     * newest one already seen anyway.
      */
-    private Collection<TimedCommit> sortRevList(String logOutput) {
-        SortedSet<TimedCommit> timedCommits = new TreeSet<TimedCommit>();
-        String[] lines = logOutput.split("\n");
-        for (String s : lines) {
-            timedCommits.add(parseCommit(s));
+    private CommitList scan(IGitAPI git, File gitDir, String singleBranch, int[] lastSha, Set<String> changedRefs)
+            throws IOException {
+        if (gitDir == null) {
+            return scanAll(git, singleBranch);
+        }
+        if (useRevWalk) {
+            return RevWalkScanner.scan(gitDir, RevWalkScanner.refPrefix(singleBranch), lastSha, changedRefs);
+        }
+        ScanState state = ScanState.get(gitDir);
+        synchronized (state) {
+            long now = System.currentTimeMillis();
+            if (lastSha == null || state.needsFullScan(now)) {
+                CommitList all = scanAll(git, singleBranch);
+                state.replace(all, now);
+                return all;
+            }
+            // Commits older than the last built one are never candidates, so it's
+            // enough to look at everything after the older of watermark and last build.
+            long since = state.getWatermark();
+            long lastTime = state.getTime(lastSha);
+            if (lastTime >= 0) {
+                since = Math.min(since, lastTime);
+            }
+            CommitList scanned = new CommitList();
+            CommitLogParser.parse(git.getAllLogEntries("--max-age=" + since), scanned);
+            state.merge(scanned, since);
+            CommitList commits = state.getCommitsSince(lastSha);
+            return commits != null ? commits : scanned.sorted();
         }
-
-        return timedCommits;
     }
 
-    private TimedCommit parseCommit(String line) {
+    private CommitList scanAll(IGitAPI git, String singleBranch) {
+        CommitList commits = new CommitList();
+        CommitLogParser.parse(git.getAllLogEntries(singleBranch), commits);
+        return commits.sorted();
+    }
 
-        String[] lines = line.split(separator);
-        /*Line has ' in the beginning and in the end */
-        String id = lines[0].substring(1);
-        if(!lines[0].startsWith("\'")) {
-            id = lines[0];
+    private File getGitDir(IGitAPI git) {
+        try {
+            Repository repo = git.getRepository();
+            return repo == null ? null : repo.getDirectory();
+        } catch (IOException e) {
+            return null;
         }
-        String date = lines[1].substring(0, lines[1].length() - 1);
-        if(!lines[1].endsWith("\'"))
-        {
-            date = lines[1];
+    }
 
+    /**
+     * Name of the repository in the metrics: the URL it is fetched from, which is the same on every node.
+     */
+    private String repositoryName(IGitAPI git, File gitDir) {
+        try {
+            Repository repo = git.getRepository();
+            String url = repo == null ? null : repo.getConfig().getString("remote", NarrowFetcher.REMOTE, "url");
+            if (url != null) {
+                return url;
+            }
+        } catch (IOException e) {
+            // fall back to the directory
         }
-        //From seconds to milliseconds
-        return new TimedCommit(ObjectId.fromString(id),
-                               new DateTime(Long.parseLong(date) * 1000));
+        return gitDir.getPath();
     }
 
-    private class TimedCommit implements Comparable<TimedCommit> {
-
-        private ObjectId commit;
-        public DateTime when;
-
-        public TimedCommit(ObjectId c, DateTime when) {
-            this.commit = c;
-            this.when = when;
+    /**
+     * The git plugin builds the first candidate. Concurrent builds of the job each claim
+     * a different one, which is moved to the front; if all are taken, the order is kept.
+     */
+    private List<Revision> claimFirstFree(List<Revision> candidates, File gitDir, boolean isPollCall) {
+        if (isPollCall || gitDir == null || candidates.isEmpty()) {
+            return candidates;
         }
-
-        public ObjectId getCommit() {
-            return commit;
+        String scope = ClaimRegistry.scope(gitDir);
+        long now = System.currentTimeMillis();
+        ClaimRegistry claims = ClaimRegistry.getInstance();
+        for (int i = 0; i < candidates.size(); i++) {
+            if (claims.claim(scope, candidates.get(i).getSha1String(), now)) {
+                if (i > 0) {
+                    candidates.add(0, candidates.remove(i));
+                }
+                return candidates;
+            }
         }
+        return candidates;
+    }
 
-        public int compareTo(TimedCommit o) {
-            //I want newest to be first
-            int result = -(when.compareTo(o.when));
-            //If time is equal, keep order from log.
-            if(result == 0) {
-                return -1;
+    /**
+     * Candidates from the remote's patch set refs, null if they can't be listed. A build gets
+     * one patch set, which is fetched unless its commit is already in the repository.
+     */
+    private Collection<Revision> narrowCandidates(boolean isPollCall, IGitAPI git, TaskListener listener,
+                                                  Revision last) {
+        Repository repo;
+        try {
+            repo = git.getRepository();
+        } catch (IOException e) {
+            return null;
+        }
+        if (repo == null) {
+            return null;
+        }
+        File gitDir = repo.getDirectory();
+        SortedMap<String, String> listing;
+        try {
+            listing = NarrowFetcher.listChanges(repo, NarrowFetcher.REMOTE);
+        } catch (IOException e) {
+            listener.getLogger().println("Listing changes of " + NarrowFetcher.REMOTE
+                    + " failed, scanning the repository instead: " + e.getMessage());
+            return null;
+        }
+        List<String> pending = NarrowFetcher.pending(gitDir, listing, skipSuperseded);
+        ArrayList<Revision> revs = new ArrayList<Revision>();
+        if (isPollCall) {
+            for (String ref : pending) {
+                addToRevs(revs, ObjectId.fromString(listing.get(ref)));
+            }
+            return revs;
+        }
+        String scope = ClaimRegistry.scope(gitDir);
+        ClaimRegistry claims = ClaimRegistry.getInstance();
+        for (String ref : pending) {
+            String sha = listing.get(ref);
+            if (!claims.claim(scope, sha, System.currentTimeMillis())) {
+                continue;
+            }
+            ObjectId id = ObjectId.fromString(sha);
+            if (!repo.hasObject(id)) {
+                listener.getLogger().println("Fetching " + ref);
+                try {
+                    git.fetch(NarrowFetcher.REMOTE, "+" + ref + ":" + ref);
+                } catch (GitException e) {
+                    claims.release(scope, sha);
+                    throw e;
+                }
             }
-            return result;
+            NarrowFetcher.select(gitDir, ref, sha);
+            addToRevs(revs, id);
+            return revs;
+        }
+        if (last != null) {
+            return Collections.singletonList(last);
+        }
+        return revs;
+    }
+
+    private Map<String, Ref> readAllRefs(IGitAPI git) {
+        try {
+            return git.getRepository().getAllRefs();
+        } catch (IOException e) {
+            return null;
         }
     }
 
+    private void addToRevs(ArrayList<Revision> revs, ObjectId commit) {
+        Revision rev = new Revision(commit);
+        rev.getBranches().add(new Branch("timebased", rev.getSha1()));
+        revs.add(rev);
+    }
+
     @Extension
     public static final class DescriptorImpl extends BuildChooserDescriptor {
         @Override
@@ -0,0 +1,73 @@
+package hudson.plugins.gerrit.buildchoosers;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.model.AbstractBuild;
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.Revision;
+import hudson.plugins.git.util.BuildChooser;
+import hudson.plugins.git.util.BuildData;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tells {@link NarrowFetcher}, on the node that has the workspace, which patch set a finished
+ * build used. An aborted build, or one that never got to record its revision, used none.
+ */
+@Extension
+public class NarrowFetchListener extends RunListener<AbstractBuild> {
+
+    private static final Logger logger = Logger.getLogger(NarrowFetchListener.class.getName());
+
+    public NarrowFetchListener() {
+        super(AbstractBuild.class);
+    }
+
+    @Override
+    public void onCompleted(AbstractBuild build, TaskListener listener) {
+        if (!(build.getProject().getScm() instanceof GitSCM)) {
+            return;
+        }
+        BuildChooser chooser = ((GitSCM) build.getProject().getScm()).getBuildChooser();
+        if (!(chooser instanceof GerritBuildChooser) || !((GerritBuildChooser) chooser).isNarrowFetch()) {
+            return;
+        }
+        FilePath workspace = build.getWorkspace();
+        if (workspace == null) {
+            return;
+        }
+        BuildData data = (BuildData) build.getAction(BuildData.class);
+        Revision revision = data == null ? null : data.getLastBuiltRevision();
+        boolean built = revision != null && build.getResult() != Result.ABORTED;
+        try {
+            workspace.act(new Settle(revision == null ? null : revision.getSha1String(), built));
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to settle the patch set of " + build, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static class Settle implements FileCallable<Void> {
+        private final String sha;
+        private final boolean built;
+
+        Settle(String sha, boolean built) {
+            this.sha = sha;
+            this.built = built;
+        }
+
+        public Void invoke(File workspace, VirtualChannel channel) {
+            NarrowFetcher.settle(workspace, sha, built);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package hudson.plugins.gerrit.buildchoosers;
+
+import org.spearce.jgit.lib.Ref;
+import org.spearce.jgit.lib.Repository;
+import org.spearce.jgit.transport.FetchConnection;
+import org.spearce.jgit.transport.Transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Finds new patch sets from the remote's ref listing alone, so a job only has to fetch the
+ * one change it builds instead of all of <tt>refs/changes/*</tt>.
+ *
+ * A patch set ref handed out for building is only selected until the build has used it; then it
+ * is remembered as handled per repository, in memory and next to the repository. A build that
+ * is aborted or never finishes leaves its patch set pending. Fetched refs stay in the repository,
+ * so a patch set that is built again doesn't have to be fetched again.
+ */
+public class NarrowFetcher {
+
+    public static final String REMOTE = "origin";
+
+    static final String FILE_NAME = "hudson-gerrit-fetched";
+
+    /* Handled refs are appended to the file; it is rewritten once this many were appended or went away */
+    static final int COMPACT_THRESHOLD = 256;
+
+    private static final Map<File, RefSnapshot> handled = new HashMap<File, RefSnapshot>();
+    private static final Map<File, Integer> appended = new HashMap<File, Integer>();
+    /* Per repository, the ref of every commit selected for a build that hasn't finished yet */
+    private static final Map<File, Map<String, String>> selected = new HashMap<File, Map<String, String>>();
+
+    /**
+     * Lists the patch set refs of remote without fetching anything.
+     */
+    public static SortedMap<String, String> listChanges(Repository repo, String remote) throws IOException {
+        Transport transport;
+        try {
+            transport = Transport.open(repo, remote);
+        } catch (URISyntaxException e) {
+            IOException ioe = new IOException("Invalid URL for " + remote + ": " + e.getMessage());
+            ioe.initCause(e);
+            throw ioe;
+        }
+        try {
+            FetchConnection connection = transport.openFetch();
+            try {
+                SortedMap<String, String> changes = new TreeMap<String, String>();
+                for (Ref ref : connection.getRefs()) {
+                    if (ref.getObjectId() != null && PatchSetIndex.parse(ref.getName()) != null) {
+                        changes.put(ref.getName(), ref.getObjectId().name());
+                    }
+                }
+                return changes;
+            } finally {
+                connection.close();
+            }
+        } finally {
+            transport.close();
+        }
+    }
+
+    /**
+     * Patch set refs of listing that haven't been handed out yet, oldest change and patch set first.
+     * The first time nothing has been handed out, everything but the newest patch set is taken as done.
+     * Refs selected for a build that still holds its claim aren't pending either.
+     */
+    public static List<String> pending(File gitDir, SortedMap<String, String> listing, boolean skipSuperseded) {
+        RefSnapshot done;
+        synchronized (handled) {
+            done = getHandled(gitDir);
+            if (done == null) {
+                done = baseline(listing);
+                setHandled(gitDir, done);
+            } else if (needsCompaction(new File(gitDir, FILE_NAME), done, listing)) {
+                done = done.retain(listing.keySet());
+                setHandled(gitDir, done);
+            }
+            Map<String, String> refs = selected.get(gitDir);
+            if (refs != null) {
+                String scope = ClaimRegistry.scope(gitDir);
+                long now = System.currentTimeMillis();
+                for (Iterator<Map.Entry<String, String>> i = refs.entrySet().iterator(); i.hasNext();) {
+                    Map.Entry<String, String> ref = i.next();
+                    if (ClaimRegistry.getInstance().isClaimed(scope, ref.getKey(), now)) {
+                        done = done.with(ref.getValue(), ref.getKey());
+                    } else {
+                        i.remove();
+                    }
+                }
+            }
+        }
+        return pending(listing, done, skipSuperseded);
+    }
+
+    /**
+     * True if enough refs were appended to the file, or enough of its refs are gone from listing,
+     * to rewrite it with only the refs that still exist.
+     */
+    private static boolean needsCompaction(File file, RefSnapshot done, SortedMap<String, String> listing) {
+        Integer count = appended.get(file);
+        if (count != null && count >= COMPACT_THRESHOLD) {
+            return true;
+        }
+        if (done.size() < COMPACT_THRESHOLD) {
+            return false;
+        }
+        int present = 0;
+        for (String ref : listing.keySet()) {
+            if (done.get(ref) != null) {
+                present++;
+            }
+        }
+        return done.size() - present >= COMPACT_THRESHOLD;
+    }
+
+    static List<String> pending(SortedMap<String, String> listing, RefSnapshot done, boolean skipSuperseded) {
+        PatchSetIndex index = new PatchSetIndex();
+        for (Map.Entry<String, String> ref : listing.entrySet()) {
+            index.add(ref.getKey(), ref.getValue());
+        }
+        List<String> pending = new ArrayList<String>();
+        for (Map.Entry<String, String> ref : listing.entrySet()) {
+            if (ref.getValue().equals(done.get(ref.getKey()))) {
+                continue;
+            }
+            int[] patchSet = PatchSetIndex.parse(ref.getKey());
+            if (skipSuperseded && patchSet[1] < index.getLatestPatchSet(patchSet[0])) {
+                continue;
+            }
+            pending.add(ref.getKey());
+        }
+        Collections.sort(pending, new Comparator<String>() {
+            public int compare(String a, String b) {
+                int[] x = PatchSetIndex.parse(a);
+                int[] y = PatchSetIndex.parse(b);
+                if (x[0] != y[0]) {
+                    return x[0] < y[0] ? -1 : 1;
+                }
+                return x[1] < y[1] ? -1 : x[1] == y[1] ? 0 : 1;
+            }
+        });
+        return pending;
+    }
+
+    /**
+     * Notes that ref was handed out for building at sha. It becomes handled once {@link #settle}
+     * is told the build used it.
+     */
+    public static void select(File gitDir, String ref, String sha) {
+        synchronized (handled) {
+            Map<String, String> refs = selected.get(gitDir);
+            if (refs == null) {
+                refs = new HashMap<String, String>();
+                selected.put(gitDir, refs);
+            }
+            refs.put(sha, ref);
+        }
+    }
+
+    /**
+     * Settles the refs selected for the build in workspace: the one at sha is handled if built
+     * is true, the others are released so another build can take them.
+     */
+    public static void settle(File workspace, String sha, boolean built) {
+        String prefix = workspace.getAbsolutePath() + File.separator;
+        synchronized (handled) {
+            for (Iterator<Map.Entry<File, Map<String, String>>> i = selected.entrySet().iterator(); i.hasNext();) {
+                Map.Entry<File, Map<String, String>> repository = i.next();
+                File gitDir = repository.getKey();
+                if (!gitDir.getAbsolutePath().startsWith(prefix)) {
+                    continue;
+                }
+                for (Map.Entry<String, String> ref : repository.getValue().entrySet()) {
+                    if (built && ref.getKey().equals(sha)) {
+                        markHandled(gitDir, ref.getValue(), sha);
+                    } else {
+                        ClaimRegistry.getInstance().release(ClaimRegistry.scope(gitDir), ref.getKey());
+                    }
+                }
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Remembers that a build used ref at sha. Only the ref is added to the file.
+     */
+    public static void markHandled(File gitDir, String ref, String sha) {
+        synchronized (handled) {
+            RefSnapshot done = getHandled(gitDir);
+            if (done == null) {
+                setHandled(gitDir, new RefSnapshot(null, new TreeMap<String, String>()).with(ref, sha));
+            } else if (!sha.equals(done.get(ref))) {
+                File file = new File(gitDir, FILE_NAME);
+                handled.put(file, done.with(ref, sha));
+                RefSnapshot.append(file, ref, sha);
+                Integer count = appended.get(file);
+                appended.put(file, count == null ? 1 : count + 1);
+            }
+        }
+    }
+
+    static RefSnapshot baseline(SortedMap<String, String> listing) {
+        SortedMap<String, String> done = new TreeMap<String, String>(listing);
+        String newest = null;
+        int[] newestPatchSet = null;
+        for (String ref : listing.keySet()) {
+            int[] patchSet = PatchSetIndex.parse(ref);
+            if (newestPatchSet == null || patchSet[0] > newestPatchSet[0]
+                    || patchSet[0] == newestPatchSet[0] && patchSet[1] > newestPatchSet[1]) {
+                newest = ref;
+                newestPatchSet = patchSet;
+            }
+        }
+        if (newest != null) {
+            done.remove(newest);
+        }
+        return new RefSnapshot(null, done);
+    }
+
+    private static RefSnapshot getHandled(File gitDir) {
+        File file = new File(gitDir, FILE_NAME);
+        if (!handled.containsKey(file)) {
+            handled.put(file, RefSnapshot.read(file));
+        }
+        return handled.get(file);
+    }
+
+    private static void setHandled(File gitDir, RefSnapshot done) {
+        File file = new File(gitDir, FILE_NAME);
+        handled.put(file, done);
+        appended.remove(file);
+        done.write(file);
+    }
+}
@@ -0,0 +1,110 @@
+package hudson.plugins.gerrit.buildchoosers;
+
+import org.spearce.jgit.lib.Ref;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The newest patch set of every change, read from <tt>refs/changes/NN/CHANGE/PATCHSET</tt> ref names.
+ *
+ * A commit is superseded if every patch set it was uploaded as has a newer patch set in the
+ * same change. Commits that aren't a patch set at all are never superseded.
+ */
+public class PatchSetIndex {
+
+    static final String CHANGES = "refs/changes/";
+
+    private final Map<Integer, Integer> latest = new HashMap<Integer, Integer>();
+    /* Commit to the change and patch set numbers it was uploaded as, in pairs. */
+    private final Map<String, int[]> patchSets = new HashMap<String, int[]>();
+
+    public static PatchSetIndex of(Map<String, Ref> refs) {
+        PatchSetIndex index = new PatchSetIndex();
+        for (Ref ref : refs.values()) {
+            if (ref.getObjectId() != null) {
+                index.add(ref.getName(), ref.getObjectId().name());
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns change and patch set number of a patch set ref, or null for any other ref.
+     */
+    static int[] parse(String refName) {
+        if (!refName.startsWith(CHANGES)) {
+            return null;
+        }
+        int shard = refName.indexOf('/', CHANGES.length());
+        int change = shard < 0 ? -1 : refName.indexOf('/', shard + 1);
+        if (change < 0) {
+            return null;
+        }
+        int changeNumber = parseNumber(refName, shard + 1, change);
+        int patchSetNumber = parseNumber(refName, change + 1, refName.length());
+        if (changeNumber < 0 || patchSetNumber < 0) {
+            return null;
+        }
+        return new int[]{changeNumber, patchSetNumber};
+    }
+
+    /* Non-negative decimal number, -1 if there is anything else in between. */
+    private static int parseNumber(String s, int start, int end) {
+        if (start >= end || end - start > 9) {
+            return -1;
+        }
+        int n = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            n = n * 10 + (c - '0');
+        }
+        return n;
+    }
+
+    public void add(String refName, String sha) {
+        int[] parsed = parse(refName);
+        if (parsed == null) {
+            return;
+        }
+        Integer newest = latest.get(parsed[0]);
+        if (newest == null || newest < parsed[1]) {
+            latest.put(parsed[0], parsed[1]);
+        }
+        int[] known = patchSets.get(sha);
+        if (known == null) {
+            patchSets.put(sha, parsed);
+        } else {
+            int[] more = new int[known.length + 2];
+            System.arraycopy(known, 0, more, 0, known.length);
+            more[known.length] = parsed[0];
+            more[known.length + 1] = parsed[1];
+            patchSets.put(sha, more);
+        }
+    }
+
+    public int getLatestPatchSet(int change) {
+        Integer newest = latest.get(change);
+        return newest == null ? -1 : newest;
+    }
+
+    public int size() {
+        return latest.size();
+    }
+
+    public boolean isSuperseded(String sha) {
+        int[] uploads = patchSets.get(sha);
+        if (uploads == null) {
+            return false;
+        }
+        for (int i = 0; i < uploads.length; i += 2) {
+            if (uploads[i + 1] >= latest.get(uploads[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
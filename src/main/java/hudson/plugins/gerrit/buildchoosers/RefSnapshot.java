@@ -0,0 +1,249 @@
+package hudson.plugins.gerrit.buildchoosers;
+
+import org.spearce.jgit.lib.Ref;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Every ref of a repository and the commit it points to, together with the last built commit.
+ *
+ * A poll has nothing to build if neither changed since a poll that found nothing, so the
+ * snapshot of that poll is remembered per repository, in memory and next to the repository.
+ * Snapshots are compared by a SHA-1 digest of their contents.
+ */
+public class RefSnapshot {
+
+    static final String FILE_NAME = "hudson-gerrit-refs";
+
+    private static final Logger logger = Logger.getLogger(RefSnapshot.class.getName());
+    private static final int MAGIC = 0x47435231;
+    private static final Map<File, RefSnapshot> quiet = new HashMap<File, RefSnapshot>();
+
+    private final String lastBuilt;
+    private final SortedMap<String, String> refs;
+    private final byte[] digest;
+
+    RefSnapshot(String lastBuilt, SortedMap<String, String> refs) {
+        this.lastBuilt = lastBuilt;
+        this.refs = refs;
+        this.digest = digest(lastBuilt, refs);
+    }
+
+    public static RefSnapshot of(Map<String, Ref> refs, String lastBuilt) {
+        SortedMap<String, String> ids = new TreeMap<String, String>();
+        for (Ref ref : refs.values()) {
+            if (ref.getObjectId() != null) {
+                ids.put(ref.getName(), ref.getObjectId().name());
+            }
+        }
+        return new RefSnapshot(lastBuilt, ids);
+    }
+
+    /**
+     * Returns the snapshot of the last poll that found nothing to build, or null.
+     */
+    public static RefSnapshot getQuiet(File gitDir) {
+        File file = new File(gitDir, FILE_NAME);
+        synchronized (quiet) {
+            if (!quiet.containsKey(file)) {
+                quiet.put(file, read(file));
+            }
+            return quiet.get(file);
+        }
+    }
+
+    public static void setQuiet(File gitDir, RefSnapshot snapshot) {
+        File file = new File(gitDir, FILE_NAME);
+        synchronized (quiet) {
+            RefSnapshot old = quiet.put(file, snapshot);
+            if (!snapshot.sameAs(old)) {
+                snapshot.write(file);
+            }
+        }
+    }
+
+    public boolean sameAs(RefSnapshot other) {
+        return other != null && Arrays.equals(digest, other.digest);
+    }
+
+    /**
+     * Names of refs that were added, removed or moved since other was taken.
+     */
+    public SortedMap<String, String> changedSince(RefSnapshot other) {
+        SortedMap<String, String> changed = new TreeMap<String, String>();
+        TreeSet<String> names = new TreeSet<String>(refs.keySet());
+        if (other != null) {
+            names.addAll(other.refs.keySet());
+        }
+        for (String name : names) {
+            String now = refs.get(name);
+            String then = other == null ? null : other.refs.get(name);
+            if (now == null ? then != null : !now.equals(then)) {
+                changed.put(name, now);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Commit the ref points to, or null.
+     */
+    public String get(String ref) {
+        return refs.get(ref);
+    }
+
+    /**
+     * Returns a copy with ref pointing to sha.
+     */
+    public RefSnapshot with(String ref, String sha) {
+        SortedMap<String, String> copy = new TreeMap<String, String>(refs);
+        copy.put(ref, sha);
+        return new RefSnapshot(lastBuilt, copy);
+    }
+
+    /**
+     * Returns a copy with only the refs named in names.
+     */
+    public RefSnapshot retain(Set<String> names) {
+        SortedMap<String, String> copy = new TreeMap<String, String>(refs);
+        copy.keySet().retainAll(names);
+        return new RefSnapshot(lastBuilt, copy);
+    }
+
+    public String getLastBuilt() {
+        return lastBuilt;
+    }
+
+    public int size() {
+        return refs.size();
+    }
+
+    private static byte[] digest(String lastBuilt, SortedMap<String, String> refs) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(String.valueOf(lastBuilt).getBytes("UTF-8"));
+            for (Map.Entry<String, String> ref : refs.entrySet()) {
+                md.update((byte) '\n');
+                md.update(ref.getValue().getBytes("UTF-8"));
+                md.update((byte) ' ');
+                md.update(ref.getKey().getBytes("UTF-8"));
+            }
+            return md.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads a snapshot written by {@link #write} and the refs {@link #append}ed to it since, null if there is none or it can't be read.
+     */
+    static RefSnapshot read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a ref snapshot file");
+            }
+            String lastBuilt = in.readUTF();
+            int size = in.readInt();
+            SortedMap<String, String> refs = new TreeMap<String, String>();
+            for (int i = 0; i < size; i++) {
+                String name = in.readUTF();
+                refs.put(name, in.readUTF());
+            }
+            while (true) {
+                try {
+                    String name = in.readUTF();
+                    refs.put(name, in.readUTF());
+                } catch (EOFException e) {
+                    // End of the appended refs, or one that was never completely written
+                    break;
+                }
+            }
+            return new RefSnapshot(lastBuilt, refs);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read " + file + ", ignoring it", e);
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    void write(File file) {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeUTF(String.valueOf(lastBuilt));
+            out.writeInt(refs.size());
+            for (Map.Entry<String, String> ref : refs.entrySet()) {
+                out.writeUTF(ref.getKey());
+                out.writeUTF(ref.getValue());
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+                throw new IOException("Failed to rename " + tmp + " to " + file);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to save " + file, e);
+        } finally {
+            close(out);
+        }
+    }
+
+    /**
+     * Adds ref pointing to sha to the snapshot in file without rewriting the refs already there.
+     */
+    static void append(File file, String ref, String sha) {
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            out.writeUTF(ref);
+            out.writeUTF(sha);
+            out.close();
+            out = null;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to save " + file, e);
+        } finally {
+            close(out);
+        }
+    }
+
+    private static void close(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
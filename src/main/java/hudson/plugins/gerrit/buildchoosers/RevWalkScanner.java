@@ -0,0 +1,107 @@
+package hudson.plugins.gerrit.buildchoosers;
+
+import hudson.plugins.gerrit.git.RepositoryCache;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Lists candidate commits in-process with JGit instead of forking git log.
+ *
+ * Walks from the tips of every ref under the given prefix in commit time order, newest first,
+ * and stops as soon as it reaches the last built commit. A poll may walk only from the refs
+ * that changed since an earlier poll.
+ */
+public class RevWalkScanner {
+
+    public static final String CHANGES = "refs/changes/";
+
+    /**
+     * Returns ref prefix to start from for a branch spec like <tt>refs/changes/*</tt>.
+     * Anything else means every ref, like git log --all.
+     */
+    public static String refPrefix(String singleBranch) {
+        if (singleBranch != null && singleBranch.startsWith(Constants.R_REFS) && singleBranch.endsWith("*")) {
+            return singleBranch.substring(0, singleBranch.length() - 1);
+        }
+        return Constants.R_REFS;
+    }
+
+    /**
+     * Returns commits newest first, up to and including lastSha if it was found.
+     * The repository is kept open in the {@link RepositoryCache} between polls.
+     */
+    public static CommitList scan(File gitDir, String refPrefix, int[] lastSha) throws IOException {
+        return scan(gitDir, refPrefix, lastSha, null);
+    }
+
+    /**
+     * Like {@link #scan(File, String, int[])}, but walks only from the refs named in onlyRefs,
+     * all refs if it is null. The walk then also starts at lastSha, so it still stops there
+     * when the refs don't lead to it.
+     */
+    public static CommitList scan(File gitDir, final String refPrefix, final int[] lastSha, final Set<String> onlyRefs)
+            throws IOException {
+        return RepositoryCache.getInstance().withRepository(gitDir, new RepositoryCache.RepositoryCallable<CommitList>() {
+            public CommitList invoke(Repository repo) throws IOException {
+                return scan(repo, refPrefix, lastSha, onlyRefs);
+            }
+        });
+    }
+
+    private static CommitList scan(Repository repo, String refPrefix, int[] lastSha, Set<String> onlyRefs)
+            throws IOException {
+        RevWalk walk = new RevWalk(repo);
+        try {
+            walk.sort(RevSort.COMMIT_TIME_DESC);
+            if (onlyRefs != null && lastSha != null) {
+                try {
+                    walk.markStart(walk.parseCommit(ObjectId.fromRaw(lastSha)));
+                } catch (IOException e) {
+                    // Not in the repository any more, walk the refs alone
+                }
+            }
+            for (Ref ref : repo.getAllRefs().values()) {
+                if (!ref.getName().startsWith(refPrefix) || ref.getObjectId() == null
+                        || onlyRefs != null && !onlyRefs.contains(ref.getName())) {
+                    continue;
+                }
+                RevCommit tip;
+                try {
+                    tip = walk.parseCommit(ref.getObjectId());
+                } catch (IOException e) {
+                    // Tags pointing to trees or blobs, missing objects
+                    continue;
+                }
+                walk.markStart(tip);
+            }
+            CommitList commits = new CommitList();
+            byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+            int[] sha = new int[CommitList.WORDS];
+            RevCommit c;
+            while ((c = walk.next()) != null) {
+                c.copyRawTo(raw, 0);
+                for (int w = 0; w < sha.length; w++) {
+                    int p = w * 4;
+                    sha[w] = (raw[p] & 0xff) << 24 | (raw[p + 1] & 0xff) << 16
+                            | (raw[p + 2] & 0xff) << 8 | (raw[p + 3] & 0xff);
+                }
+                commits.add(sha, 0, c.getCommitTime());
+                if (lastSha != null && commits.matches(commits.size() - 1, lastSha)) {
+                    break;
+                }
+            }
+            return commits;
+        } finally {
+            walk.dispose();
+        }
+    }
+}
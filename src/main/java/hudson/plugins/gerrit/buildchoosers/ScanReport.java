@@ -0,0 +1,70 @@
+package hudson.plugins.gerrit.buildchoosers;
+
+import hudson.plugins.gerrit.metrics.GerritMetrics;
+import hudson.plugins.gerrit.metrics.ScanStats;
+import hudson.remoting.Callable;
+import hudson.remoting.Channel;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Metrics of one scan by the chooser. The git plugin runs the chooser on the node that has the
+ * workspace, so the report is sent to the master and recorded in its {@link GerritMetrics}.
+ */
+final class ScanReport implements Callable<Void, RuntimeException> {
+
+    private static final long serialVersionUID = 1L;
+    private static final Logger logger = Logger.getLogger(ScanReport.class.getName());
+
+    private final String repository;
+    private final boolean skipped;
+    private final int size;
+    private final int candidates;
+    private final long nanos;
+
+    private ScanReport(String repository, boolean skipped, int size, int candidates, long nanos) {
+        this.repository = repository;
+        this.skipped = skipped;
+        this.size = size;
+        this.candidates = candidates;
+        this.nanos = nanos;
+    }
+
+    static ScanReport skipped(String repository) {
+        return new ScanReport(repository, true, 0, 0, 0);
+    }
+
+    static ScanReport scanned(String repository, int size, int candidates, long nanos) {
+        return new ScanReport(repository, false, size, candidates, nanos);
+    }
+
+    public Void call() {
+        ScanStats stats = GerritMetrics.getInstance().getScan(repository);
+        if (skipped) {
+            stats.recordSkipped();
+        } else {
+            stats.recordScan(size, candidates, nanos);
+        }
+        return null;
+    }
+
+    /**
+     * Records the report on the master, right here if this is the master.
+     */
+    void send() {
+        Channel channel = Channel.current();
+        if (channel == null) {
+            call();
+            return;
+        }
+        try {
+            channel.call(this);
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Failed to report a scan of " + repository + " to the master", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package hudson.plugins.gerrit.buildchoosers;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * What the chooser has already scanned from a repository: every commit seen so far, ordered
+ * by commit time, and the watermark, the newest commit time among them.
+ *
+ * The commits are kept in a {@link CommitIndex} next to the repository, so later polls only
+ * have to ask git for commits at or after the watermark, and only the commits they look at
+ * are read into memory.
+ */
+public class ScanState {
+
+    /** Everything is rescanned now and then to forget commits that are no longer reachable. */
+    public static final long FULL_SCAN_INTERVAL = 60 * 60 * 1000L;
+
+    static final String FILE_NAME = "hudson-gerrit-chooser";
+
+    private static final Logger logger = Logger.getLogger(ScanState.class.getName());
+    private static final Map<File, ScanState> states = new HashMap<File, ScanState>();
+
+    private final File file;
+    private CommitIndex index;
+    /* Last commit looked up by sha and its time, so it's found by time next poll. */
+    private int[] lookedUp;
+    private long lookedUpTime;
+
+    private ScanState(File file, CommitIndex index) {
+        this.file = file;
+        this.index = index;
+    }
+
+    /**
+     * Returns the state for given git directory, loading it from disk if needed.
+     */
+    public static ScanState get(File gitDir) {
+        File file = new File(gitDir, FILE_NAME);
+        synchronized (states) {
+            ScanState state = states.get(file);
+            if (state == null) {
+                state = load(file);
+                states.put(file, state);
+            }
+            return state;
+        }
+    }
+
+    public synchronized boolean needsFullScan(long now) {
+        if (index == null) {
+            return true;
+        }
+        long lastFullScan = index.getLastFullScan();
+        return now - lastFullScan > FULL_SCAN_INTERVAL || now < lastFullScan;
+    }
+
+    /**
+     * Commits scanned so far, newest first. This copies all of them into memory.
+     */
+    public synchronized CommitList getCommits() {
+        return index == null ? null : index.newestFirst(0);
+    }
+
+    /**
+     * Commits newer than sha, newest first, followed by sha itself. Everything if sha isn't known.
+     */
+    public synchronized CommitList getCommitsSince(int[] sha) {
+        if (index == null) {
+            return null;
+        }
+        int from = sha == null ? -1 : find(sha);
+        return index.newestFirst(from < 0 ? 0 : from);
+    }
+
+    /**
+     * Commit time of sha in seconds, -1 if it hasn't been seen.
+     */
+    public synchronized long getTime(int[] sha) {
+        int i = index == null ? -1 : find(sha);
+        return i < 0 ? -1 : index.getTime(i);
+    }
+
+    /* Index of sha, -1 if it hasn't been seen. Only a commit not looked up before is searched for everywhere. */
+    private int find(int[] sha) {
+        if (Arrays.equals(sha, lookedUp)) {
+            int i = index.indexOf(sha, lookedUpTime);
+            if (i >= 0) {
+                return i;
+            }
+        }
+        int i = index.lastIndexOf(sha, 0);
+        if (i >= 0) {
+            lookedUp = sha.clone();
+            lookedUpTime = index.getTime(i);
+        }
+        return i;
+    }
+
+    /**
+     * Newest commit time seen so far, in seconds.
+     */
+    public synchronized long getWatermark() {
+        return index == null || index.size() == 0 ? 0 : index.getTime(index.size() - 1);
+    }
+
+    public synchronized void replace(CommitList scanned, long now) {
+        CommitList sorted = scanned.sorted();
+        try {
+            if (index == null) {
+                index = CommitIndex.create(file, sorted, now);
+            } else {
+                index.replace(sorted, now);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to save " + file, e);
+            discard();
+        }
+    }
+
+    /**
+     * Adds commits found by a scan of everything at or after since. Commits already known are skipped.
+     */
+    public synchronized void merge(CommitList scanned, long since) {
+        if (index == null) {
+            return;
+        }
+        CommitList fresh = new CommitList(Math.max(1, scanned.size()));
+        int[] sha = new int[CommitList.WORDS];
+        for (int i = 0; i < scanned.size(); i++) {
+            scanned.copySha(i, sha, 0);
+            if (index.indexOf(sha, scanned.getTime(i)) < 0) {
+                fresh.add(sha, 0, scanned.getTime(i));
+            }
+        }
+        if (fresh.size() > 0) {
+            try {
+                index.insert(fresh.sorted());
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to save " + file, e);
+                discard();
+            }
+        }
+    }
+
+    /* Forgets the index, the next poll scans everything. */
+    private void discard() {
+        if (index != null) {
+            try {
+                index.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            index = null;
+        }
+    }
+
+    private static ScanState load(File file) {
+        try {
+            return new ScanState(file, CommitIndex.open(file));
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read " + file + ", scanning everything", e);
+            return new ScanState(file, null);
+        }
+    }
+}
@@ -45,14 +45,15 @@ public class GitTools {
              throw new IllegalArgumentException("Failed to find GIT_HOME in "
                      + workspace.getAbsolutePath() + File.separatorChar + gitHome);
          }
-         Repository repo = getRepository(git_home_directory);
-         if (repo == null) {
+         ObjectId head;
+         try {
+             head = RepositoryCache.getInstance().getHead(git_home_directory);
+         } catch (IOException e) {
              throw new IllegalArgumentException("Failed to read repository from "
-                     + git_home_directory.getAbsolutePath());
+                     + git_home_directory.getAbsolutePath(), e);
          }
-         ObjectId head = getHead(repo);
          if (head == null) {
-            throw new IllegalArgumentException("HEAD is null for " + repo.getDirectory().getAbsolutePath()
+            throw new IllegalArgumentException("HEAD is null for " + git_home_directory.getAbsolutePath()
                      + ", are you sure that you're using git?");
          }
          return head;
@@ -0,0 +1,270 @@
+package hudson.plugins.gerrit.git;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps JGit repositories open between builds, one per canonical git directory.
+ *
+ * At most {@link #getMaxSize()} repositories are kept, least recently used ones are closed
+ * first, and repositories unused for {@link #getIdleTimeout()} milliseconds are closed too.
+ *
+ * HEAD is only resolved again when <tt>HEAD</tt>, the ref it points to or <tt>packed-refs</tt>
+ * has changed on disk. Files modified within {@link #RACY_WINDOW} milliseconds of the check are
+ * never trusted, as file systems with coarse timestamps can't tell two quick writes apart.
+ */
+public class RepositoryCache {
+
+    public static final int DEFAULT_MAX_SIZE = 32;
+    public static final long DEFAULT_IDLE_TIMEOUT = 10 * 60 * 1000L;
+    static final long RACY_WINDOW = 2500;
+
+    private static final String SYMREF = "ref: ";
+    private static final RepositoryCache instance = new RepositoryCache(DEFAULT_MAX_SIZE, DEFAULT_IDLE_TIMEOUT);
+
+    private final LinkedHashMap<File, Entry> entries = new LinkedHashMap<File, Entry>(16, 0.75f, true);
+    private final int maxSize;
+    private final long idleTimeout;
+
+    public RepositoryCache(int maxSize, long idleTimeout) {
+        this.maxSize = maxSize;
+        this.idleTimeout = idleTimeout;
+    }
+
+    public static RepositoryCache getInstance() {
+        return instance;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns HEAD of the repository in gitDir, or null if it can't be resolved.
+     */
+    public ObjectId getHead(File gitDir) throws IOException {
+        Entry entry = acquire(gitDir.getCanonicalFile());
+        try {
+            return entry.readHead();
+        } finally {
+            release(entry);
+        }
+    }
+
+    /**
+     * Runs callable with the repository in gitDir. The repository stays open afterwards and may be
+     * used by other threads at the same time, so callable must not close it.
+     */
+    public <T> T withRepository(File gitDir, RepositoryCallable<T> callable) throws IOException {
+        Entry entry = acquire(gitDir.getCanonicalFile());
+        try {
+            return callable.invoke(entry.repo);
+        } finally {
+            release(entry);
+        }
+    }
+
+    /**
+     * Work done with a cached repository.
+     */
+    public interface RepositoryCallable<T> {
+        T invoke(Repository repo) throws IOException;
+    }
+
+    /**
+     * Closes repositories that haven't been used for the idle timeout.
+     */
+    public void evictIdle() {
+        long deadline = System.currentTimeMillis() - idleTimeout;
+        List<Entry> evicted = new ArrayList<Entry>();
+        synchronized (this) {
+            Iterator<Entry> i = entries.values().iterator();
+            while (i.hasNext()) {
+                Entry entry = i.next();
+                if (entry.lastUsed < deadline) {
+                    i.remove();
+                    entry.evicted = true;
+                    evicted.add(entry);
+                }
+            }
+        }
+        closeUnused(evicted);
+    }
+
+    public void clear() {
+        List<Entry> evicted;
+        synchronized (this) {
+            evicted = new ArrayList<Entry>(entries.values());
+            for (Entry entry : evicted) {
+                entry.evicted = true;
+            }
+            entries.clear();
+        }
+        closeUnused(evicted);
+    }
+
+    private Entry acquire(File gitDir) throws IOException {
+        List<Entry> evicted = new ArrayList<Entry>();
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(gitDir);
+            if (entry == null) {
+                entry = new Entry(gitDir, new Repository(gitDir));
+                entries.put(gitDir, entry);
+                Iterator<Entry> i = entries.values().iterator();
+                while (entries.size() > maxSize && i.hasNext()) {
+                    Entry eldest = i.next();
+                    i.remove();
+                    eldest.evicted = true;
+                    evicted.add(eldest);
+                }
+            }
+            entry.users++;
+            entry.lastUsed = System.currentTimeMillis();
+        }
+        closeUnused(evicted);
+        evictIdle();
+        return entry;
+    }
+
+    private void release(Entry entry) {
+        boolean close;
+        synchronized (this) {
+            entry.users--;
+            close = entry.evicted && entry.users == 0;
+        }
+        if (close) {
+            entry.repo.close();
+        }
+    }
+
+    private void closeUnused(List<Entry> evicted) {
+        for (Entry entry : evicted) {
+            boolean close;
+            synchronized (this) {
+                close = entry.users == 0;
+            }
+            if (close) {
+                entry.repo.close();
+            }
+        }
+    }
+
+    private static class Entry {
+        final File gitDir;
+        final Repository repo;
+        // guarded by RepositoryCache.this
+        int users;
+        long lastUsed;
+        boolean evicted;
+
+        // guarded by this
+        private ObjectId head;
+        private Stamp headStamp;
+        private Stamp refStamp;
+        private Stamp packedRefsStamp;
+
+        Entry(File gitDir, Repository repo) {
+            this.gitDir = gitDir;
+            this.repo = repo;
+        }
+
+        synchronized ObjectId readHead() throws IOException {
+            long now = System.currentTimeMillis();
+            File headFile = new File(gitDir, Constants.HEAD);
+            File packedRefs = new File(gitDir, "packed-refs");
+            Stamp currentHead = Stamp.of(headFile);
+            if (head != null && currentHead.equals(headStamp)
+                    && Stamp.of(packedRefs).equals(packedRefsStamp)
+                    && (refStamp == null || Stamp.of(refStamp.file).equals(refStamp))) {
+                return head;
+            }
+
+            String target = readSymbolicRef(headFile);
+            Stamp currentRef = target == null ? null : Stamp.of(new File(gitDir, target));
+            Stamp currentPackedRefs = Stamp.of(packedRefs);
+            ObjectId resolved = repo.resolve(Constants.HEAD);
+
+            headStamp = currentHead;
+            refStamp = currentRef;
+            packedRefsStamp = currentPackedRefs;
+            boolean racy = currentHead.isRacy(now) || currentPackedRefs.isRacy(now)
+                    || (currentRef != null && currentRef.isRacy(now));
+            head = racy ? null : resolved;
+            return resolved;
+        }
+    }
+
+    /* Returns the ref HEAD points to, or null if HEAD is detached. */
+    private static String readSymbolicRef(File headFile) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(headFile));
+        try {
+            String line = reader.readLine();
+            if (line != null && line.startsWith(SYMREF)) {
+                return line.substring(SYMREF.length()).trim();
+            }
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Modification time and size of a file, the same stamp means the file hasn't changed.
+     */
+    static final class Stamp {
+        final File file;
+        final long modified;
+        final long length;
+
+        private Stamp(File file, long modified, long length) {
+            this.file = file;
+            this.modified = modified;
+            this.length = length;
+        }
+
+        static Stamp of(File file) {
+            if (!file.exists()) {
+                return new Stamp(file, 0, -1);
+            }
+            return new Stamp(file, file.lastModified(), file.length());
+        }
+
+        boolean isRacy(long now) {
+            return length >= 0 && modified + RACY_WINDOW > now;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Stamp)) {
+                return false;
+            }
+            Stamp s = (Stamp) o;
+            return modified == s.modified && length == s.length && file.equals(s.file);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (modified ^ (modified >>> 32)) * 31 + (int) length;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package hudson.plugins.gerrit.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Timings and counters of the talk with Gerrit and of the chooser scans.
+ *
+ * The phases of every SSH command are timed separately, so slow connects can be told
+ * apart from a slow Gerrit. Successes and failures count votes, retries count commands
+ * that were sent again after a failure.
+ */
+public class GerritMetrics implements GerritMetricsMXBean {
+
+    public static final String OBJECT_NAME = "hudson.plugins.gerrit:type=GerritMetrics";
+
+    private static final Logger logger = Logger.getLogger(GerritMetrics.class.getName());
+    private static final GerritMetrics instance = new GerritMetrics();
+
+    static {
+        instance.register();
+    }
+
+    private volatile LatencyHistogram connect = new LatencyHistogram();
+    private volatile LatencyHistogram authenticate = new LatencyHistogram();
+    private volatile LatencyHistogram execute = new LatencyHistogram();
+    private volatile LatencyHistogram disconnect = new LatencyHistogram();
+    private final AtomicLong successes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final ConcurrentMap<String, ScanStats> scans = new ConcurrentHashMap<String, ScanStats>();
+
+    public static GerritMetrics getInstance() {
+        return instance;
+    }
+
+    public LatencyHistogram getConnect() {
+        return connect;
+    }
+
+    public LatencyHistogram getAuthenticate() {
+        return authenticate;
+    }
+
+    public LatencyHistogram getExecute() {
+        return execute;
+    }
+
+    public LatencyHistogram getDisconnect() {
+        return disconnect;
+    }
+
+    public void succeeded(int votes) {
+        successes.addAndGet(votes);
+    }
+
+    public void failed(int votes) {
+        failures.addAndGet(votes);
+    }
+
+    public void retried() {
+        retries.incrementAndGet();
+    }
+
+    public ScanStats getScan(String repository) {
+        ScanStats stats = scans.get(repository);
+        if (stats == null) {
+            ScanStats created = new ScanStats();
+            stats = scans.putIfAbsent(repository, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    public LatencySnapshot getConnectLatency() {
+        return connect.snapshot();
+    }
+
+    public LatencySnapshot getAuthenticateLatency() {
+        return authenticate.snapshot();
+    }
+
+    public LatencySnapshot getExecuteLatency() {
+        return execute.snapshot();
+    }
+
+    public LatencySnapshot getDisconnectLatency() {
+        return disconnect.snapshot();
+    }
+
+    public long getSuccesses() {
+        return successes.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public Map<String, ScanStats> getScans() {
+        return new TreeMap<String, ScanStats>(scans);
+    }
+
+    public void reset() {
+        connect = new LatencyHistogram();
+        authenticate = new LatencyHistogram();
+        execute = new LatencyHistogram();
+        disconnect = new LatencyHistogram();
+        successes.set(0);
+        failures.set(0);
+        retries.set(0);
+        scans.clear();
+    }
+
+    private void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            logger.log(Level.WARNING, "Failed to register " + OBJECT_NAME, e);
+        } catch (SecurityException e) {
+            logger.log(Level.WARNING, "Failed to register " + OBJECT_NAME, e);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package hudson.plugins.gerrit.metrics;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Shows {@link GerritMetrics} under Manage Hudson.
+ */
+@Extension
+public class GerritMetricsLink extends ManagementLink {
+
+    private final GerritMetrics metrics = GerritMetrics.getInstance();
+
+    public GerritMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * SSH phases in the order they happen.
+     */
+    public Map<String, LatencyHistogram> getPhases() {
+        Map<String, LatencyHistogram> phases = new LinkedHashMap<String, LatencyHistogram>();
+        phases.put("connect", metrics.getConnect());
+        phases.put("authenticate", metrics.getAuthenticate());
+        phases.put("execute", metrics.getExecute());
+        phases.put("disconnect", metrics.getDisconnect());
+        return phases;
+    }
+
+    public long[] getBucketBounds() {
+        return LatencyHistogram.getBucketBounds();
+    }
+
+    public String getIconFileName() {
+        return "graph.gif";
+    }
+
+    public String getDisplayName() {
+        return "Gerrit Metrics";
+    }
+
+    public String getUrlName() {
+        return "gerrit-metrics";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Time spent talking to Gerrit and scanning repositories for new patch sets.";
+    }
+}
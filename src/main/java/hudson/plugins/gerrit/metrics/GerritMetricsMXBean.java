@@ -0,0 +1,30 @@
+package hudson.plugins.gerrit.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link GerritMetrics}, registered as {@link GerritMetrics#OBJECT_NAME}.
+ */
+public interface GerritMetricsMXBean {
+
+    LatencySnapshot getConnectLatency();
+
+    LatencySnapshot getAuthenticateLatency();
+
+    LatencySnapshot getExecuteLatency();
+
+    LatencySnapshot getDisconnectLatency();
+
+    long getSuccesses();
+
+    long getFailures();
+
+    long getRetries();
+
+    /**
+     * Chooser scans by repository.
+     */
+    Map<String, ScanStats> getScans();
+
+    void reset();
+}
@@ -0,0 +1,52 @@
+package hudson.plugins.gerrit.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Summary of a {@link LatencyHistogram} at one point in time. Percentiles are bucket bounds,
+ * -1 meaning longer than the last bucket.
+ */
+public class LatencySnapshot {
+
+    private final long count;
+    private final double meanMillis;
+    private final double maxMillis;
+    private final long p50Millis;
+    private final long p90Millis;
+    private final long p99Millis;
+
+    @ConstructorProperties({"count", "meanMillis", "maxMillis", "p50Millis", "p90Millis", "p99Millis"})
+    public LatencySnapshot(long count, double meanMillis, double maxMillis, long p50Millis, long p90Millis,
+                           long p99Millis) {
+        this.count = count;
+        this.meanMillis = meanMillis;
+        this.maxMillis = maxMillis;
+        this.p50Millis = p50Millis;
+        this.p90Millis = p90Millis;
+        this.p99Millis = p99Millis;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMeanMillis() {
+        return meanMillis;
+    }
+
+    public double getMaxMillis() {
+        return maxMillis;
+    }
+
+    public long getP50Millis() {
+        return p50Millis;
+    }
+
+    public long getP90Millis() {
+        return p90Millis;
+    }
+
+    public long getP99Millis() {
+        return p99Millis;
+    }
+}
@@ -0,0 +1,62 @@
+package hudson.plugins.gerrit.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooser scans of one repository: how many commits they read and how long they took.
+ */
+public class ScanStats {
+
+    private long scans;
+    private long skipped;
+    private long lastSize;
+    private long lastCandidates;
+    private double lastMillis;
+    private double maxMillis;
+    private double totalMillis;
+
+    public synchronized void recordScan(int size, int candidates, long nanos) {
+        double millis = nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        scans++;
+        lastSize = size;
+        lastCandidates = candidates;
+        lastMillis = millis;
+        maxMillis = Math.max(maxMillis, millis);
+        totalMillis += millis;
+    }
+
+    /**
+     * A poll that returned without scanning because nothing had changed.
+     */
+    public synchronized void recordSkipped() {
+        skipped++;
+    }
+
+    public synchronized long getScans() {
+        return scans;
+    }
+
+    public synchronized long getSkipped() {
+        return skipped;
+    }
+
+    public synchronized long getLastSize() {
+        return lastSize;
+    }
+
+    public synchronized long getLastCandidates() {
+        return lastCandidates;
+    }
+
+    public synchronized double getLastMillis() {
+        return lastMillis;
+    }
+
+    public synchronized double getMaxMillis() {
+        return maxMillis;
+    }
+
+    public synchronized double getMeanMillis() {
+        return scans == 0 ? 0 : totalMillis / scans;
+    }
+}
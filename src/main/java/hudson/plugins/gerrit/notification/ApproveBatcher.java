@@ -0,0 +1,377 @@
+package hudson.plugins.gerrit.notification;
+
+import hudson.plugins.gerrit.metrics.GerritMetrics;
+import hudson.plugins.gerrit.ssh.SSHConnectionPool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces verifications that share verdict, message and Gerrit account into a single
+ * <tt>gerrit approve</tt> command carrying all of their revisions, also when they come from
+ * different builds; the message then links to each of the builds.
+ *
+ * A batch is sent when it has waited {@link #getMaxDelay()} milliseconds or when it
+ * reaches {@link #getMaxBatchSize()} revisions, whichever comes first. Sending goes
+ * through a {@link SendScheduler}, which limits the load on each Gerrit host.
+ *
+ * A newer verdict for a revision replaces an older one that hasn't been sent yet, and a vote
+ * identical to one of the last {@link #DEFAULT_SENT_CACHE_SIZE} votes sent, link to the build
+ * included, isn't sent again. Their deliveries end as {@link Delivery.Outcome#SUPERSEDED} and
+ * {@link Delivery.Outcome#SKIPPED}, and aren't counted as sent.
+ *
+ * Gerrit rejects a command as a whole if it refuses one of its revisions, e.g. a commit that is
+ * merged already. A rejected batch is therefore sent again one revision at a time, so only the
+ * votes Gerrit refuses fail. A rejected review with comments is sent again without them.
+ */
+public class ApproveBatcher {
+
+    public static final long DEFAULT_MAX_DELAY = 200;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 50;
+    public static final int DEFAULT_SENT_CACHE_SIZE = 1024;
+
+    private static final Logger logger = Logger.getLogger(ApproveBatcher.class.getName());
+    private static final ApproveBatcher instance = new ApproveBatcher(SSHConnectionPool.getInstance(),
+            SendScheduler.getInstance());
+
+    private final SSHConnectionPool pool;
+    private final SendScheduler scheduler;
+    private final Map<Verification.BatchKey, Batch> pending = new LinkedHashMap<Verification.BatchKey, Batch>();
+    /* Batch that will carry the vote for a revision, until it is sent. Guarded by pending. */
+    private final Map<Verification.RevisionKey, Batch> unsent = new HashMap<Verification.RevisionKey, Batch>();
+    /*
+     * Fingerprint of the last vote Gerrit took for a revision, least recently used first.
+     * Guarded by pending.
+     */
+    private final Map<Verification.RevisionKey, String> sent =
+            new LinkedHashMap<Verification.RevisionKey, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Verification.RevisionKey, String> eldest) {
+                    return size() > DEFAULT_SENT_CACHE_SIZE;
+                }
+            };
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Gerrit approve batcher");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private volatile long maxDelay = DEFAULT_MAX_DELAY;
+    private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+    /**
+     * Sends through the master-wide {@link SendScheduler}, so the limits per host hold for it too.
+     */
+    public ApproveBatcher(SSHConnectionPool pool) {
+        this(pool, SendScheduler.getInstance());
+    }
+
+    public ApproveBatcher(SSHConnectionPool pool, SendScheduler scheduler) {
+        this.pool = pool;
+        this.scheduler = scheduler;
+    }
+
+    public static ApproveBatcher getInstance() {
+        return instance;
+    }
+
+    public SSHConnectionPool getPool() {
+        return pool;
+    }
+
+    public SendScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    public void setMaxDelay(long maxDelay) {
+        this.maxDelay = Math.max(0, maxDelay);
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+    }
+
+    /**
+     * Queues verification for the next flush of its batch.
+     */
+    public Delivery submit(Verification verification) {
+        Verification.BatchKey key = verification.getBatchKey();
+        Verification.RevisionKey revisionKey = verification.getRevisionKey();
+        Delivery delivery = new Delivery();
+        Batch full = null;
+        List<Delivery> superseded = null;
+        synchronized (pending) {
+            if (verification.getFingerprint().equals(sent.get(revisionKey))) {
+                logger.fine("Gerrit already has " + verification + ", not sending it again");
+                delivery.skipped();
+                return delivery;
+            }
+            sent.remove(revisionKey);
+            Batch batch = pending.get(key);
+            Batch older = unsent.get(revisionKey);
+            if (older != null && older != batch) {
+                superseded = older.remove(verification.getRevision());
+                if (older.size() == 0 && pending.get(older.key) == older) {
+                    pending.remove(older.key);
+                }
+            }
+            if (batch == null) {
+                batch = new Batch(verification);
+                pending.put(key, batch);
+                if (maxDelay > 0 && maxBatchSize > 1) {
+                    scheduleFlush(key, batch);
+                }
+            }
+            batch.add(verification, delivery);
+            unsent.put(revisionKey, batch);
+            if (maxDelay == 0 || batch.size() >= maxBatchSize) {
+                pending.remove(key);
+                full = batch;
+            }
+        }
+        if (superseded != null) {
+            logger.fine("Replaced an unsent vote on " + verification.getRevision() + " by " + verification);
+            for (Delivery d : superseded) {
+                d.superseded();
+            }
+        }
+        if (full != null) {
+            send(full);
+        }
+        return delivery;
+    }
+
+    /**
+     * Sends every pending batch right away.
+     */
+    public void flush() {
+        List<Batch> batches;
+        synchronized (pending) {
+            batches = new ArrayList<Batch>(pending.values());
+            pending.clear();
+        }
+        for (Batch batch : batches) {
+            send(batch);
+        }
+    }
+
+    private void scheduleFlush(final Verification.BatchKey key, final Batch batch) {
+        flusher.schedule(new Runnable() {
+            public void run() {
+                synchronized (pending) {
+                    if (pending.get(key) != batch) {
+                        // Already sent because it filled up
+                        return;
+                    }
+                    pending.remove(key);
+                }
+                send(batch);
+            }
+        }, maxDelay, TimeUnit.MILLISECONDS);
+    }
+
+    private void send(final Batch batch) {
+        Verification first = batch.first;
+        scheduler.submit(first.getConnection(), first.getPriority(), first.getSource(), new Runnable() {
+            public void run() {
+                execute(batch);
+            }
+        });
+    }
+
+    private void execute(Batch batch) {
+        SSHConnectionPool.Key connection = batch.first.getConnection();
+        String revisions;
+        List<String> links;
+        synchronized (pending) {
+            // From here on the batch is sent as it is
+            for (String revision : batch.revisions.keySet()) {
+                Verification.RevisionKey revisionKey = new Verification.RevisionKey(connection, revision);
+                if (unsent.get(revisionKey) == batch) {
+                    unsent.remove(revisionKey);
+                }
+            }
+            revisions = batch.revisionList();
+            links = new ArrayList<String>();
+            for (Set<String> l : batch.links.values()) {
+                links.addAll(l);
+            }
+        }
+        if (revisions.length() == 0) {
+            // Every vote in it was replaced by a newer one
+            return;
+        }
+        IOException failure = send(batch.first, revisions, links);
+        String withoutComments = ReviewInput.withoutComments(batch.first.getInput());
+        if (failure != null && withoutComments != null && Outbox.isPermanent(failure)) {
+            // E.g. a comment on a file the revision didn't change, the vote still counts
+            logger.fine("Gerrit rejected the review of " + revisions + ", sending it without comments");
+            failure = send(batch.first.withInput(batch.first.getCommandTemplate(), withoutComments), revisions, links);
+        }
+        if (failure != null && batch.size() > 1 && Outbox.isPermanent(failure)) {
+            logger.fine("Gerrit rejected " + batch.first.toCommand(revisions, links)
+                    + ", sending its revisions one by one");
+            for (Map.Entry<String, List<Delivery>> revision : batch.revisions.entrySet()) {
+                IOException e = send(batch.first, revision.getKey(), batch.linksOf(revision.getKey()));
+                if (e == null) {
+                    remember(batch, revision.getKey());
+                    succeeded(revision.getValue());
+                } else {
+                    failed(revision.getValue(), e);
+                }
+            }
+            return;
+        }
+        if (failure != null) {
+            failed(batch.deliveries(), failure);
+            return;
+        }
+        for (String revision : batch.revisions.keySet()) {
+            remember(batch, revision);
+        }
+        succeeded(batch.deliveries());
+    }
+
+    /* Records that Gerrit took the vote of batch on revision, unless a newer vote is queued already. */
+    private void remember(Batch batch, String revision) {
+        Verification.RevisionKey revisionKey = new Verification.RevisionKey(batch.first.getConnection(), revision);
+        synchronized (pending) {
+            if (!unsent.containsKey(revisionKey)) {
+                sent.put(revisionKey, batch.fingerprints.get(revision));
+            }
+        }
+    }
+
+    /* Runs the command of verification for revisions, returns why it failed or null. */
+    private IOException send(Verification verification, String revisions, List<String> links) {
+        String command = verification.toCommand(revisions, links);
+        String input = verification.getInput();
+        try {
+            if (input == null) {
+                pool.execute(verification.getConnection(), command);
+            } else {
+                pool.execute(verification.getConnection(), command, input.getBytes("UTF-8"));
+            }
+            return null;
+        } catch (IOException e) {
+            return e;
+        } catch (InterruptedException e) {
+            logger.log(Level.WARNING, "Interrupted while sending " + command, e);
+            IOException ioe = new IOException("Interrupted while sending to Gerrit");
+            ioe.initCause(e);
+            Thread.currentThread().interrupt();
+            return ioe;
+        } catch (RuntimeException e) {
+            IOException ioe = new IOException("Failed to send to Gerrit: " + e.getMessage());
+            ioe.initCause(e);
+            return ioe;
+        }
+    }
+
+    private static void succeeded(List<Delivery> deliveries) {
+        GerritMetrics.getInstance().succeeded(deliveries.size());
+        for (Delivery d : deliveries) {
+            d.succeeded();
+        }
+    }
+
+    private static void failed(List<Delivery> deliveries, IOException e) {
+        GerritMetrics.getInstance().failed(deliveries.size());
+        for (Delivery d : deliveries) {
+            d.failed(e);
+        }
+    }
+
+    private static class Batch {
+        final Verification first;
+        final Verification.BatchKey key;
+        /* Deliveries waiting for each revision. */
+        final Map<String, List<Delivery>> revisions = new LinkedHashMap<String, List<Delivery>>();
+        /* Links to the builds of each revision that has any. */
+        final Map<String, Set<String>> links = new LinkedHashMap<String, Set<String>>();
+        /* Fingerprint of the latest vote on each revision. */
+        final Map<String, String> fingerprints = new HashMap<String, String>();
+
+        Batch(Verification first) {
+            this.first = first;
+            this.key = first.getBatchKey();
+        }
+
+        void add(Verification verification, Delivery delivery) {
+            String revision = verification.getRevision();
+            if (verification.getLink() != null) {
+                Set<String> l = links.get(revision);
+                if (l == null) {
+                    l = new LinkedHashSet<String>();
+                    links.put(revision, l);
+                }
+                l.add(verification.getLink());
+            }
+            fingerprints.put(revision, verification.getFingerprint());
+            List<Delivery> deliveries = revisions.get(revision);
+            if (deliveries == null) {
+                deliveries = new ArrayList<Delivery>();
+                revisions.put(revision, deliveries);
+            }
+            deliveries.add(delivery);
+        }
+
+        /* Takes revision out of the batch and returns its deliveries. */
+        List<Delivery> remove(String revision) {
+            links.remove(revision);
+            fingerprints.remove(revision);
+            List<Delivery> deliveries = revisions.remove(revision);
+            return deliveries == null ? Collections.<Delivery>emptyList() : deliveries;
+        }
+
+        int size() {
+            return revisions.size();
+        }
+
+        List<String> linksOf(String revision) {
+            Set<String> l = links.get(revision);
+            return l == null ? Collections.<String>emptyList() : new ArrayList<String>(l);
+        }
+
+        List<Delivery> deliveries() {
+            List<Delivery> all = new ArrayList<Delivery>();
+            for (List<Delivery> deliveries : revisions.values()) {
+                all.addAll(deliveries);
+            }
+            return all;
+        }
+
+        String revisionList() {
+            StringBuilder sb = new StringBuilder();
+            for (String revision : revisions.keySet()) {
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                sb.append(revision);
+            }
+            return sb.toString();
+        }
+    }
+}
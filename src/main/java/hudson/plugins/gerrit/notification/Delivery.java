@@ -0,0 +1,111 @@
+package hudson.plugins.gerrit.notification;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Outcome of a verification that has been handed over for sending.
+ */
+public class Delivery {
+
+    /**
+     * How a delivery ended. Only {@link #SENT} votes reached Gerrit.
+     */
+    public enum Outcome {
+        /** Gerrit took the vote. */
+        SENT,
+        /** A newer vote on the revision replaced it before it was sent. */
+        SUPERSEDED,
+        /** Gerrit already had the same vote from the same build. */
+        SKIPPED,
+        FAILED
+    }
+
+    private static final Logger logger = Logger.getLogger(Delivery.class.getName());
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final List<Runnable> callbacks = new ArrayList<Runnable>();
+    private volatile IOException error;
+    private volatile Outcome outcome;
+
+    /**
+     * Waits until the verification has been sent, rethrowing the failure if sending failed.
+     */
+    public void await() throws IOException, InterruptedException {
+        done.await();
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    public IOException getError() {
+        return error;
+    }
+
+    /**
+     * How the delivery ended, null while it isn't done.
+     */
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * Runs callback once the verification has been sent or has failed. Callbacks run on the
+     * thread that completes the delivery, or right away if it already is complete.
+     */
+    public void whenDone(Runnable callback) {
+        synchronized (callbacks) {
+            if (!isDone()) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        run(callback);
+    }
+
+    void succeeded() {
+        complete(Outcome.SENT);
+    }
+
+    void superseded() {
+        complete(Outcome.SUPERSEDED);
+    }
+
+    void skipped() {
+        complete(Outcome.SKIPPED);
+    }
+
+    void failed(IOException e) {
+        error = e;
+        complete(Outcome.FAILED);
+    }
+
+    private void complete(Outcome outcome) {
+        this.outcome = outcome;
+        List<Runnable> toRun;
+        synchronized (callbacks) {
+            done.countDown();
+            toRun = new ArrayList<Runnable>(callbacks);
+            callbacks.clear();
+        }
+        for (Runnable callback : toRun) {
+            run(callback);
+        }
+    }
+
+    private void run(Runnable callback) {
+        try {
+            callback.run();
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Delivery callback failed", e);
+        }
+    }
+}
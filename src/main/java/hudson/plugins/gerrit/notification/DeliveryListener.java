@@ -0,0 +1,20 @@
+package hudson.plugins.gerrit.notification;
+
+import java.io.IOException;
+
+/**
+ * Receives the outcome of a verification sent by {@link NotificationDispatcher}.
+ */
+public interface DeliveryListener {
+
+    void onRetry(Verification verification, int attempt, IOException failure);
+
+    void onSuccess(Verification verification, int attempts);
+
+    /**
+     * The verification wasn't sent as Gerrit has it already or a newer one replaced it.
+     */
+    void onSkipped(Verification verification, Delivery.Outcome outcome);
+
+    void onFailure(Verification verification, int attempts, IOException failure);
+}
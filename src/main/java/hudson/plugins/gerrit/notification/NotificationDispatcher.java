@@ -0,0 +1,96 @@
+package hudson.plugins.gerrit.notification;
+
+import hudson.plugins.gerrit.metrics.GerritMetrics;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends verifications in the background so that builds don't have to wait for Gerrit.
+ *
+ * Failed deliveries are retried with exponential backoff, at most {@link #getMaxAttempts()} times.
+ */
+public class NotificationDispatcher {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    public static final long DEFAULT_RETRY_DELAY = 10 * 1000;
+
+    private static final Logger logger = Logger.getLogger(NotificationDispatcher.class.getName());
+    private static final NotificationDispatcher instance = new NotificationDispatcher(ApproveBatcher.getInstance());
+
+    private final ApproveBatcher batcher;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Gerrit notification dispatcher");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private volatile long retryDelay = DEFAULT_RETRY_DELAY;
+
+    public NotificationDispatcher(ApproveBatcher batcher) {
+        this.batcher = batcher;
+    }
+
+    public static NotificationDispatcher getInstance() {
+        return instance;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = Math.max(0, retryDelay);
+    }
+
+    /**
+     * Queues verification and returns immediately. The outcome is reported to listener.
+     */
+    public void dispatch(final Verification verification, final DeliveryListener listener) {
+        scheduler.execute(new Runnable() {
+            public void run() {
+                attempt(verification, listener, 1);
+            }
+        });
+    }
+
+    private void attempt(final Verification verification, final DeliveryListener listener, final int attempt) {
+        final Delivery delivery = batcher.submit(verification);
+        delivery.whenDone(new Runnable() {
+            public void run() {
+                IOException error = delivery.getError();
+                if (delivery.getOutcome() == Delivery.Outcome.SENT) {
+                    listener.onSuccess(verification, attempt);
+                } else if (error == null) {
+                    listener.onSkipped(verification, delivery.getOutcome());
+                } else if (attempt >= maxAttempts) {
+                    logger.log(Level.WARNING, "Giving up on " + verification + " after " + attempt + " attempts", error);
+                    listener.onFailure(verification, attempt, error);
+                } else {
+                    listener.onRetry(verification, attempt, error);
+                    GerritMetrics.getInstance().retried();
+                    scheduler.schedule(new Runnable() {
+                        public void run() {
+                            attempt(verification, listener, attempt + 1);
+                        }
+                    }, retryDelay << (attempt - 1), TimeUnit.MILLISECONDS);
+                }
+            }
+        });
+    }
+}
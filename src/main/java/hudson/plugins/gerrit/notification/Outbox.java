@@ -0,0 +1,467 @@
+package hudson.plugins.gerrit.notification;
+
+import hudson.model.Hudson;
+import hudson.plugins.gerrit.ssh.SSHCommandException;
+import hudson.plugins.gerrit.ssh.SSHConnectionPool;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Verifications that haven't reached Gerrit yet, kept in a memory-mapped append-only journal
+ * so that they survive a restart or an outage of Gerrit.
+ *
+ * A verification is appended before it is sent and acknowledged once Gerrit took it or
+ * rejected it for good; anything else stays and is sent again by {@link #resend}.
+ * Acknowledged entries are dropped by compacting the journal when it fills up or runs empty.
+ *
+ * Every record carries a checksum and a sequence number one above the one before it,
+ * so a torn write or leftovers from before a compaction end the journal.
+ *
+ * The passphrase of the private key is not written to the journal. Verifications read back from
+ * it get their connection from a {@link KeyResolver} when they are sent again. One whose account
+ * can't be resolved isn't sent, and is dropped after {@link #MAX_UNRESOLVED_ATTEMPTS} tries.
+ */
+public class Outbox {
+
+    public static final String FILE_NAME = "gerrit-outbox.journal";
+
+    /** Resends of a verification whose account can't be resolved before it is dropped, an hour by default. */
+    public static final int MAX_UNRESOLVED_ATTEMPTS = 60;
+
+    static final int INITIAL_CAPACITY = 64 * 1024;
+
+    private static final Logger logger = Logger.getLogger(Outbox.class.getName());
+    private static final int HEADER = 4 + 4;
+    private static final byte ADD = 1;
+    private static final byte ACK = 2;
+    /* An addition that carries command input after the verification. */
+    private static final byte REVIEW = 3;
+    private static Outbox instance;
+
+    /**
+     * Looks up the connection, passphrase included, of a verification read from the journal.
+     */
+    public interface KeyResolver {
+        /**
+         * @return null if the account is no longer configured
+         */
+        SSHConnectionPool.Key resolve(Verification verification);
+    }
+
+    private final File file;
+    private final File compacted;
+    private final RandomAccessFile raf;
+    private MappedByteBuffer journal;
+    private int position;
+    private long nextSeq;
+    private long nextId = 1;
+    private final Map<Long, Verification> pending = new LinkedHashMap<Long, Verification>();
+    private final Set<Long> inFlight = new HashSet<Long>();
+    /* Resends skipped so far by entry, for entries whose account couldn't be resolved. */
+    private final Map<Long, Integer> unresolved = new HashMap<Long, Integer>();
+
+    /**
+     * Returns the outbox in Hudson's root directory, or null if it can't be opened.
+     */
+    public static synchronized Outbox getInstance() {
+        if (instance == null) {
+            Hudson hudson = Hudson.getInstance();
+            if (hudson == null) {
+                return null;
+            }
+            try {
+                instance = new Outbox(new File(hudson.getRootDir(), FILE_NAME));
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to open the Gerrit outbox, votes won't survive an outage", e);
+                return null;
+            }
+        }
+        return instance;
+    }
+
+    public Outbox(File file) throws IOException {
+        this.file = file;
+        this.compacted = new File(file.getPath() + ".compact");
+        this.raf = new RandomAccessFile(file, "rw");
+        map(Math.max(INITIAL_CAPACITY, (int) Math.min(Integer.MAX_VALUE, raf.length())));
+        if (compacted.exists()) {
+            // A compaction didn't finish, the compacted copy is complete
+            byte[] copy = readFully(compacted);
+            ensureCapacity(copy.length + 4);
+            journal.position(0);
+            journal.put(copy);
+            journal.putInt(0);
+            journal.force();
+            compacted.delete();
+        }
+        scan();
+    }
+
+    /**
+     * Stores verification and returns its id. It counts as being sent until {@link #settle} is called.
+     */
+    public synchronized long append(Verification verification) throws IOException {
+        long id = nextId++;
+        byte[] body = encode(id, verification);
+        write(typeOf(verification), body);
+        pending.put(id, verification);
+        inFlight.add(id);
+        return id;
+    }
+
+    /**
+     * Records the outcome of sending entry id: null error or a rejection by Gerrit acknowledges it,
+     * other failures leave it for {@link #resend}.
+     */
+    public synchronized void settle(long id, IOException error) {
+        inFlight.remove(id);
+        if (error != null && !isPermanent(error)) {
+            return;
+        }
+        if (pending.remove(id) == null) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new DataOutputStream(bytes).writeLong(id);
+            write(ACK, bytes.toByteArray());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to acknowledge Gerrit outbox entry " + id + ", it may be sent again", e);
+        }
+    }
+
+    /**
+     * Settles entry id when delivery completes.
+     */
+    public void settleWhenDone(final long id, final Delivery delivery) {
+        delivery.whenDone(new Runnable() {
+            public void run() {
+                settle(id, delivery.getError());
+            }
+        });
+    }
+
+    /**
+     * Wraps listener of a dispatched verification so that its final outcome settles entry id.
+     */
+    public DeliveryListener settling(final long id, final DeliveryListener listener) {
+        return new DeliveryListener() {
+            public void onRetry(Verification verification, int attempt, IOException failure) {
+                listener.onRetry(verification, attempt, failure);
+            }
+
+            public void onSuccess(Verification verification, int attempts) {
+                settle(id, null);
+                listener.onSuccess(verification, attempts);
+            }
+
+            public void onSkipped(Verification verification, Delivery.Outcome outcome) {
+                settle(id, null);
+                listener.onSkipped(verification, outcome);
+            }
+
+            public void onFailure(Verification verification, int attempts, IOException failure) {
+                settle(id, failure);
+                listener.onFailure(verification, attempts, failure);
+            }
+        };
+    }
+
+    /**
+     * Sends every stored verification that isn't being sent already over the connection keys
+     * resolves. Compacts the journal if nothing is left.
+     */
+    public void resend(ApproveBatcher batcher, KeyResolver keys) {
+        Map<Long, Verification> due = new LinkedHashMap<Long, Verification>();
+        synchronized (this) {
+            for (Map.Entry<Long, Verification> entry : pending.entrySet()) {
+                if (inFlight.add(entry.getKey())) {
+                    due.put(entry.getKey(), entry.getValue());
+                }
+            }
+            if (pending.isEmpty() && position > 0) {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Failed to compact " + file, e);
+                }
+            }
+        }
+        for (Map.Entry<Long, Verification> entry : due.entrySet()) {
+            Verification verification = entry.getValue();
+            SSHConnectionPool.Key key = keys == null ? null : keys.resolve(verification);
+            if (key == null) {
+                skipUnresolved(entry.getKey(), verification);
+                continue;
+            }
+            verification = verification.withConnection(key);
+            logger.info("Resending " + verification + " to Gerrit");
+            settleWhenDone(entry.getKey(), batcher.submit(verification));
+        }
+    }
+
+    /* Without the passphrase the verification can't be sent; it's given up after a while. */
+    private synchronized void skipUnresolved(long id, Verification verification) {
+        inFlight.remove(id);
+        Integer skipped = unresolved.get(id);
+        int attempts = skipped == null ? 1 : skipped + 1;
+        if (attempts == 1) {
+            logger.warning("No Gerrit account configured for " + verification.getSource() + " any more, not resending "
+                    + verification + "; it is dropped after " + MAX_UNRESOLVED_ATTEMPTS + " attempts");
+        }
+        if (attempts < MAX_UNRESOLVED_ATTEMPTS) {
+            unresolved.put(id, attempts);
+            return;
+        }
+        unresolved.remove(id);
+        logger.info("Dropping " + verification + " from the Gerrit outbox");
+        settle(id, null);
+    }
+
+    /**
+     * Gerrit answered and refused the command, sending it again won't help.
+     */
+    public static boolean isPermanent(IOException error) {
+        return error instanceof SSHCommandException && !((SSHCommandException) error).isTimeout();
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    public synchronized Map<Long, Verification> getPending() {
+        return new LinkedHashMap<Long, Verification>(pending);
+    }
+
+    /**
+     * Bytes of the journal in use, acknowledged entries included.
+     */
+    synchronized int getPosition() {
+        return position;
+    }
+
+    public synchronized void close() throws IOException {
+        journal.force();
+        raf.close();
+    }
+
+    private void map(int capacity) throws IOException {
+        journal = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private void scan() throws IOException {
+        position = 0;
+        nextSeq = -1;
+        while (position + HEADER <= journal.capacity()) {
+            int length = journal.getInt(position);
+            if (length <= 0 || position + HEADER + length > journal.capacity()) {
+                break;
+            }
+            byte[] record = new byte[length];
+            journal.position(position + HEADER);
+            journal.get(record);
+            if (checksum(record) != journal.getInt(position + 4)) {
+                logger.warning("Ignoring a torn record at " + position + " of " + file);
+                break;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            long seq = in.readLong();
+            if (nextSeq >= 0 && seq != nextSeq) {
+                break;
+            }
+            nextSeq = seq + 1;
+            byte type = in.readByte();
+            if (type == ADD || type == REVIEW) {
+                long id = in.readLong();
+                pending.put(id, decode(in, type == REVIEW));
+                nextId = Math.max(nextId, id + 1);
+            } else {
+                long id = in.readLong();
+                pending.remove(id);
+                nextId = Math.max(nextId, id + 1);
+            }
+            position += HEADER + length;
+        }
+        if (nextSeq < 0) {
+            nextSeq = 0;
+        }
+        // Whatever follows is garbage, end the journal explicitly
+        if (position + 4 <= journal.capacity()) {
+            journal.putInt(position, 0);
+        }
+        if (!pending.isEmpty()) {
+            logger.info(pending.size() + " verifications waiting in " + file);
+        }
+    }
+
+    /*
+     * The end marker goes in before the length of the new record, so the journal
+     * never ends in the middle of a record.
+     */
+    private void write(byte type, byte[] body) throws IOException {
+        int needed = HEADER + 9 + body.length + 4;
+        if (position + needed > journal.capacity()) {
+            compact();
+            ensureCapacity(position + needed);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + 9);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(nextSeq);
+        out.writeByte(type);
+        out.write(body);
+        byte[] record = bytes.toByteArray();
+        journal.position(position + HEADER);
+        journal.put(record);
+        journal.putInt(0);
+        journal.putInt(position + 4, checksum(record));
+        journal.putInt(position, record.length);
+        journal.force();
+        position += HEADER + record.length;
+        nextSeq++;
+    }
+
+    /* Rewrites the journal with pending entries only, through a complete copy next to it. */
+    private void compact() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        long seq = nextSeq;
+        for (Map.Entry<Long, Verification> entry : pending.entrySet()) {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream r = new DataOutputStream(record);
+            r.writeLong(seq++);
+            r.writeByte(typeOf(entry.getValue()));
+            r.write(encode(entry.getKey(), entry.getValue()));
+            byte[] data = record.toByteArray();
+            out.writeInt(data.length);
+            out.writeInt(checksum(data));
+            out.write(data);
+        }
+        byte[] copy = bytes.toByteArray();
+        if (copy.length > 0) {
+            writeFully(compacted, copy);
+        }
+        ensureCapacity(copy.length + 4);
+        journal.position(0);
+        journal.put(copy);
+        journal.putInt(0);
+        journal.force();
+        if (copy.length > 0 && !compacted.delete()) {
+            throw new IOException("Failed to delete " + compacted);
+        }
+        position = copy.length;
+        nextSeq = seq;
+    }
+
+    /* Grows the journal to twice its size until needed bytes fit, unless compacting freed enough. */
+    private void ensureCapacity(int needed) throws IOException {
+        int capacity = journal.capacity();
+        if (needed <= capacity) {
+            return;
+        }
+        while (capacity < needed) {
+            capacity *= 2;
+        }
+        journal.force();
+        map(capacity);
+    }
+
+    private static byte[] encode(long id, Verification v) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        SSHConnectionPool.Key key = v.getConnection();
+        out.writeLong(id);
+        out.writeUTF(key.getHost());
+        out.writeInt(key.getPort());
+        out.writeUTF(key.getUsername());
+        out.writeUTF(key.getPrivateKeyFile().getPath());
+        out.writeUTF(v.getCommandTemplate());
+        out.writeUTF(v.getVerified());
+        out.writeUTF(v.getMessageText());
+        out.writeUTF(v.getLink() == null ? "" : v.getLink());
+        out.writeUTF(v.getRevision());
+        out.writeUTF(v.getPriority().name());
+        out.writeUTF(v.getSource());
+        if (v.getInput() != null) {
+            // A review may be longer than writeUTF takes
+            byte[] input = v.getInput().getBytes("UTF-8");
+            out.writeInt(input.length);
+            out.write(input);
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte typeOf(Verification v) {
+        return v.getInput() == null ? ADD : REVIEW;
+    }
+
+    private static Verification decode(DataInputStream in, boolean withInput) throws IOException {
+        SSHConnectionPool.Key key = new SSHConnectionPool.Key(in.readUTF(), in.readInt(), in.readUTF(),
+                new File(in.readUTF()), null);
+        String commandTemplate = in.readUTF();
+        String verified = in.readUTF();
+        String message = in.readUTF();
+        String link = in.readUTF();
+        Verification v = new Verification(key, commandTemplate, verified, message, in.readUTF(),
+                Verification.Priority.valueOf(in.readUTF()), in.readUTF());
+        if (link.length() > 0) {
+            v = v.withLink(link);
+        }
+        if (!withInput) {
+            return v;
+        }
+        byte[] input = new byte[in.readInt()];
+        in.readFully(input);
+        return v.withInput(v.getCommandTemplate(), new String(input, "UTF-8"));
+    }
+
+    private static int checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] readFully(File f) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            byte[] data = new byte[(int) f.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    /* The file only shows up once it is complete. */
+    private static void writeFully(File f, byte[] data) throws IOException {
+        File tmp = new File(f.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(data);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(f) && !(f.delete() && tmp.renameTo(f))) {
+            throw new IOException("Failed to rename " + tmp + " to " + f);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package hudson.plugins.gerrit.notification;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The review that <tt>gerrit review --json</tt> reads from stdin: a message, one label and
+ * comments on lines of files.
+ *
+ * The JSON stays within the given number of bytes however many failures a build has. The
+ * message names at most {@link #MAX_LISTED_FAILURES} failed tests, every comment is cut to
+ * {@link #MAX_COMMENT_LENGTH} characters, and comments that don't fit anymore are left out
+ * and only counted in the message.
+ */
+public class ReviewInput {
+
+    public static final int DEFAULT_MAX_BYTES = 256 * 1024;
+
+    static final int MAX_LISTED_FAILURES = 20;
+    static final int MAX_COMMENT_LENGTH = 2000;
+    /* Bytes kept for message and label, comments get the rest. */
+    static final int MESSAGE_BYTES = 16 * 1024;
+
+    private final String message;
+    private final String label;
+    private final int value;
+    private final int maxBytes;
+    private final List<String> listed = new ArrayList<String>();
+    private int failures;
+    /* Comments as JSON objects per file. */
+    private final Map<String, List<String>> comments = new TreeMap<String, List<String>>();
+    private int commentBytes;
+    private int omitted;
+
+    public ReviewInput(String message, String label, int value) {
+        this(message, label, value, DEFAULT_MAX_BYTES);
+    }
+
+    public ReviewInput(String message, String label, int value, int maxBytes) {
+        this.message = message;
+        this.label = label;
+        this.value = value;
+        this.maxBytes = Math.max(2 * MESSAGE_BYTES, maxBytes);
+    }
+
+    /**
+     * Counts a failed test; the first few are named in the message.
+     */
+    public void addFailure(String name) {
+        failures++;
+        if (listed.size() < MAX_LISTED_FAILURES) {
+            listed.add(name);
+        }
+    }
+
+    /**
+     * Adds a comment on line of file path, relative to the repository.
+     *
+     * @return false if the comment was left out because the review is full
+     */
+    public boolean addComment(String path, int line, String text) {
+        if (text.length() > MAX_COMMENT_LENGTH) {
+            text = text.substring(0, MAX_COMMENT_LENGTH - 3) + "...";
+        }
+        String comment = "{\"line\":" + Math.max(1, line) + ",\"message\":" + quote(text) + "}";
+        List<String> onPath = comments.get(path);
+        // A comma, and the key with brackets for the first comment on a file
+        int cost = utf8Length(comment) + 1 + (onPath == null ? utf8Length(quote(path)) + 3 : 0);
+        if (commentBytes + cost > maxBytes - MESSAGE_BYTES) {
+            omitted++;
+            return false;
+        }
+        if (onPath == null) {
+            onPath = new ArrayList<String>();
+            comments.put(path, onPath);
+        }
+        onPath.add(comment);
+        commentBytes += cost;
+        return true;
+    }
+
+    public int getFailures() {
+        return failures;
+    }
+
+    public int getCommentCount() {
+        int n = 0;
+        for (List<String> onPath : comments.values()) {
+            n += onPath.size();
+        }
+        return n;
+    }
+
+    public int getOmittedComments() {
+        return omitted;
+    }
+
+    /**
+     * The message with the failed tests appended.
+     */
+    public String getMessage() {
+        if (failures == 0) {
+            return message;
+        }
+        StringBuilder sb = new StringBuilder(message);
+        sb.append("\n\n").append(failures).append(failures == 1 ? " test failed:" : " tests failed:");
+        for (String name : listed) {
+            sb.append("\n* ").append(name);
+        }
+        if (failures > listed.size()) {
+            sb.append("\n* ... and ").append(failures - listed.size()).append(" more");
+        }
+        if (omitted > 0) {
+            sb.append("\n\n").append(omitted).append(" comments were left out to keep the review small.");
+        }
+        return sb.toString();
+    }
+
+    public String toJson() {
+        StringBuilder sb = new StringBuilder(commentBytes + MESSAGE_BYTES);
+        sb.append("{\"message\":").append(quote(fit(getMessage(), MESSAGE_BYTES - 256)));
+        sb.append(",\"labels\":{").append(quote(label)).append(':').append(value).append('}');
+        if (!comments.isEmpty()) {
+            sb.append(",\"comments\":{");
+            boolean firstPath = true;
+            for (Map.Entry<String, List<String>> onPath : comments.entrySet()) {
+                if (!firstPath) {
+                    sb.append(',');
+                }
+                firstPath = false;
+                sb.append(quote(onPath.getKey())).append(":[");
+                for (int i = 0; i < onPath.getValue().size(); i++) {
+                    if (i > 0) {
+                        sb.append(',');
+                    }
+                    sb.append(onPath.getValue().get(i));
+                }
+                sb.append(']');
+            }
+            sb.append('}');
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * The review of json, as written by {@link #toJson}, without its comments; null if it has none.
+     * Comments come last, and their key can't appear in the quoted message as is.
+     */
+    public static String withoutComments(String json) {
+        int comments = json == null ? -1 : json.indexOf(",\"comments\":{");
+        return comments < 0 ? null : json.substring(0, comments) + '}';
+    }
+
+    /* Cuts s until it takes at most maxBytes as a JSON string. */
+    private static String fit(String s, int maxBytes) {
+        if (utf8Length(quote(s)) <= maxBytes) {
+            return s;
+        }
+        do {
+            s = s.substring(0, s.length() * 3 / 4);
+        } while (s.length() > 0 && utf8Length(quote(s + "...")) > maxBytes);
+        return s + "...";
+    }
+
+    static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static int utf8Length(String s) {
+        try {
+            return s.getBytes("UTF-8").length;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package hudson.plugins.gerrit.notification;
+
+import hudson.plugins.gerrit.ssh.SSHConnectionPool;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Master-wide gate for commands sent to Gerrit.
+ *
+ * Per Gerrit host at most {@link #getMaxConcurrent()} commands run at once, and at most
+ * {@link #getRate()} are started per second. Commands that have to wait are started
+ * high priority first, and round robin between jobs, so one busy job can't hold up the others.
+ * A command that doesn't have to wait runs in the calling thread.
+ */
+public class SendScheduler {
+
+    public static final int DEFAULT_MAX_CONCURRENT = 4;
+    public static final int DEFAULT_RATE = 10;
+
+    private static final Logger logger = Logger.getLogger(SendScheduler.class.getName());
+    private static final SendScheduler instance = new SendScheduler();
+
+    private final Map<String, Host> hosts = new HashMap<String, Host>();
+    private final ExecutorService workers = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Gerrit sender");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Gerrit send rate limiter");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private volatile int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+    private volatile int rate = DEFAULT_RATE;
+
+    /* Every sender shares the instance, others only exist in tests. */
+    SendScheduler() {
+    }
+
+    public static SendScheduler getInstance() {
+        return instance;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public void setMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+    }
+
+    /**
+     * Commands started per second and host, 0 for no limit.
+     */
+    public int getRate() {
+        return rate;
+    }
+
+    public void setRate(int rate) {
+        this.rate = Math.max(0, rate);
+    }
+
+    /**
+     * Runs command now if the host allows it, otherwise when its turn comes.
+     *
+     * @param source the job the command is sent for, commands of different jobs take turns
+     */
+    public void submit(SSHConnectionPool.Key key, Verification.Priority priority, String source, Runnable command) {
+        Host host = host(key);
+        boolean runNow;
+        synchronized (host) {
+            runNow = host.isIdle() && host.running < maxConcurrent && host.takeToken(rate);
+            if (runNow) {
+                host.running++;
+            } else {
+                host.enqueue(priority, source == null ? "" : source, command);
+            }
+        }
+        if (runNow) {
+            run(host, command);
+        } else {
+            pump(host);
+        }
+    }
+
+    /**
+     * Commands waiting for their turn on every host.
+     */
+    public int getQueued() {
+        int queued = 0;
+        synchronized (hosts) {
+            for (Host host : hosts.values()) {
+                synchronized (host) {
+                    queued += host.queued;
+                }
+            }
+        }
+        return queued;
+    }
+
+    private Host host(SSHConnectionPool.Key key) {
+        String name = key.getHost() + ":" + key.getPort();
+        synchronized (hosts) {
+            Host host = hosts.get(name);
+            if (host == null) {
+                host = new Host();
+                hosts.put(name, host);
+            }
+            return host;
+        }
+    }
+
+    /* Starts waiting commands while the host has room for them. */
+    private void pump(final Host host) {
+        while (true) {
+            final Runnable command;
+            synchronized (host) {
+                if (host.queued == 0 || host.running >= maxConcurrent) {
+                    return;
+                }
+                if (!host.takeToken(rate)) {
+                    if (!host.wakeupScheduled) {
+                        host.wakeupScheduled = true;
+                        timer.schedule(new Runnable() {
+                            public void run() {
+                                synchronized (host) {
+                                    host.wakeupScheduled = false;
+                                }
+                                pump(host);
+                            }
+                        }, host.nanosToNextToken(rate), TimeUnit.NANOSECONDS);
+                    }
+                    return;
+                }
+                command = host.next();
+                host.running++;
+            }
+            workers.execute(new Runnable() {
+                public void run() {
+                    SendScheduler.this.run(host, command);
+                }
+            });
+        }
+    }
+
+    private void run(Host host, Runnable command) {
+        try {
+            command.run();
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Sending to Gerrit failed", e);
+        } finally {
+            synchronized (host) {
+                host.running--;
+            }
+            pump(host);
+        }
+    }
+
+    private static class Host {
+        /* One queue per job, in the order they take turns; high priority ones are started first. */
+        final Map<String, LinkedList<Runnable>> high = new LinkedHashMap<String, LinkedList<Runnable>>();
+        final Map<String, LinkedList<Runnable>> normal = new LinkedHashMap<String, LinkedList<Runnable>>();
+        int queued;
+        int running;
+        double tokens = -1;
+        long lastRefill;
+        boolean wakeupScheduled;
+
+        boolean isIdle() {
+            return queued == 0;
+        }
+
+        void enqueue(Verification.Priority priority, String source, Runnable command) {
+            Map<String, LinkedList<Runnable>> queues = priority == Verification.Priority.HIGH ? high : normal;
+            LinkedList<Runnable> queue = queues.get(source);
+            if (queue == null) {
+                queue = new LinkedList<Runnable>();
+                queues.put(source, queue);
+            }
+            queue.add(command);
+            queued++;
+        }
+
+        Runnable next() {
+            Map<String, LinkedList<Runnable>> queues = high.isEmpty() ? normal : high;
+            Iterator<Map.Entry<String, LinkedList<Runnable>>> i = queues.entrySet().iterator();
+            Map.Entry<String, LinkedList<Runnable>> first = i.next();
+            Runnable command = first.getValue().removeFirst();
+            i.remove();
+            if (!first.getValue().isEmpty()) {
+                // Back of the line for this job
+                queues.put(first.getKey(), first.getValue());
+            }
+            queued--;
+            return command;
+        }
+
+        /* Token bucket holding at most one second's worth of commands. */
+        boolean takeToken(int rate) {
+            if (rate <= 0) {
+                return true;
+            }
+            refill(rate);
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        long nanosToNextToken(int rate) {
+            return Math.max(1, (long) ((1 - tokens) * TimeUnit.SECONDS.toNanos(1) / rate));
+        }
+
+        private void refill(int rate) {
+            long now = System.nanoTime();
+            if (tokens < 0) {
+                tokens = rate;
+            } else {
+                tokens = Math.min(rate, tokens + (now - lastRefill) * (double) rate / TimeUnit.SECONDS.toNanos(1));
+            }
+            lastRefill = now;
+        }
+    }
+}
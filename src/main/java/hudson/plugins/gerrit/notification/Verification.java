@@ -0,0 +1,307 @@
+package hudson.plugins.gerrit.notification;
+
+import hudson.plugins.gerrit.ssh.SSHConnectionPool;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+
+/**
+ * A single vote that should be sent to Gerrit: verdict and message for one revision.
+ *
+ * The command template takes verdict, message and a space separated list of revisions,
+ * so verifications that only differ by revision can be sent as one command. The link to the
+ * build is kept apart from the message: verifications from different builds share a command,
+ * and its message ends with the links of all of them.
+ *
+ * A verification may also carry input for the command, e.g. the JSON review of
+ * <tt>gerrit review --json</tt>.
+ */
+public final class Verification {
+
+    /**
+     * Votes that hold a change back are sent before approvals.
+     */
+    public enum Priority {
+        HIGH, NORMAL
+    }
+
+    private final SSHConnectionPool.Key connection;
+    private final String commandTemplate;
+    private final String verified;
+    private final String message;
+    private final String revision;
+    private final Priority priority;
+    private final String source;
+    private final String input;
+    private final String link;
+
+    public Verification(SSHConnectionPool.Key connection, String commandTemplate,
+                        String verified, String message, String revision) {
+        this(connection, commandTemplate, verified, message, revision, Priority.NORMAL, "");
+    }
+
+    public Verification(SSHConnectionPool.Key connection, String commandTemplate,
+                        String verified, String message, String revision, Priority priority, String source) {
+        this(connection, commandTemplate, verified, message, revision, priority, source, null);
+    }
+
+    public Verification(SSHConnectionPool.Key connection, String commandTemplate,
+                        String verified, String message, String revision, Priority priority, String source,
+                        String input) {
+        this(connection, commandTemplate, verified, message, revision, priority, source, input, null);
+    }
+
+    private Verification(SSHConnectionPool.Key connection, String commandTemplate,
+                         String verified, String message, String revision, Priority priority, String source,
+                         String input, String link) {
+        this.connection = connection;
+        this.commandTemplate = commandTemplate;
+        this.verified = verified;
+        this.message = message;
+        this.revision = revision;
+        this.priority = priority;
+        this.source = source;
+        this.input = input;
+        this.link = link;
+    }
+
+    /**
+     * Returns a copy sent on behalf of given job.
+     */
+    public Verification withSource(String source) {
+        return new Verification(connection, commandTemplate, verified, message, revision, priority, source, input,
+                link);
+    }
+
+    /**
+     * Returns a copy whose message ends with link, usually the URL of the build.
+     */
+    public Verification withLink(String link) {
+        return new Verification(connection, commandTemplate, verified, message, revision, priority, source, input,
+                link);
+    }
+
+    /**
+     * Returns a copy sent over connection.
+     */
+    public Verification withConnection(SSHConnectionPool.Key connection) {
+        return new Verification(connection, commandTemplate, verified, message, revision, priority, source, input,
+                link);
+    }
+
+    /**
+     * Returns a copy sent with another command, which reads input from stdin.
+     */
+    public Verification withInput(String commandTemplate, String input) {
+        return new Verification(connection, commandTemplate, verified, message, revision, priority, source, input,
+                link);
+    }
+
+    public SSHConnectionPool.Key getConnection() {
+        return connection;
+    }
+
+    public String getCommandTemplate() {
+        return commandTemplate;
+    }
+
+    public String getVerified() {
+        return verified;
+    }
+
+    /**
+     * The message with the link.
+     */
+    public String getMessage() {
+        return link == null ? message : message + link;
+    }
+
+    /**
+     * The message without the link, the same for every build with this verdict.
+     */
+    public String getMessageText() {
+        return message;
+    }
+
+    /**
+     * Usually the URL of the build, null if none.
+     */
+    public String getLink() {
+        return link;
+    }
+
+    public String getRevision() {
+        return revision;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Name of the job this vote is for.
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * What the command reads from stdin, null if nothing.
+     */
+    public String getInput() {
+        return input;
+    }
+
+    public String toCommand() {
+        return toCommand(revision);
+    }
+
+    public String toCommand(String revisions) {
+        return toCommand(revisions, link == null ? Collections.<String>emptyList() : Collections.singletonList(link));
+    }
+
+    /**
+     * Command for revisions whose message ends with links, each of them once.
+     */
+    public String toCommand(String revisions, Collection<String> links) {
+        StringBuilder sb = new StringBuilder(message);
+        for (String l : new LinkedHashSet<String>(links)) {
+            if (sb.length() > message.length()) {
+                sb.append(' ');
+            }
+            sb.append(l);
+        }
+        return String.format(commandTemplate, verified, sb.toString(), revisions);
+    }
+
+    /**
+     * Verifications with equal batch keys can share one command.
+     */
+    public BatchKey getBatchKey() {
+        return new BatchKey(this);
+    }
+
+    /**
+     * What the vote says apart from revision, short even if the command reads a long review:
+     * equal fingerprints make the same vote from the same build.
+     */
+    public String getFingerprint() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(commandTemplate).append('\n').append(verified).append('\n').append(message);
+        sb.append('\n').append(link == null ? "" : link);
+        if (input != null) {
+            sb.append('\n').append(digest(input));
+        }
+        return sb.toString();
+    }
+
+    private static String digest(String s) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(s.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Verifications with equal revision keys vote on the same revision as the same Gerrit account,
+     * only the newest of them matters.
+     */
+    public RevisionKey getRevisionKey() {
+        return new RevisionKey(connection, revision);
+    }
+
+    @Override
+    public String toString() {
+        return toCommand();
+    }
+
+    public static final class BatchKey {
+        private final SSHConnectionPool.Key connection;
+        private final String commandTemplate;
+        private final String verified;
+        private final String message;
+        private final String input;
+        /* A review read from stdin applies to a single revision. */
+        private final String revision;
+
+        private BatchKey(Verification v) {
+            this.connection = v.connection;
+            this.commandTemplate = v.commandTemplate;
+            this.verified = v.verified;
+            this.message = v.message;
+            this.input = v.input;
+            this.revision = v.input == null ? null : v.revision;
+        }
+
+        public SSHConnectionPool.Key getConnection() {
+            return connection;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof BatchKey)) {
+                return false;
+            }
+            BatchKey k = (BatchKey) o;
+            return connection.equals(k.connection)
+                    && commandTemplate.equals(k.commandTemplate)
+                    && verified.equals(k.verified)
+                    && message.equals(k.message)
+                    && (input == null ? k.input == null : input.equals(k.input))
+                    && (revision == null ? k.revision == null : revision.equals(k.revision));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = connection.hashCode();
+            result = 31 * result + commandTemplate.hashCode();
+            result = 31 * result + verified.hashCode();
+            result = 31 * result + message.hashCode();
+            result = 31 * result + (input == null ? 0 : input.hashCode());
+            result = 31 * result + (revision == null ? 0 : revision.hashCode());
+            return result;
+        }
+    }
+
+    public static final class RevisionKey {
+        private final SSHConnectionPool.Key connection;
+        private final String revision;
+
+        RevisionKey(SSHConnectionPool.Key connection, String revision) {
+            this.connection = connection;
+            this.revision = revision;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof RevisionKey)) {
+                return false;
+            }
+            RevisionKey k = (RevisionKey) o;
+            return connection.equals(k.connection) && revision.equals(k.revision);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * connection.hashCode() + revision.hashCode();
+        }
+    }
+}
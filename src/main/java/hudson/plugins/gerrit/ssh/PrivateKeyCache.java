@@ -0,0 +1,117 @@
+package hudson.plugins.gerrit.ssh;
+
+import com.sshtools.j2ssh.transport.publickey.SshPrivateKey;
+import com.sshtools.j2ssh.transport.publickey.SshPrivateKeyFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps parsed and decrypted private keys in memory.
+ *
+ * Entries are keyed by canonical path and are dropped as soon as modification time or size
+ * of the file changes. Decrypted keys are kept per passphrase digest, the passphrase itself
+ * is never stored.
+ */
+public class PrivateKeyCache {
+
+    static final int MAX_KEYS_PER_FILE = 4;
+
+    private static final PrivateKeyCache instance = new PrivateKeyCache();
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    public static PrivateKeyCache getInstance() {
+        return instance;
+    }
+
+    public SshPrivateKeyFile getKeyFile(File file) throws IOException {
+        return getEntry(file).getKeyFile();
+    }
+
+    public SshPrivateKey getPrivateKey(File file, String passPhrase) throws IOException {
+        Entry entry = getEntry(file);
+        SshPrivateKeyFile keyFile = entry.getKeyFile();
+        String digest = digest(passPhrase);
+        SshPrivateKey key = entry.keys.get(digest);
+        if (key == null) {
+            key = keyFile.toPrivateKey(passPhrase);
+            if (entry.keys.size() >= MAX_KEYS_PER_FILE) {
+                entry.keys.clear();
+            }
+            entry.keys.put(digest, key);
+        }
+        return key;
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    private Entry getEntry(File file) throws IOException {
+        File canonical = file.getCanonicalFile();
+        String path = canonical.getPath();
+        long modified = canonical.lastModified();
+        long length = canonical.length();
+        Entry entry = entries.get(path);
+        if (entry == null || entry.modified != modified || entry.length != length) {
+            entry = new Entry(modified, length);
+            try {
+                entry.keyFile = parse(canonical);
+            } catch (IOException e) {
+                entry.error = e;
+            }
+            entries.put(path, entry);
+        }
+        return entry;
+    }
+
+    SshPrivateKeyFile parse(File file) throws IOException {
+        return SshPrivateKeyFile.parse(file);
+    }
+
+    private static String digest(String passPhrase) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] hash = md.digest((passPhrase == null ? "" : passPhrase).getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Entry {
+        final long modified;
+        final long length;
+        final ConcurrentMap<String, SshPrivateKey> keys = new ConcurrentHashMap<String, SshPrivateKey>();
+        SshPrivateKeyFile keyFile;
+        IOException error;
+
+        Entry(long modified, long length) {
+            this.modified = modified;
+            this.length = length;
+        }
+
+        SshPrivateKeyFile getKeyFile() throws IOException {
+            if (error != null) {
+                throw error;
+            }
+            if (keyFile == null) {
+                throw new IOException("Failed to parse private key file");
+            }
+            return keyFile;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package hudson.plugins.gerrit.ssh;
+
+import java.io.IOException;
+
+/**
+ * Thrown when Gerrit reports a failure for a command or the command doesn't finish in time.
+ */
+public class SSHCommandException extends IOException {
+
+    private final Integer exitCode;
+    private final String stderr;
+
+    public SSHCommandException(String message, Integer exitCode, String stderr) {
+        super(message);
+        this.exitCode = exitCode;
+        this.stderr = stderr;
+    }
+
+    /**
+     * Exit status reported by Gerrit, or null if the command timed out.
+     */
+    public Integer getExitCode() {
+        return exitCode;
+    }
+
+    public String getStderr() {
+        return stderr;
+    }
+
+    public boolean isTimeout() {
+        return exitCode == null;
+    }
+}
@@ -0,0 +1,455 @@
+package hudson.plugins.gerrit.ssh;
+
+import hudson.plugins.gerrit.metrics.GerritMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps authenticated {@link SSHMarker} connections alive between builds and shares them
+ * between concurrent commands.
+ *
+ * Connections are keyed by host, port, user and private key. Each command runs on a channel
+ * of its own, so up to {@link #getMaxChannelsPerConnection()} commands share one connection
+ * and one handshake; only when all of them are busy is another connection opened.
+ * A connection is checked before it is reused, idle connections are closed after
+ * {@link #getIdleTimeout()} and a command that fails on a reused connection is retried once
+ * on a fresh one. A command that Gerrit rejects is not retried and a command that times out
+ * takes its connection down with it.
+ */
+public class SSHConnectionPool {
+
+    public static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000L;
+    public static final int DEFAULT_MAX_IDLE_PER_KEY = 4;
+
+    private static final Logger logger = Logger.getLogger(SSHConnectionPool.class.getName());
+    private static final SSHConnectionPool instance = new SSHConnectionPool();
+
+    private final Map<Key, LinkedList<Connection>> connections = new HashMap<Key, LinkedList<Connection>>();
+    private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private volatile int maxIdlePerKey = DEFAULT_MAX_IDLE_PER_KEY;
+    private volatile int maxChannelsPerConnection = SSHMarker.DEFAULT_MAX_CHANNELS;
+    private volatile long commandTimeout = SSHMarker.DEFAULT_COMMAND_TIMEOUT;
+
+    public static SSHConnectionPool getInstance() {
+        return instance;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public int getMaxIdlePerKey() {
+        return maxIdlePerKey;
+    }
+
+    public void setMaxIdlePerKey(int maxIdlePerKey) {
+        this.maxIdlePerKey = maxIdlePerKey;
+    }
+
+    public int getMaxChannelsPerConnection() {
+        return maxChannelsPerConnection;
+    }
+
+    /**
+     * Applies to connections opened from now on, open ones keep their limit until they are closed.
+     */
+    public void setMaxChannelsPerConnection(int maxChannelsPerConnection) {
+        this.maxChannelsPerConnection = Math.max(1, maxChannelsPerConnection);
+    }
+
+    public long getCommandTimeout() {
+        return commandTimeout;
+    }
+
+    public void setCommandTimeout(long commandTimeout) {
+        this.commandTimeout = commandTimeout;
+    }
+
+    /**
+     * Runs command on a pooled connection. If a reused connection turns out to be broken,
+     * it is thrown away and the command is run once more on a new connection.
+     */
+    public void execute(Key key, String command) throws IOException, InterruptedException {
+        execute(key, command, null);
+    }
+
+    /**
+     * Runs command like {@link #execute(Key, String)}, with input written to its stdin.
+     */
+    public void execute(Key key, String command, byte[] input) throws IOException, InterruptedException {
+        SSHMarker marker = takeShared(key);
+        if (marker != null) {
+            try {
+                runAndGiveBack(key, marker, command, input);
+                return;
+            } catch (SSHCommandException e) {
+                throw e;
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Pooled connection to " + key + " failed, reconnecting", e);
+                GerritMetrics.getInstance().retried();
+            }
+        }
+        runAndGiveBack(key, borrowNew(key), command, input);
+    }
+
+    /*
+     * Gives the connection back however the command ends. It is still fine if Gerrit answered with
+     * an exit status or the caller was interrupted, the channel is closed either way.
+     */
+    private void runAndGiveBack(Key key, SSHMarker marker, String command, byte[] input)
+            throws IOException, InterruptedException {
+        boolean healthy = false;
+        try {
+            run(marker, command, input);
+            healthy = true;
+        } catch (SSHCommandException e) {
+            healthy = !e.isTimeout();
+            throw e;
+        } catch (InterruptedException e) {
+            healthy = true;
+            throw e;
+        } finally {
+            if (healthy) {
+                release(key, marker);
+            } else {
+                invalidate(marker);
+            }
+        }
+    }
+
+    private static void run(SSHMarker marker, String command, byte[] input)
+            throws IOException, InterruptedException {
+        if (input == null) {
+            marker.executeCommand(command);
+        } else {
+            marker.executeCommand(command, input);
+        }
+    }
+
+    /**
+     * Returns a connected and authenticated marker for running one command at a time.
+     * Other callers may run commands on the same marker meanwhile, each on a channel of its own.
+     * Give it back with {@link #release} or {@link #invalidate} when done.
+     */
+    public SSHMarker borrow(Key key) throws IOException {
+        SSHMarker marker = takeShared(key);
+        if (marker != null) {
+            return marker;
+        }
+        return borrowNew(key);
+    }
+
+    public void release(Key key, SSHMarker marker) {
+        long now = System.currentTimeMillis();
+        SSHMarker overflow = null;
+        synchronized (connections) {
+            LinkedList<Connection> shared = connections.get(key);
+            if (shared == null) {
+                shared = new LinkedList<Connection>();
+                connections.put(key, shared);
+            }
+            Connection c = find(shared, marker);
+            if (c == null) {
+                c = new Connection(marker, maxChannelsPerConnection);
+                shared.addFirst(c);
+            } else if (c.users > 0) {
+                c.users--;
+            }
+            c.since = now;
+            if (c.dead) {
+                if (c.users == 0) {
+                    shared.remove(c);
+                }
+            } else if (c.users == 0 && idleCount(shared) > maxIdlePerKey) {
+                shared.remove(c);
+                overflow = marker;
+            }
+        }
+        if (overflow != null) {
+            disconnect(overflow);
+        }
+        evictIdle();
+    }
+
+    /**
+     * Gives back and closes a broken connection. Commands still running on it fail, and the
+     * connection is forgotten once they have given it back too.
+     */
+    public void invalidate(SSHMarker marker) {
+        synchronized (connections) {
+            for (LinkedList<Connection> shared : connections.values()) {
+                Connection c = find(shared, marker);
+                if (c != null) {
+                    c.dead = true;
+                    if (c.users > 0) {
+                        c.users--;
+                    }
+                    if (c.users == 0) {
+                        shared.remove(c);
+                    }
+                    break;
+                }
+            }
+        }
+        disconnect(marker);
+    }
+
+    /**
+     * Closes connections that have been idle longer than the idle timeout.
+     */
+    public void evictIdle() {
+        long deadline = System.currentTimeMillis() - idleTimeout;
+        LinkedList<SSHMarker> expired = new LinkedList<SSHMarker>();
+        synchronized (connections) {
+            Iterator<LinkedList<Connection>> keys = connections.values().iterator();
+            while (keys.hasNext()) {
+                LinkedList<Connection> shared = keys.next();
+                Iterator<Connection> i = shared.iterator();
+                while (i.hasNext()) {
+                    Connection c = i.next();
+                    if (c.users == 0 && c.since < deadline && !c.dead) {
+                        expired.add(c.marker);
+                        i.remove();
+                    }
+                }
+                if (shared.isEmpty()) {
+                    keys.remove();
+                }
+            }
+        }
+        for (SSHMarker marker : expired) {
+            disconnect(marker);
+        }
+    }
+
+    public void closeAll() {
+        LinkedList<SSHMarker> all = new LinkedList<SSHMarker>();
+        synchronized (connections) {
+            for (LinkedList<Connection> shared : connections.values()) {
+                for (Connection c : shared) {
+                    all.add(c.marker);
+                }
+            }
+            connections.clear();
+        }
+        for (SSHMarker marker : all) {
+            disconnect(marker);
+        }
+    }
+
+    /**
+     * Number of connections open for key, busy or idle.
+     */
+    public int getConnectionCount(Key key) {
+        synchronized (connections) {
+            LinkedList<Connection> shared = connections.get(key);
+            if (shared == null) {
+                return 0;
+            }
+            int n = 0;
+            for (Connection c : shared) {
+                if (!c.dead) {
+                    n++;
+                }
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Opens a connection that is never pooled, for sessions that stay open for a long time.
+     * The caller disconnects it.
+     */
+    public SSHMarker openDedicated(Key key) throws IOException {
+        return open(key);
+    }
+
+    protected SSHMarker newMarker() {
+        return new SSHMarker();
+    }
+
+    private SSHMarker open(Key key) throws IOException {
+        SSHMarker marker = newMarker();
+        marker.setCommandTimeout(commandTimeout);
+        marker.setMaxChannels(maxChannelsPerConnection);
+        marker.connect(key.host, key.port);
+        try {
+            marker.authenticate(key.username, key.privateKeyFile, key.passPhrase);
+        } catch (IOException e) {
+            disconnect(marker);
+            throw e;
+        }
+        return marker;
+    }
+
+    /* Opens a connection and takes one of its channels right away. */
+    private SSHMarker borrowNew(Key key) throws IOException {
+        SSHMarker marker = open(key);
+        synchronized (connections) {
+            LinkedList<Connection> shared = connections.get(key);
+            if (shared == null) {
+                shared = new LinkedList<Connection>();
+                connections.put(key, shared);
+            }
+            Connection c = new Connection(marker, maxChannelsPerConnection);
+            c.users = 1;
+            shared.addFirst(c);
+        }
+        return marker;
+    }
+
+    /*
+     * Busiest connection that still has a free channel, so idle ones can time out.
+     * Dead or expired idle connections are closed on the way.
+     */
+    private SSHMarker takeShared(Key key) {
+        long deadline = System.currentTimeMillis() - idleTimeout;
+        while (true) {
+            Connection c = null;
+            boolean inUse;
+            synchronized (connections) {
+                LinkedList<Connection> shared = connections.get(key);
+                if (shared == null) {
+                    return null;
+                }
+                for (Connection candidate : shared) {
+                    if (!candidate.dead && candidate.users < candidate.maxUsers
+                            && (c == null || candidate.users > c.users)) {
+                        c = candidate;
+                    }
+                }
+                if (c == null) {
+                    return null;
+                }
+                inUse = c.users > 0;
+                c.users++;
+            }
+            if ((inUse || c.since >= deadline) && c.marker.isConnected()) {
+                return c.marker;
+            }
+            invalidate(c.marker);
+        }
+    }
+
+    private static Connection find(LinkedList<Connection> shared, SSHMarker marker) {
+        for (Connection c : shared) {
+            if (c.marker == marker) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    private static int idleCount(LinkedList<Connection> shared) {
+        int n = 0;
+        for (Connection c : shared) {
+            if (c.users == 0 && !c.dead) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private static void disconnect(SSHMarker marker) {
+        try {
+            marker.disconnect();
+        } catch (RuntimeException e) {
+            logger.log(Level.FINE, "Failed to disconnect", e);
+        }
+    }
+
+    /* Guarded by the connections map. */
+    private static class Connection {
+        final SSHMarker marker;
+        final int maxUsers;
+        int users;
+        long since;
+        boolean dead;
+
+        Connection(SSHMarker marker, int maxUsers) {
+            this.marker = marker;
+            this.maxUsers = maxUsers;
+            this.since = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Identifies a Gerrit account: connections are only shared between identical keys.
+     */
+    public static final class Key {
+        private final String host;
+        private final int port;
+        private final String username;
+        private final File privateKeyFile;
+        private final String passPhrase;
+
+        public Key(String host, int port, String username, File privateKeyFile, String passPhrase) {
+            this.host = host == null ? "" : host;
+            this.port = port;
+            this.username = username == null ? "" : username;
+            this.privateKeyFile = privateKeyFile;
+            this.passPhrase = passPhrase == null ? "" : passPhrase;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public File getPrivateKeyFile() {
+            return privateKeyFile;
+        }
+
+        public String getPassPhrase() {
+            return passPhrase;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return port == k.port
+                    && host.equals(k.host)
+                    && username.equals(k.username)
+                    && privateKeyFile.equals(k.privateKeyFile)
+                    && passPhrase.equals(k.passPhrase);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = host.hashCode();
+            result = 31 * result + port;
+            result = 31 * result + username.hashCode();
+            result = 31 * result + privateKeyFile.hashCode();
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return username + "@" + host + ":" + port;
+        }
+    }
+}
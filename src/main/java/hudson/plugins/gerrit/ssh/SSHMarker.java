@@ -6,32 +6,52 @@ package hudson.plugins.gerrit.ssh;
 
 import com.sshtools.j2ssh.SshClient;
 import com.sshtools.j2ssh.authentication.PublicKeyAuthenticationClient;
+import com.sshtools.j2ssh.connection.ChannelState;
 import com.sshtools.j2ssh.session.SessionChannelClient;
 import com.sshtools.j2ssh.transport.IgnoreHostKeyVerification;
-import com.sshtools.j2ssh.transport.publickey.InvalidSshKeyException;
 import com.sshtools.j2ssh.transport.publickey.SshPrivateKey;
 import com.sshtools.j2ssh.transport.publickey.SshPrivateKeyFile;
+import hudson.plugins.gerrit.metrics.GerritMetrics;
 
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Semaphore;
 
 /**
+ * One authenticated connection to Gerrit. Commands run on channels of their own, so several
+ * threads may run commands at the same time, at most {@link #getMaxChannels()} of them.
  *
  * @author Jyrki
  */
 public class SSHMarker {
 
-    private SshClient client = null;
+    public static final long DEFAULT_COMMAND_TIMEOUT = 60 * 1000;
+    public static final int DEFAULT_MAX_CHANNELS = 4;
+    /* Error output kept for a failed command, Gerrit may explain a rejected review at length. */
+    static final int MAX_STDERR = 4096;
+
+    private volatile SshClient client = null;
+    private volatile long commandTimeout = DEFAULT_COMMAND_TIMEOUT;
+    private volatile int maxChannels = DEFAULT_MAX_CHANNELS;
+    private final Channels channels = new Channels(DEFAULT_MAX_CHANNELS);
     @SuppressWarnings({"UnusedDeclaration"})
     public SSHMarker() {
     }
 
     public void connect(String host, int port) throws IOException {
 
-        SshClient client = new SshClient();
-        client.connect(host, port, new IgnoreHostKeyVerification());
+        long start = System.nanoTime();
+        try {
+            SshClient client = newClient();
+            client.connect(host, port, new IgnoreHostKeyVerification());
 
-        this.client = client;
+            this.client = client;
+        } finally {
+            GerritMetrics.getInstance().getConnect().recordSince(start);
+        }
     }
 
     public void authenticate(String username, File private_key_file, String passPhrase)
@@ -42,18 +62,25 @@ public class SSHMarker {
 
         pk.setUsername(username);
 
-        SshPrivateKeyFile file = SshPrivateKeyFile.parse(private_key_file);
-        //file.setFormat(new SshtoolsPrivateKeyFormat(), passPhrase);
-        SshPrivateKey key = file.toPrivateKey(passPhrase);
+        SshPrivateKey key = PrivateKeyCache.getInstance().getPrivateKey(private_key_file, passPhrase);
         pk.setKey(key);
-        client.authenticate(pk);
+        long start = System.nanoTime();
+        try {
+            client.authenticate(pk);
+        } finally {
+            GerritMetrics.getInstance().getAuthenticate().recordSince(start);
+        }
+    }
+    protected SshClient newClient() {
+        return new SshClient();
     }
+
     @SuppressWarnings({"BooleanMethodIsAlwaysInverted"})
     public static boolean IsPrivateKeyFileValid(File f) {
 
         SshPrivateKeyFile file;
         try {
-            file = SshPrivateKeyFile.parse(f);
+            file = PrivateKeyCache.getInstance().getKeyFile(f);
         } catch (IOException e) {
             return false;
         }
@@ -62,34 +89,172 @@ public class SSHMarker {
     
     @SuppressWarnings({"BooleanMethodIsAlwaysInverted"})
     public static boolean CheckPassPhrase(File f, String p) {
-        SshPrivateKeyFile file;
         try {
-            file = SshPrivateKeyFile.parse(f);
+            @SuppressWarnings({"UnusedAssignment"})
+            SshPrivateKey key = PrivateKeyCache.getInstance().getPrivateKey(f, p);
         } catch (IOException e) {
             return false;
         }
+        return true;
+    }
+    public long getCommandTimeout() {
+        return commandTimeout;
+    }
 
-        try {
-            @SuppressWarnings({"UnusedAssignment"})
-            SshPrivateKey key = file.toPrivateKey(p);
-        } catch (InvalidSshKeyException e) {
-            return false;
+    public void setCommandTimeout(long commandTimeout) {
+        this.commandTimeout = commandTimeout;
+    }
+
+    public int getMaxChannels() {
+        return maxChannels;
+    }
+
+    /**
+     * Commands already running keep their channel, new ones are counted against the new limit.
+     * If more are running than the new limit allows, new commands wait until enough have finished.
+     */
+    public synchronized void setMaxChannels(int maxChannels) {
+        if (maxChannels < 1) {
+            throw new IllegalArgumentException("At least one channel is needed, got " + maxChannels);
         }
-        return true;
+        int change = maxChannels - this.maxChannels;
+        if (change > 0) {
+            channels.release(change);
+        } else if (change < 0) {
+            channels.reducePermits(-change);
+        }
+        this.maxChannels = maxChannels;
+    }
+
+    /**
+     * Number of commands running right now.
+     */
+    public synchronized int getActiveChannels() {
+        return maxChannels - channels.availablePermits();
     }
+
     public void executeCommand(String command) throws IOException, InterruptedException {
+        executeCommand(command, null, commandTimeout);
+    }
+
+    /**
+     * Runs command with input written to its stdin.
+     */
+    public void executeCommand(String command, byte[] input) throws IOException, InterruptedException {
+        executeCommand(command, input, commandTimeout);
+    }
+
+    public void executeCommand(String command, long timeout) throws IOException, InterruptedException {
+        executeCommand(command, null, timeout);
+    }
+
+    /**
+     * Runs command, writes input to its stdin unless it is null and waits until Gerrit closes
+     * the channel, at most timeout milliseconds. Waits first if all channels are taken.
+     *
+     * @throws SSHCommandException if the command exits with non-zero status or doesn't finish in time
+     */
+    public void executeCommand(String command, byte[] input, long timeout) throws IOException, InterruptedException {
         assert client != null;
+        channels.acquire();
+        try {
+            runCommand(command, input, timeout);
+        } finally {
+            channels.release();
+        }
+    }
+
+    private void runCommand(String command, byte[] input, long timeout) throws IOException, InterruptedException {
+        long start = System.nanoTime();
         SessionChannelClient session = client.openSessionChannel();
-        session.executeCommand(command);
-        session.setLocalEOF();
-        while(!session.isRemoteEOF()) {
-            Thread.sleep(10);
+        try {
+            if (!session.executeCommand(command)) {
+                throw new IOException("Gerrit refused to execute " + command);
+            }
+            if (input != null) {
+                OutputStream stdin = session.getOutputStream();
+                stdin.write(input);
+                stdin.flush();
+            }
+            session.setLocalEOF();
+            int wait = (int) Math.min(Integer.MAX_VALUE, Math.max(1, timeout));
+            if (!session.getState().waitForState(ChannelState.CHANNEL_CLOSED, wait)) {
+                throw new SSHCommandException("Command did not finish in " + timeout + " ms: " + command, null, null);
+            }
+            Integer exitCode = session.getExitCode();
+            if (exitCode != null && exitCode != 0) {
+                String stderr = readAvailable(session.getStderrInputStream());
+                throw new SSHCommandException("Command failed with exit status " + exitCode + ": " + stderr,
+                        exitCode, stderr);
+            }
+        } finally {
+            if (!session.isClosed()) {
+                session.close();
+            }
+            GerritMetrics.getInstance().getExecute().recordSince(start);
+        }
+    }
+
+    /**
+     * Starts a command that keeps running, like gerrit stream-events, and returns its output.
+     * Closing the returned stream closes the channel.
+     */
+    public InputStream openStream(String command) throws IOException {
+        assert client != null;
+        final SessionChannelClient session = client.openSessionChannel();
+        if (!session.executeCommand(command)) {
+            session.close();
+            throw new IOException("Gerrit refused to execute " + command);
         }
-        session.close();
+        return new FilterInputStream(session.getInputStream()) {
+            @Override
+            public void close() throws IOException {
+                if (!session.isClosed()) {
+                    session.close();
+                }
+            }
+        };
+    }
+
+    /* Reads what the channel has buffered, at most MAX_STDERR bytes; the channel is already closed. */
+    private static String readAvailable(InputStream in) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            byte[] buffer = new byte[1024];
+            int available;
+            while ((available = in.available()) > 0 && sb.length() < MAX_STDERR) {
+                int n = in.read(buffer, 0, Math.min(buffer.length, available));
+                if (n < 0) {
+                    break;
+                }
+                sb.append(new String(buffer, 0, n, "UTF-8"));
+            }
+        } catch (IOException e) {
+            // Best effort only, the exit status is what matters
+        }
+        return sb.toString().trim();
+    }
+
+    public boolean isConnected() {
+        return client != null && client.isConnected();
     }
 
     public void disconnect() {
         assert client != null;
+        long start = System.nanoTime();
         client.disconnect();
+        GerritMetrics.getInstance().getDisconnect().recordSince(start);
+    }
+
+    /* Permits for channels; taking permits away may leave fewer than none while commands run. */
+    private static class Channels extends Semaphore {
+        Channels(int permits) {
+            super(permits, true);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
     }
 }
@@ -0,0 +1,72 @@
+package hudson.plugins.gerrit.trigger;
+
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads <tt>gerrit stream-events</tt> output, one JSON object per line.
+ *
+ * Each line is handed on as soon as it is complete. Only patchset-created events are
+ * decoded, other lines are dropped without parsing them as JSON.
+ */
+public class EventParser {
+
+    /**
+     * Receives every patchset-created event in the stream.
+     */
+    public interface Handler {
+        void patchsetCreated(PatchsetCreated event);
+    }
+
+    static final String PATCHSET_CREATED = "patchset-created";
+
+    private static final String TYPE_MARKER = "\"" + PATCHSET_CREATED + "\"";
+
+    /**
+     * Reads until the end of the stream.
+     */
+    public static void parse(Reader events, Handler handler) throws IOException {
+        BufferedReader reader = new BufferedReader(events);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            PatchsetCreated event = parse(line);
+            if (event != null) {
+                handler.patchsetCreated(event);
+            }
+        }
+    }
+
+    /**
+     * Returns the event on the line, or null if it isn't a valid patchset-created event.
+     */
+    public static PatchsetCreated parse(String line) {
+        if (line.indexOf(TYPE_MARKER) < 0) {
+            return null;
+        }
+        JSONObject json;
+        try {
+            json = JSONObject.fromObject(line);
+        } catch (JSONException e) {
+            return null;
+        }
+        if (!PATCHSET_CREATED.equals(json.optString("type"))) {
+            return null;
+        }
+        JSONObject change = json.optJSONObject("change");
+        JSONObject patchSet = json.optJSONObject("patchSet");
+        if (change == null || patchSet == null) {
+            return null;
+        }
+        String revision = patchSet.optString("revision");
+        if (revision.length() == 0) {
+            return null;
+        }
+        return new PatchsetCreated(change.optString("project"), change.optString("branch"),
+                change.optString("number"), change.optString("url"),
+                patchSet.optString("number"), revision, patchSet.optString("ref"));
+    }
+}
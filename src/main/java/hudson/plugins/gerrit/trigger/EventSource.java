@@ -0,0 +1,12 @@
+package hudson.plugins.gerrit.trigger;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Opens a stream of Gerrit events. Each call starts a new stream, closing the returned
+ * reader ends it.
+ */
+public interface EventSource {
+    Reader open() throws IOException, InterruptedException;
+}
@@ -0,0 +1,146 @@
+package hudson.plugins.gerrit.trigger;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps one event stream open on a background thread and passes its events to every handler.
+ * The stream is reopened when it ends or fails, waiting longer after each failed attempt.
+ */
+public class EventStream implements Runnable {
+
+    public static final long MIN_RECONNECT_DELAY = 1000;
+    public static final long MAX_RECONNECT_DELAY = 5 * 60 * 1000;
+
+    private static final Logger logger = Logger.getLogger(EventStream.class.getName());
+
+    private final EventSource source;
+    private final List<EventParser.Handler> handlers = new CopyOnWriteArrayList<EventParser.Handler>();
+    private final Object lock = new Object();
+    private volatile long minReconnectDelay = MIN_RECONNECT_DELAY;
+    private Thread thread;
+    private Reader current;
+    private boolean running;
+
+    public EventStream(EventSource source) {
+        this.source = source;
+    }
+
+    public void setMinReconnectDelay(long minReconnectDelay) {
+        this.minReconnectDelay = minReconnectDelay;
+    }
+
+    public void addHandler(EventParser.Handler handler) {
+        handlers.add(handler);
+    }
+
+    public void removeHandler(EventParser.Handler handler) {
+        handlers.remove(handler);
+    }
+
+    public boolean hasHandlers() {
+        return !handlers.isEmpty();
+    }
+
+    public void start() {
+        synchronized (lock) {
+            if (running) {
+                return;
+            }
+            running = true;
+            thread = new Thread(this, "Gerrit stream-events " + source);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Closes the stream and waits for the reader thread to end.
+     */
+    public void stop() throws InterruptedException {
+        Thread t;
+        synchronized (lock) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            closeQuietly(current);
+            t = thread;
+            thread = null;
+        }
+        t.interrupt();
+        t.join(MAX_RECONNECT_DELAY);
+    }
+
+    public boolean isRunning() {
+        synchronized (lock) {
+            return running;
+        }
+    }
+
+    public void run() {
+        EventParser.Handler dispatcher = new EventParser.Handler() {
+            public void patchsetCreated(PatchsetCreated event) {
+                dispatch(event);
+            }
+        };
+        long delay = minReconnectDelay;
+        while (isRunning()) {
+            Reader reader = null;
+            try {
+                reader = source.open();
+                synchronized (lock) {
+                    if (!running) {
+                        break;
+                    }
+                    current = reader;
+                }
+                delay = minReconnectDelay;
+                EventParser.parse(reader, dispatcher);
+                logger.info("Gerrit event stream from " + source + " ended, reconnecting");
+            } catch (IOException e) {
+                if (isRunning()) {
+                    logger.log(Level.WARNING, "Gerrit event stream from " + source + " failed", e);
+                }
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                synchronized (lock) {
+                    current = null;
+                }
+                closeQuietly(reader);
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                break;
+            }
+            delay = Math.min(delay * 2, MAX_RECONNECT_DELAY);
+        }
+    }
+
+    private void dispatch(PatchsetCreated event) {
+        for (EventParser.Handler handler : handlers) {
+            try {
+                handler.patchsetCreated(event);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Handling " + event + " failed", e);
+            }
+        }
+    }
+
+    private static void closeQuietly(Reader reader) {
+        if (reader == null) {
+            return;
+        }
+        try {
+            reader.close();
+        } catch (IOException e) {
+            // The stream is being abandoned anyway
+        }
+    }
+}
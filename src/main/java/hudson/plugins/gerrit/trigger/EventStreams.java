@@ -0,0 +1,63 @@
+package hudson.plugins.gerrit.trigger;
+
+import hudson.plugins.gerrit.ssh.SSHConnectionPool;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One event stream per Gerrit account, shared by every job that listens to it.
+ * A stream is opened with its first handler and closed after its last one is removed.
+ */
+public class EventStreams {
+
+    private static final Logger logger = Logger.getLogger(EventStreams.class.getName());
+    private static final EventStreams instance = new EventStreams();
+
+    private final Map<SSHConnectionPool.Key, EventStream> streams = new HashMap<SSHConnectionPool.Key, EventStream>();
+
+    public static EventStreams getInstance() {
+        return instance;
+    }
+
+    public synchronized void subscribe(SSHConnectionPool.Key key, EventParser.Handler handler) {
+        EventStream stream = streams.get(key);
+        if (stream == null) {
+            stream = new EventStream(newSource(key));
+            streams.put(key, stream);
+        }
+        stream.addHandler(handler);
+        stream.start();
+    }
+
+    public void unsubscribe(SSHConnectionPool.Key key, EventParser.Handler handler) {
+        EventStream stream;
+        synchronized (this) {
+            stream = streams.get(key);
+            if (stream == null) {
+                return;
+            }
+            stream.removeHandler(handler);
+            if (stream.hasHandlers()) {
+                return;
+            }
+            streams.remove(key);
+        }
+        try {
+            stream.stop();
+        } catch (InterruptedException e) {
+            logger.log(Level.FINE, "Interrupted while closing event stream " + key, e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public synchronized int size() {
+        return streams.size();
+    }
+
+    protected EventSource newSource(SSHConnectionPool.Key key) {
+        return new SSHEventSource(SSHConnectionPool.getInstance(), key);
+    }
+}
@@ -0,0 +1,36 @@
+package hudson.plugins.gerrit.trigger;
+
+import hudson.model.Cause;
+
+/**
+ * Build was started by a new patch set in Gerrit.
+ */
+public class GerritEventCause extends Cause {
+
+    private final String changeNumber;
+    private final String patchSetNumber;
+    private final String changeUrl;
+
+    public GerritEventCause(PatchsetCreated event) {
+        this.changeNumber = event.getChangeNumber();
+        this.patchSetNumber = event.getPatchSetNumber();
+        this.changeUrl = event.getChangeUrl();
+    }
+
+    public String getChangeNumber() {
+        return changeNumber;
+    }
+
+    public String getPatchSetNumber() {
+        return patchSetNumber;
+    }
+
+    public String getChangeUrl() {
+        return changeUrl;
+    }
+
+    @Override
+    public String getShortDescription() {
+        return "Triggered by Gerrit change " + changeNumber + ", patch set " + patchSetNumber;
+    }
+}
@@ -0,0 +1,97 @@
+package hudson.plugins.gerrit.trigger;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.Item;
+import hudson.model.ParametersAction;
+import hudson.plugins.gerrit.GerritNotifier;
+import hudson.plugins.gerrit.ssh.SSHConnectionPool;
+import hudson.triggers.Trigger;
+import hudson.triggers.TriggerDescriptor;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.logging.Logger;
+
+/**
+ * Starts a build for every new patch set of a Gerrit project, as reported by gerrit stream-events.
+ *
+ * The Gerrit account is the one configured for the job's Gerrit notifier. The patch set is
+ * passed to the build as GERRIT_* parameters, GERRIT_PATCHSET_REVISION can be used as the
+ * branch to build.
+ */
+public class GerritTrigger extends Trigger<AbstractProject<?, ?>> {
+
+    private static final Logger logger = Logger.getLogger(GerritTrigger.class.getName());
+
+    private final String gerrit_project;
+    private final String gerrit_branch;
+
+    private transient SSHConnectionPool.Key key;
+    private transient EventParser.Handler handler;
+
+    @DataBoundConstructor
+    public GerritTrigger(String gerrit_project, String gerrit_branch) {
+        this.gerrit_project = gerrit_project == null ? "" : gerrit_project.trim();
+        this.gerrit_branch = gerrit_branch == null ? "" : gerrit_branch.trim();
+    }
+
+    public String getGerrit_project() {
+        return gerrit_project;
+    }
+
+    public String getGerrit_branch() {
+        return gerrit_branch;
+    }
+
+    @Override
+    public void start(AbstractProject<?, ?> project, boolean newInstance) {
+        super.start(project, newInstance);
+        GerritNotifier notifier = project.getPublishersList().get(GerritNotifier.class);
+        if (notifier == null) {
+            logger.warning(project.getName() + " has a Gerrit trigger but no Gerrit notifier to take the account from");
+            return;
+        }
+        key = notifier.getConnectionKey();
+        handler = new EventParser.Handler() {
+            public void patchsetCreated(PatchsetCreated event) {
+                onPatchsetCreated(event);
+            }
+        };
+        EventStreams.getInstance().subscribe(key, handler);
+    }
+
+    @Override
+    public void stop() {
+        if (handler != null) {
+            EventStreams.getInstance().unsubscribe(key, handler);
+            handler = null;
+        }
+    }
+
+    boolean matches(PatchsetCreated event) {
+        return gerrit_project.equals(event.getProject())
+                && (gerrit_branch.length() == 0 || gerrit_branch.equals(event.getBranch()));
+    }
+
+    void onPatchsetCreated(PatchsetCreated event) {
+        if (!matches(event) || job.isDisabled()) {
+            return;
+        }
+        logger.info("Scheduling " + job.getName() + " for " + event);
+        job.scheduleBuild(0, new GerritEventCause(event), new ParametersAction(event.toParameters()));
+    }
+
+    @Extension
+    public static class DescriptorImpl extends TriggerDescriptor {
+
+        @Override
+        public boolean isApplicable(Item item) {
+            return item instanceof AbstractProject;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Build when a patch set is uploaded to Gerrit";
+        }
+    }
+}
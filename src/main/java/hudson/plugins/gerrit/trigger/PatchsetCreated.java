@@ -0,0 +1,80 @@
+package hudson.plugins.gerrit.trigger;
+
+import hudson.model.ParameterValue;
+import hudson.model.StringParameterValue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A patchset-created event from gerrit stream-events.
+ */
+public class PatchsetCreated {
+
+    private final String project;
+    private final String branch;
+    private final String changeNumber;
+    private final String changeUrl;
+    private final String patchSetNumber;
+    private final String revision;
+    private final String ref;
+
+    public PatchsetCreated(String project, String branch, String changeNumber, String changeUrl,
+                           String patchSetNumber, String revision, String ref) {
+        this.project = project;
+        this.branch = branch;
+        this.changeNumber = changeNumber;
+        this.changeUrl = changeUrl;
+        this.patchSetNumber = patchSetNumber;
+        this.revision = revision;
+        this.ref = ref;
+    }
+
+    public String getProject() {
+        return project;
+    }
+
+    public String getBranch() {
+        return branch;
+    }
+
+    public String getChangeNumber() {
+        return changeNumber;
+    }
+
+    public String getChangeUrl() {
+        return changeUrl;
+    }
+
+    public String getPatchSetNumber() {
+        return patchSetNumber;
+    }
+
+    public String getRevision() {
+        return revision;
+    }
+
+    public String getRef() {
+        return ref;
+    }
+
+    /**
+     * Build parameters describing this patch set.
+     */
+    public List<ParameterValue> toParameters() {
+        List<ParameterValue> params = new ArrayList<ParameterValue>();
+        params.add(new StringParameterValue("GERRIT_PROJECT", project));
+        params.add(new StringParameterValue("GERRIT_BRANCH", branch));
+        params.add(new StringParameterValue("GERRIT_CHANGE_NUMBER", changeNumber));
+        params.add(new StringParameterValue("GERRIT_CHANGE_URL", changeUrl));
+        params.add(new StringParameterValue("GERRIT_PATCHSET_NUMBER", patchSetNumber));
+        params.add(new StringParameterValue("GERRIT_PATCHSET_REVISION", revision));
+        params.add(new StringParameterValue("GERRIT_REFSPEC", ref));
+        return params;
+    }
+
+    @Override
+    public String toString() {
+        return project + " change " + changeNumber + "/" + patchSetNumber + " (" + revision + ")";
+    }
+}
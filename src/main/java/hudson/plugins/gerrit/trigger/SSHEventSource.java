@@ -0,0 +1,48 @@
+package hudson.plugins.gerrit.trigger;
+
+import hudson.plugins.gerrit.ssh.SSHConnectionPool;
+import hudson.plugins.gerrit.ssh.SSHMarker;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+/**
+ * Runs <tt>gerrit stream-events</tt> on its own connection, which is closed with the stream.
+ */
+public class SSHEventSource implements EventSource {
+
+    static final String COMMAND = "gerrit stream-events";
+
+    private final SSHConnectionPool pool;
+    private final SSHConnectionPool.Key key;
+
+    public SSHEventSource(SSHConnectionPool pool, SSHConnectionPool.Key key) {
+        this.pool = pool;
+        this.key = key;
+    }
+
+    public Reader open() throws IOException {
+        final SSHMarker marker = pool.openDedicated(key);
+        try {
+            return new InputStreamReader(marker.openStream(COMMAND), "UTF-8") {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        marker.disconnect();
+                    }
+                }
+            };
+        } catch (IOException e) {
+            marker.disconnect();
+            throw e;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return key.toString();
+    }
+}
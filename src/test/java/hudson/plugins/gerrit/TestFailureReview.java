@@ -0,0 +1,64 @@
+package hudson.plugins.gerrit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestFailureReview {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    static final String TRACE = "java.lang.AssertionError: expected:<1> but was:<2>\n"
+            + "\tat org.junit.Assert.fail(Assert.java:91)\n"
+            + "\tat org.junit.Assert.assertEquals(Assert.java:126)\n"
+            + "\tat com.example.util.TestParser$Fixture.check(TestParser.java:88)\n"
+            + "\tat com.example.util.TestParser.parsesEmptyInput(TestParser.java:42)\n"
+            + "\tat sun.reflect.NativeMethodAccessorImpl.invoke0(Native Method)\n";
+
+    @Test
+    public void innermostFrameOfTestClassIsUsed() {
+        FailureReview.Location location = FailureReview.locate("com.example.util.TestParser", TRACE);
+        assertEquals("com/example/util/TestParser.java", location.path);
+        assertEquals(88, location.line);
+    }
+
+    @Test
+    public void classInDefaultPackage() {
+        FailureReview.Location location = FailureReview.locate("TestAll",
+                "java.lang.RuntimeException\n\tat TestAll.run(TestAll.java:7)\n");
+        assertEquals("TestAll.java", location.path);
+        assertEquals(7, location.line);
+    }
+
+    @Test
+    public void traceOutsideTestClassHasNoLocation() {
+        assertNull(FailureReview.locate("com.example.util.TestParserIT", TRACE));
+        assertNull(FailureReview.locate("com.example.util.TestParser", null));
+    }
+
+    @Test
+    public void failureOutsideThePatchSetGetsNoComment() throws IOException {
+        File repository = folder.newFolder("repository");
+        assertTrue(new File(repository, "src/test/java/com/example").mkdirs());
+        assertTrue(new File(repository, "src/test/java/com/example/TestChanged.java").createNewFile());
+        assertTrue(new File(repository, "src/test/java/com/example/TestUntouched.java").createNewFile());
+
+        Map<String, String> found = FailureReview.findSources(repository,
+                new HashSet<String>(Arrays.asList("src/test/java/com/example/TestChanged.java", "README")),
+                Arrays.asList("com/example/TestChanged.java", "com/example/TestUntouched.java"));
+        assertEquals(Collections.singletonMap("com/example/TestChanged.java",
+                "src/test/java/com/example/TestChanged.java"), found);
+    }
+}
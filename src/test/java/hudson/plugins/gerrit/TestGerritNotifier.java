@@ -1,20 +1,30 @@
 package hudson.plugins.gerrit;
 
 import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
 import hudson.model.Build;
+import hudson.model.FreeStyleProject;
 import hudson.model.BuildListener;
 import hudson.model.Result;
+import hudson.plugins.gerrit.ssh.SSHCommandException;
+import hudson.plugins.git.Revision;
+import hudson.plugins.git.util.BuildData;
 import hudson.remoting.VirtualChannel;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.jvnet.hudson.test.FailureBuilder;
 import org.jvnet.hudson.test.MockBuilder;
+import org.jvnet.hudson.test.TestBuilder;
 import org.jvnet.hudson.test.UnstableBuilder;
+import org.mockito.Matchers;
 import org.mockito.Mock;
+import org.eclipse.jgit.lib.ObjectId;
 
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.concurrent.ExecutionException;
 
 import static org.mockito.Mockito.*;
@@ -84,5 +94,93 @@ public class TestGerritNotifier extends GerritNotifierTestCase {
         String command = notifier.generateDidNotFinishCommand(notifier.getBuildUrl(build, listener), hexString);
         verify(marker).executeCommand(command);
     }
-}
 
+    @Test
+    public void testGitHomes() {
+        GerritNotifier several = new GerritNotifier(" .git, modules/core/.git,,.git ", hostName, 29418, userName,
+                "+1", "-1", "-1", privateKeyFilePath, passPhrase);
+        assertEquals(Arrays.asList(".git", "modules/core/.git"), several.getGitHomes());
+        GerritNotifier empty = new GerritNotifier("", hostName, 29418, userName,
+                "+1", "-1", "-1", privateKeyFilePath, passPhrase);
+        assertEquals(Arrays.asList(".git"), empty.getGitHomes());
+    }
+
+    @Test
+    public void testEveryRepositoryIsVoted() throws IOException, ExecutionException, InterruptedException {
+        ObjectId other = ObjectId.fromString("2234567890123456789012345678901234567890");
+        notifier = new GerritNotifier(".git, modules/core/.git", hostName, 29418, userName, "+1", "-1", "-1",
+                privateKeyFilePath, passPhrase);
+        notifier.setGitTools(git);
+        notifier.setMarker(marker);
+        when(git.getHead(Matchers.<File>any(), eq("modules/core/.git"))).thenReturn(other);
+
+        final Build build = doBuild(null);
+        assertEquals(Result.SUCCESS, build.getResult());
+        String command = notifier.generateApproveCommand(notifier.getBuildUrl(build, listener),
+                hexString + " " + other.name());
+        verify(marker).executeCommand(command);
+    }
+
+    @Test
+    public void testRejectedRepositoryDoesNotFailBuild() throws IOException, ExecutionException, InterruptedException {
+        ObjectId merged = ObjectId.fromString("3234567890123456789012345678901234567890");
+        notifier = new GerritNotifier(".git, modules/core/.git", hostName, 29418, userName, "+1", "-1", "-1",
+                privateKeyFilePath, passPhrase);
+        notifier.setGitTools(git);
+        notifier.setMarker(marker);
+        when(git.getHead(Matchers.<File>any(), eq("modules/core/.git"))).thenReturn(merged);
+        doThrow(new SSHCommandException("rejected", 1, "fatal: change is closed"))
+                .when(marker).executeCommand(contains(merged.name()));
+
+        final Build build = doBuild(null);
+        assertEquals(Result.SUCCESS, build.getResult());
+        verify(marker).executeCommand(notifier.generateApproveCommand(notifier.getBuildUrl(build, listener), hexString));
+    }
+
+    @Test
+    public void testUnchangedRepositoryIsNotVotedAgain() throws IOException, ExecutionException, InterruptedException {
+        ObjectId core = ObjectId.fromString("2234567890123456789012345678901234567890");
+        ObjectId changed = ObjectId.fromString("4234567890123456789012345678901234567890");
+        notifier = new GerritNotifier(".git, modules/core/.git", hostName, 29418, userName, "+1", "-1", "-1",
+                privateKeyFilePath, passPhrase);
+        notifier.setGitTools(git);
+        notifier.setMarker(marker);
+        when(git.getHead(Matchers.<File>any(), eq(".git"))).thenReturn(id, changed);
+        when(git.getHead(Matchers.<File>any(), eq("modules/core/.git"))).thenReturn(core);
+
+        FreeStyleProject project = createProject();
+        project.scheduleBuild2(0).get();
+        Build build = project.scheduleBuild2(0).get();
+        assertEquals(Result.SUCCESS, build.getResult());
+        verify(marker).executeCommand(notifier.generateApproveCommand(notifier.getBuildUrl(build, listener),
+                changed.name()));
+        verify(marker, never()).executeCommand(notifier.generateApproveCommand(notifier.getBuildUrl(build, listener),
+                changed.name() + " " + core.name()));
+    }
+
+    @Test
+    public void testBuiltRevisionIsTakenFromGitPlugin() throws IOException, ExecutionException, InterruptedException {
+        final String built = "5234567890123456789012345678901234567890";
+        final Build build = doBuild(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) {
+                BuildData data = new BuildData();
+                data.saveBuild(new hudson.plugins.git.util.Build(
+                        new Revision(org.spearce.jgit.lib.ObjectId.fromString(built)), build.getNumber(), null));
+                build.addAction(data);
+                return true;
+            }
+        });
+        assertEquals(Result.SUCCESS, build.getResult());
+        verify(marker).executeCommand(notifier.generateApproveCommand(notifier.getBuildUrl(build, listener), built));
+        verify(git, never()).getHead(Matchers.<File>any(), eq(".git"));
+    }
+
+    @Test
+    public void testHeadIsReadWithoutGitPlugin() throws IOException, ExecutionException, InterruptedException {
+        final Build build = doBuild(null);
+        assertNull(build.getAction(BuildData.class));
+        verify(git).getHead(Matchers.<File>any(), eq(".git"));
+        verify(marker).executeCommand(notifier.generateApproveCommand(notifier.getBuildUrl(build, listener), hexString));
+    }
+}
@@ -0,0 +1,109 @@
+package hudson.plugins.gerrit;
+
+import hudson.model.AbstractBuild;
+import hudson.plugins.gerrit.notification.ApproveBatcher;
+import hudson.plugins.gerrit.notification.Delivery;
+import hudson.plugins.gerrit.notification.DeliveryListener;
+import hudson.plugins.gerrit.notification.NotificationDispatcher;
+import hudson.plugins.gerrit.notification.Verification;
+import hudson.plugins.gerrit.ssh.SSHConnectionPool;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class TestGerritVerificationAction {
+
+    static final String sha1 = "1234567890123456789012345678901234567890";
+
+    SSHConnectionPool pool;
+    SSHConnectionPool.Key key;
+    NotificationDispatcher dispatcher;
+    AbstractBuild build;
+    GerritVerificationAction action;
+
+    @Before
+    public void init() {
+        pool = mock(SSHConnectionPool.class);
+        key = new SSHConnectionPool.Key("localhost", 29418, "user", new File("private_key_path"), "");
+        ApproveBatcher batcher = new ApproveBatcher(pool);
+        batcher.setMaxDelay(0);
+        dispatcher = new NotificationDispatcher(batcher);
+        dispatcher.setRetryDelay(1);
+        dispatcher.setMaxAttempts(2);
+        build = mock(AbstractBuild.class);
+        action = new GerritVerificationAction(sha1, "+1");
+    }
+
+    /* Dispatches a vote with the build's reporter and waits until it is reported. */
+    void dispatch() throws InterruptedException {
+        final DeliveryListener reporter = new GerritNotifier.BuildReporter(build, action);
+        final CountDownLatch done = new CountDownLatch(1);
+        dispatcher.dispatch(new Verification(key, "gerrit approve --verified=%s --message=\"%s\" %s", "+1", "ok", sha1),
+                new DeliveryListener() {
+                    public void onRetry(Verification verification, int attempt, IOException failure) {
+                        reporter.onRetry(verification, attempt, failure);
+                    }
+
+                    public void onSuccess(Verification verification, int attempts) {
+                        reporter.onSuccess(verification, attempts);
+                        done.countDown();
+                    }
+
+                    public void onSkipped(Verification verification, Delivery.Outcome outcome) {
+                        reporter.onSkipped(verification, outcome);
+                        done.countDown();
+                    }
+
+                    public void onFailure(Verification verification, int attempts, IOException failure) {
+                        reporter.onFailure(verification, attempts, failure);
+                        done.countDown();
+                    }
+                });
+        assertTrue("No outcome reported", done.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void queuedVerificationIsPending() {
+        assertEquals(GerritVerificationAction.State.PENDING, action.getState());
+        assertEquals(sha1, action.getRevision());
+        assertEquals("+1", action.getVerified());
+    }
+
+    @Test
+    public void successIsReported() throws IOException, InterruptedException {
+        dispatch();
+        assertEquals(GerritVerificationAction.State.SENT, action.getState());
+        assertEquals(1, action.getAttempts());
+        assertNull(action.getError());
+        verify(build).save();
+    }
+
+    @Test
+    public void duplicateIsReportedAsSkipped() throws IOException, InterruptedException {
+        dispatch();
+        action = new GerritVerificationAction(sha1, "+1");
+        dispatch();
+        assertEquals(GerritVerificationAction.State.SKIPPED, action.getState());
+        verify(pool, times(1)).execute(eq(key), anyString());
+    }
+
+    @Test
+    public void failureIsReported() throws IOException, InterruptedException {
+        doThrow(new IOException("Connection refused")).when(pool).execute(eq(key), anyString());
+        dispatch();
+        assertEquals(GerritVerificationAction.State.FAILED, action.getState());
+        assertEquals(2, action.getAttempts());
+        assertEquals("Connection refused", action.getError());
+        verify(build, times(2)).save();
+    }
+}
@@ -0,0 +1,89 @@
+package hudson.plugins.gerrit.buildchoosers;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestClaimRegistry {
+
+    static final String SHA = "1234567890123456789012345678901234567890";
+
+    ClaimRegistry claims;
+
+    @Before
+    public void init() {
+        claims = new ClaimRegistry();
+        claims.setLeaseTime(1000);
+    }
+
+    @Test
+    public void concurrentWorkspacesShareScope() {
+        File ws = new File("/hudson/jobs/tools/workspace");
+        assertEquals(ws.getAbsolutePath(), ClaimRegistry.scope(new File(ws, ".git")));
+        assertEquals(ws.getAbsolutePath(), ClaimRegistry.scope(new File("/hudson/jobs/tools/workspace@2/.git")));
+        assertEquals(new File("/repos/tools.git").getAbsolutePath(), ClaimRegistry.scope(new File("/repos/tools.git")));
+    }
+
+    @Test
+    public void revisionIsClaimedOnce() {
+        assertTrue(claims.claim("job", SHA, 0));
+        assertFalse(claims.claim("job", SHA, 10));
+        assertTrue(claims.isClaimed("job", SHA, 10));
+        assertTrue(claims.claim("other job", SHA, 10));
+    }
+
+    @Test
+    public void expiredLeaseCanBeClaimedAgain() {
+        assertTrue(claims.claim("job", SHA, 0));
+        assertFalse(claims.isClaimed("job", SHA, 1000));
+        assertTrue(claims.claim("job", SHA, 1000));
+        assertFalse(claims.claim("job", SHA, 1500));
+    }
+
+    @Test
+    public void releasedRevisionCanBeClaimedAgain() {
+        assertTrue(claims.claim("job", SHA, 0));
+        claims.release("job", SHA);
+        assertTrue(claims.claim("job", SHA, 1));
+    }
+
+    @Test
+    public void onlyOneThreadWinsExpiredLease() throws InterruptedException {
+        claims.claim("job", SHA, 0);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger winners = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (claims.claim("job", SHA, 5000)) {
+                        winners.incrementAndGet();
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(1, winners.get());
+        assertEquals(1, claims.size());
+    }
+}
@@ -0,0 +1,142 @@
+package hudson.plugins.gerrit.buildchoosers;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestCommitIndex {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    File file;
+
+    @Before
+    public void init() {
+        file = new File(folder.newFolder("repository.git"), "index");
+    }
+
+    static int[] sha(int n) {
+        return new int[]{n, n, n, n, n};
+    }
+
+    /* Commits newest first, each named after its time plus an optional offset. */
+    static CommitList newestFirst(int offset, long... times) {
+        CommitList commits = new CommitList();
+        for (long time : times) {
+            commits.commit(sha((int) time + offset), time);
+        }
+        return commits;
+    }
+
+    static void assertOrder(CommitIndex index, int... shas) {
+        assertEquals(shas.length, index.size());
+        for (int i = 0; i < shas.length; i++) {
+            assertTrue("record " + i, index.matches(i, sha(shas[i])));
+        }
+    }
+
+    @Test
+    public void missingIndexIsNull() throws IOException {
+        assertNull(CommitIndex.open(file));
+    }
+
+    @Test
+    public void recordsAreStoredOldestFirst() throws IOException {
+        CommitIndex index = CommitIndex.create(file, newestFirst(0, 300, 200, 100), 42);
+        assertOrder(index, 100, 200, 300);
+        assertEquals(42, index.getLastFullScan());
+        index.close();
+
+        index = CommitIndex.open(file);
+        assertOrder(index, 100, 200, 300);
+        assertEquals(300, index.getTime(2));
+        assertEquals(42, index.getLastFullScan());
+    }
+
+    @Test
+    public void boundsAreFoundByBinarySearch() throws IOException {
+        CommitIndex index = CommitIndex.create(file, newestFirst(0, 400, 300, 300, 200, 100), 0);
+        assertEquals(0, index.lowerBound(50));
+        assertEquals(1, index.lowerBound(200));
+        assertEquals(2, index.lowerBound(250));
+        assertEquals(2, index.lowerBound(300));
+        assertEquals(4, index.upperBound(300));
+        assertEquals(5, index.lowerBound(500));
+    }
+
+    @Test
+    public void commitIsLookedUpAmongItsTime() throws IOException {
+        CommitIndex index = CommitIndex.create(file, newestFirst(0, 400, 300, 200, 100), 0);
+        index.insert(newestFirst(1000, 300));
+        assertEquals(3, index.indexOf(sha(1300), 300));
+        assertEquals(2, index.indexOf(sha(300), 300));
+        assertEquals(-1, index.indexOf(sha(300), 200));
+        assertEquals(-1, index.indexOf(sha(500), 500));
+    }
+
+    @Test
+    public void newerCommitsAreAppended() throws IOException {
+        CommitIndex index = CommitIndex.create(file, newestFirst(0, 200, 100), 0);
+        index.insert(newestFirst(0, 400, 300));
+        assertOrder(index, 100, 200, 300, 400);
+    }
+
+    @Test
+    public void olderCommitsRewriteTheTail() throws IOException {
+        CommitIndex index = CommitIndex.create(file, newestFirst(0, 400, 200, 100), 0);
+        index.insert(newestFirst(0, 500, 300, 150));
+        assertOrder(index, 100, 150, 200, 300, 400, 500);
+        index.close();
+        assertOrder(CommitIndex.open(file), 100, 150, 200, 300, 400, 500);
+    }
+
+    @Test
+    public void insertedCommitsComeFirstOnEqualTime() throws IOException {
+        CommitIndex index = CommitIndex.create(file, newestFirst(0, 200, 100), 0);
+        index.insert(newestFirst(1000, 200, 100));
+        CommitList commits = index.newestFirst(0);
+        assertTrue(commits.matches(0, sha(1200)));
+        assertTrue(commits.matches(1, sha(200)));
+        assertTrue(commits.matches(2, sha(1100)));
+        assertTrue(commits.matches(3, sha(100)));
+    }
+
+    @Test
+    public void indexGrowsBeyondInitialMapping() throws IOException {
+        CommitIndex index = CommitIndex.create(file, newestFirst(0, 1), 0);
+        for (int time = 2; time <= 5000; time++) {
+            index.insert(newestFirst(0, time));
+        }
+        assertEquals(5000, index.size());
+        assertEquals(5000, index.getTime(4999));
+        assertEquals(4999, index.lastIndexOf(sha(5000), 0));
+        assertEquals(-1, index.lastIndexOf(sha(10), 100));
+        CommitList newest = index.newestFirst(4998);
+        assertEquals(2, newest.size());
+        assertEquals(5000, newest.getTime(0));
+    }
+
+    @Test
+    public void otherFilesAreRejected() throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[CommitIndex.HEADER + CommitIndex.RECORD]);
+        out.close();
+        try {
+            CommitIndex.open(file);
+            fail("Expected failure");
+        } catch (IOException expected) {
+            // ok
+        }
+    }
+}
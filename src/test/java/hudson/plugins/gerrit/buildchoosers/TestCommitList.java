@@ -0,0 +1,77 @@
+package hudson.plugins.gerrit.buildchoosers;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestCommitList {
+
+    static int[] sha(int n) {
+        return new int[]{n, n + 1, n + 2, n + 3, n + 4};
+    }
+
+    @Test
+    public void newestFirst() {
+        CommitList commits = new CommitList(1);
+        commits.commit(sha(1), 100);
+        commits.commit(sha(2), 300);
+        commits.commit(sha(3), 200);
+        int[] order = commits.sortNewestFirst();
+        assertEquals(1, order[0]);
+        assertEquals(2, order[1]);
+        assertEquals(0, order[2]);
+        assertTrue(commits.matches(order[0], sha(2)));
+    }
+
+    @Test
+    public void equalTimesKeepLogOrder() {
+        CommitList commits = new CommitList();
+        commits.commit(sha(1), 100);
+        commits.commit(sha(2), 200);
+        commits.commit(sha(3), 100);
+        commits.commit(sha(4), 200);
+        commits.commit(sha(5), 100);
+        int[] order = commits.sortNewestFirst();
+        int[] expected = {1, 3, 0, 2, 4};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], order[i]);
+        }
+    }
+
+    @Test
+    public void largeRandomListIsSortedAndStable() {
+        Random r = new Random(42);
+        CommitList commits = new CommitList();
+        for (int i = 0; i < 10000; i++) {
+            commits.commit(sha(i), r.nextInt(500));
+        }
+        int[] order = commits.sortNewestFirst();
+        assertEquals(10000, order.length);
+        for (int i = 1; i < order.length; i++) {
+            long previous = commits.getTime(order[i - 1]);
+            long current = commits.getTime(order[i]);
+            assertTrue(previous >= current);
+            if (previous == current) {
+                assertTrue(order[i - 1] < order[i]);
+            }
+        }
+    }
+
+    @Test
+    public void toWords() {
+        int[] words = CommitList.toWords("0000000100000002fffffffe0000000400000005");
+        assertEquals(1, words[0]);
+        assertEquals(2, words[1]);
+        assertEquals(-2, words[2]);
+        assertEquals(4, words[3]);
+        assertEquals(5, words[4]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void toWordsRejectsShortIds() {
+        CommitList.toWords("1234");
+    }
+}
@@ -0,0 +1,104 @@
+package hudson.plugins.gerrit.buildchoosers;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestCommitLogParser {
+
+    static final String sha1 = "1234567890abcdef1234567890abcdef12345678";
+    static final String sha2 = "fedcba0987654321fedcba0987654321fedcba09";
+
+    List<String> shas;
+    List<Long> times;
+    CommitLogParser.Handler handler;
+
+    @Before
+    public void init() {
+        shas = new ArrayList<String>();
+        times = new ArrayList<Long>();
+        handler = new CommitLogParser.Handler() {
+            public void commit(int[] sha, long commitTime) {
+                StringBuilder sb = new StringBuilder();
+                for (int w : sha) {
+                    String hex = Integer.toHexString(w);
+                    for (int i = hex.length(); i < 8; i++) {
+                        sb.append('0');
+                    }
+                    sb.append(hex);
+                }
+                shas.add(sb.toString());
+                times.add(commitTime);
+            }
+        };
+    }
+
+    @Test
+    public void quotedLines() {
+        CommitLogParser.parse("'" + sha1 + "#1277906400'\n'" + sha2 + "#1277906405'", handler);
+        assertEquals(2, shas.size());
+        assertEquals(sha1, shas.get(0));
+        assertEquals(1277906400L, (long) times.get(0));
+        assertEquals(sha2, shas.get(1));
+        assertEquals(1277906405L, (long) times.get(1));
+    }
+
+    @Test
+    public void unquotedLinesWithWindowsLineEndings() {
+        CommitLogParser.parse(sha1 + "#1277906400\r\n" + sha2 + "#1277906405\r\n", handler);
+        assertEquals(2, shas.size());
+        assertEquals(sha2, shas.get(1));
+        assertEquals(1277906405L, (long) times.get(1));
+    }
+
+    @Test
+    public void upperCaseSha() {
+        CommitLogParser.parse(sha2.toUpperCase() + "#1", handler);
+        assertEquals(sha2, shas.get(0));
+    }
+
+    @Test
+    public void emptyLog() {
+        CommitLogParser.parse("", handler);
+        assertEquals(0, shas.size());
+    }
+
+    @Test
+    public void malformedLinesAreSkipped() {
+        CommitLogParser.parse("garbage\n'" + sha1 + "'\n'1234#5'\n'" + sha1 + "#12x'\n\n'" + sha2 + "#7'", handler);
+        assertEquals(1, shas.size());
+        assertEquals(sha2, shas.get(0));
+        assertEquals(7L, (long) times.get(0));
+    }
+
+    @Test
+    public void readerInput() throws IOException {
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            log.append('\'').append(i % 2 == 0 ? sha1 : sha2).append('#').append(i).append("'\n");
+        }
+        CommitLogParser.parse(new StringReader(log.toString()), handler);
+        assertEquals(1000, shas.size());
+        assertEquals(sha2, shas.get(999));
+        assertEquals(999L, (long) times.get(999));
+    }
+
+    @Test
+    public void lineSplitAcrossChunks() {
+        CommitLogParser parser = new CommitLogParser(handler);
+        String line = "'" + sha1 + "#1277906400'\n";
+        parser.feed(line.substring(0, 17));
+        parser.feed(line.substring(17, 43));
+        parser.feed(line.substring(43));
+        parser.finish();
+        assertEquals(1, shas.size());
+        assertEquals(sha1, shas.get(0));
+        assertEquals(1277906400L, (long) times.get(0));
+    }
+}
@@ -0,0 +1,148 @@
+package hudson.plugins.gerrit.buildchoosers;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestNarrowFetcher {
+
+    static final String A = "1111111111111111111111111111111111111111";
+    static final String B = "2222222222222222222222222222222222222222";
+    static final String C = "3333333333333333333333333333333333333333";
+    static final String D = "4444444444444444444444444444444444444444";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    File gitDir;
+    SortedMap<String, String> listing;
+
+    @Before
+    public void init() {
+        gitDir = folder.newFolder("repository.git");
+        listing = new TreeMap<String, String>();
+        listing.put("refs/changes/10/110/1", A);
+        listing.put("refs/changes/10/110/2", B);
+        listing.put("refs/changes/09/9/1", C);
+    }
+
+    static RefSnapshot done(String... refs) {
+        SortedMap<String, String> map = new TreeMap<String, String>();
+        for (int i = 0; i < refs.length; i += 2) {
+            map.put(refs[i], refs[i + 1]);
+        }
+        return new RefSnapshot(null, map);
+    }
+
+    @Test
+    public void pendingIsOrderedByChangeAndPatchSet() {
+        assertEquals(Arrays.asList("refs/changes/09/9/1", "refs/changes/10/110/1", "refs/changes/10/110/2"),
+                NarrowFetcher.pending(listing, done(), false));
+    }
+
+    @Test
+    public void handledRefsAreNotPending() {
+        assertEquals(Arrays.asList("refs/changes/10/110/2"),
+                NarrowFetcher.pending(listing, done("refs/changes/09/9/1", C, "refs/changes/10/110/1", A), false));
+    }
+
+    @Test
+    public void movedRefIsPendingAgain() {
+        listing.put("refs/changes/09/9/1", D);
+        assertEquals(Arrays.asList("refs/changes/09/9/1"),
+                NarrowFetcher.pending(listing, done("refs/changes/09/9/1", C, "refs/changes/10/110/1", A,
+                        "refs/changes/10/110/2", B), false));
+    }
+
+    @Test
+    public void supersededPatchSetsAreSkipped() {
+        assertEquals(Arrays.asList("refs/changes/09/9/1", "refs/changes/10/110/2"),
+                NarrowFetcher.pending(listing, done(), true));
+    }
+
+    @Test
+    public void firstListingBuildsOnlyTheNewestPatchSet() {
+        assertEquals(Arrays.asList("refs/changes/10/110/2"), NarrowFetcher.pending(gitDir, listing, false));
+        NarrowFetcher.markHandled(gitDir, "refs/changes/10/110/2", B);
+        assertEquals(Collections.emptyList(), NarrowFetcher.pending(gitDir, listing, false));
+        assertTrue(new File(gitDir, NarrowFetcher.FILE_NAME).exists());
+
+        File copy = folder.newFolder("copy.git");
+        assertTrue(new File(gitDir, NarrowFetcher.FILE_NAME).renameTo(new File(copy, NarrowFetcher.FILE_NAME)));
+        listing.put("refs/changes/11/111/1", D);
+        assertEquals(Arrays.asList("refs/changes/11/111/1"), NarrowFetcher.pending(copy, listing, false));
+    }
+
+    @Test
+    public void handledRefsAreAppended() {
+        NarrowFetcher.pending(gitDir, listing, false);
+        File file = new File(gitDir, NarrowFetcher.FILE_NAME);
+        long written = file.length();
+        NarrowFetcher.markHandled(gitDir, "refs/changes/10/110/2", B);
+        NarrowFetcher.markHandled(gitDir, "refs/changes/09/9/1", D);
+        assertTrue(file.length() > written);
+
+        RefSnapshot read = RefSnapshot.read(file);
+        assertEquals(3, read.size());
+        assertEquals(B, read.get("refs/changes/10/110/2"));
+        assertEquals(D, read.get("refs/changes/09/9/1"));
+
+        long appended = file.length();
+        NarrowFetcher.markHandled(gitDir, "refs/changes/09/9/1", D);
+        assertEquals(appended, file.length());
+    }
+
+    @Test
+    public void selectedRefIsPendingAgainIfTheBuildDidNotUseIt() {
+        NarrowFetcher.pending(gitDir, listing, false);
+        String scope = ClaimRegistry.scope(gitDir);
+        assertTrue(ClaimRegistry.getInstance().claim(scope, B, System.currentTimeMillis()));
+        NarrowFetcher.select(gitDir, "refs/changes/10/110/2", B);
+        assertEquals(Collections.emptyList(), NarrowFetcher.pending(gitDir, listing, false));
+
+        NarrowFetcher.settle(folder.getRoot(), B, false);
+        assertFalse(ClaimRegistry.getInstance().isClaimed(scope, B, System.currentTimeMillis()));
+        assertEquals(Arrays.asList("refs/changes/10/110/2"), NarrowFetcher.pending(gitDir, listing, false));
+        assertEquals(null, RefSnapshot.read(new File(gitDir, NarrowFetcher.FILE_NAME)).get("refs/changes/10/110/2"));
+    }
+
+    @Test
+    public void selectedRefIsHandledOnceTheBuildUsedIt() {
+        NarrowFetcher.pending(gitDir, listing, false);
+        String scope = ClaimRegistry.scope(gitDir);
+        assertTrue(ClaimRegistry.getInstance().claim(scope, B, System.currentTimeMillis()));
+        NarrowFetcher.select(gitDir, "refs/changes/10/110/2", B);
+        NarrowFetcher.settle(folder.getRoot(), B, true);
+        ClaimRegistry.getInstance().release(scope, B);
+
+        assertEquals(Collections.emptyList(), NarrowFetcher.pending(gitDir, listing, false));
+        assertEquals(B, RefSnapshot.read(new File(gitDir, NarrowFetcher.FILE_NAME)).get("refs/changes/10/110/2"));
+    }
+
+    @Test
+    public void goneRefsArePrunedWhenTheFileIsRewritten() {
+        NarrowFetcher.pending(gitDir, listing, false);
+        for (int i = 0; i < NarrowFetcher.COMPACT_THRESHOLD; i++) {
+            NarrowFetcher.markHandled(gitDir, "refs/changes/01/" + (1000 + i) + "/1", A);
+        }
+        File file = new File(gitDir, NarrowFetcher.FILE_NAME);
+        assertEquals(NarrowFetcher.COMPACT_THRESHOLD + 2, RefSnapshot.read(file).size());
+
+        assertEquals(Arrays.asList("refs/changes/10/110/2"), NarrowFetcher.pending(gitDir, listing, false));
+        RefSnapshot read = RefSnapshot.read(file);
+        assertEquals(2, read.size());
+        assertEquals(C, read.get("refs/changes/09/9/1"));
+        assertEquals(A, read.get("refs/changes/10/110/1"));
+    }
+}
@@ -0,0 +1,54 @@
+package hudson.plugins.gerrit.buildchoosers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestPatchSetIndex {
+
+    static final String PS3 = "3333333333333333333333333333333333333333";
+    static final String PS4 = "4444444444444444444444444444444444444444";
+    static final String PS5 = "5555555555555555555555555555555555555555";
+    static final String OTHER = "6666666666666666666666666666666666666666";
+
+    @Test
+    public void parsesPatchSetRefs() {
+        int[] parsed = PatchSetIndex.parse("refs/changes/34/1234/5");
+        assertEquals(1234, parsed[0]);
+        assertEquals(5, parsed[1]);
+        assertNull(PatchSetIndex.parse("refs/heads/master"));
+        assertNull(PatchSetIndex.parse("refs/changes/34/1234"));
+        assertNull(PatchSetIndex.parse("refs/changes/34/1234/meta"));
+        assertNull(PatchSetIndex.parse("refs/changes/34//5"));
+        assertNull(PatchSetIndex.parse("refs/changes/34/1234/5/x"));
+    }
+
+    @Test
+    public void olderPatchSetsAreSuperseded() {
+        PatchSetIndex index = new PatchSetIndex();
+        index.add("refs/changes/34/1234/3", PS3);
+        index.add("refs/changes/34/1234/5", PS5);
+        index.add("refs/changes/34/1234/4", PS4);
+        index.add("refs/heads/master", OTHER);
+        assertEquals(5, index.getLatestPatchSet(1234));
+        assertEquals(-1, index.getLatestPatchSet(99));
+        assertTrue(index.isSuperseded(PS3));
+        assertTrue(index.isSuperseded(PS4));
+        assertFalse(index.isSuperseded(PS5));
+        assertFalse(index.isSuperseded(OTHER));
+    }
+
+    @Test
+    public void commitStillNewestInAnotherChangeIsKept() {
+        PatchSetIndex index = new PatchSetIndex();
+        index.add("refs/changes/01/1001/1", PS3);
+        index.add("refs/changes/01/1001/2", PS4);
+        index.add("refs/changes/02/1002/1", PS3);
+        assertFalse(index.isSuperseded(PS3));
+        index.add("refs/changes/02/1002/2", PS5);
+        assertTrue(index.isSuperseded(PS3));
+    }
+}
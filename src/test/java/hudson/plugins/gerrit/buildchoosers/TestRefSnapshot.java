@@ -0,0 +1,78 @@
+package hudson.plugins.gerrit.buildchoosers;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestRefSnapshot {
+
+    static final String A = "1111111111111111111111111111111111111111";
+    static final String B = "2222222222222222222222222222222222222222";
+    static final String C = "3333333333333333333333333333333333333333";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    File gitDir;
+
+    @Before
+    public void init() {
+        gitDir = folder.newFolder("repository.git");
+    }
+
+    static RefSnapshot snapshot(String lastBuilt, String... refs) {
+        SortedMap<String, String> map = new TreeMap<String, String>();
+        for (int i = 0; i < refs.length; i += 2) {
+            map.put(refs[i], refs[i + 1]);
+        }
+        return new RefSnapshot(lastBuilt, map);
+    }
+
+    @Test
+    public void sameRefsAndLastBuildAreSame() {
+        RefSnapshot s = snapshot(A, "refs/changes/01/1/1", A, "refs/heads/master", B);
+        assertTrue(s.sameAs(snapshot(A, "refs/heads/master", B, "refs/changes/01/1/1", A)));
+        assertFalse(s.sameAs(snapshot(B, "refs/changes/01/1/1", A, "refs/heads/master", B)));
+        assertFalse(s.sameAs(snapshot(A, "refs/changes/01/1/1", A, "refs/heads/master", C)));
+        assertFalse(s.sameAs(null));
+    }
+
+    @Test
+    public void listsChangedRefs() {
+        RefSnapshot before = snapshot(A, "refs/changes/01/1/1", A, "refs/heads/master", B, "refs/heads/old", A);
+        RefSnapshot after = snapshot(A, "refs/changes/01/1/1", A, "refs/heads/master", C, "refs/changes/02/2/1", C);
+        SortedMap<String, String> changed = after.changedSince(before);
+        assertEquals(3, changed.size());
+        assertEquals(C, changed.get("refs/heads/master"));
+        assertEquals(C, changed.get("refs/changes/02/2/1"));
+        assertTrue(changed.containsKey("refs/heads/old"));
+        assertNull(changed.get("refs/heads/old"));
+    }
+
+    @Test
+    public void quietSnapshotIsPersisted() {
+        assertNull(RefSnapshot.getQuiet(gitDir));
+        RefSnapshot s = snapshot(A, "refs/changes/01/1/1", A);
+        RefSnapshot.setQuiet(gitDir, s);
+        assertTrue(new File(gitDir, RefSnapshot.FILE_NAME).exists());
+        assertTrue(s.sameAs(RefSnapshot.getQuiet(gitDir)));
+
+        File copy = folder.newFolder("copy.git");
+        assertTrue(new File(gitDir, RefSnapshot.FILE_NAME).renameTo(new File(copy, RefSnapshot.FILE_NAME)));
+        assertTrue(s.sameAs(RefSnapshot.getQuiet(gitDir)));
+        RefSnapshot loaded = RefSnapshot.getQuiet(copy);
+        assertTrue(s.sameAs(loaded));
+        assertEquals(A, loaded.getLastBuilt());
+        assertEquals(1, loaded.size());
+    }
+}
@@ -0,0 +1,135 @@
+package hudson.plugins.gerrit.buildchoosers;
+
+import hudson.plugins.gerrit.git.RepositoryCache;
+import org.eclipse.jgit.lib.*;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestRevWalkScanner {
+
+    @Rule
+    public TemporaryFolder gitRepoFolder = new TemporaryFolder();
+
+    File git_repo;
+    Repository repo;
+    long time = 1277906400000L;
+
+    ObjectId base;
+    ObjectId change1;
+    ObjectId change2;
+    ObjectId change3;
+
+    @Before
+    public void initGit() throws IOException {
+        git_repo = new File(gitRepoFolder.newFolder("repository"), ".git");
+        repo = new Repository(git_repo);
+        repo.create();
+
+        base = makeCommit("base", null);
+        updateRef(base, Constants.R_HEADS + "master");
+        change1 = makeCommit("change 1", base);
+        updateRef(change1, "refs/changes/01/1/1");
+        change2 = makeCommit("change 2", base);
+        updateRef(change2, "refs/changes/02/2/1");
+        change3 = makeCommit("change 3", change1);
+        updateRef(change3, "refs/changes/03/3/1");
+    }
+
+    private ObjectId makeCommit(String msg, ObjectId parent) throws IOException {
+        time += 1000;
+        ObjectWriter writer = new ObjectWriter(repo);
+        Tree tree = new Tree(repo);
+        tree.setId(writer.writeTree(tree));
+        PersonIdent ident = new PersonIdent("Test", "test@example.com", new Date(time), TimeZone.getTimeZone("UTC"));
+        Commit commit = new Commit(repo);
+        commit.setAuthor(ident);
+        commit.setCommitter(ident);
+        commit.setTree(tree);
+        commit.setMessage(msg);
+        if (parent != null) {
+            commit.setParentIds(new ObjectId[]{parent});
+        }
+        commit.commit();
+        return commit.getCommitId();
+    }
+
+    private void updateRef(ObjectId id, String ref) throws IOException {
+        RefUpdate refUp = repo.updateRef(ref);
+        refUp.setNewObjectId(id);
+        refUp.setRefLogMessage("test", false);
+        refUp.forceUpdate();
+    }
+
+    private void assertCommit(CommitList commits, int index, ObjectId id) {
+        assertTrue(commits.matches(index, CommitList.toWords(id.name())));
+    }
+
+    @Test
+    public void everythingNewestFirstWithoutLastBuild() throws IOException {
+        CommitList commits = RevWalkScanner.scan(git_repo, RevWalkScanner.CHANGES, null);
+        assertEquals(4, commits.size());
+        assertCommit(commits, 0, change3);
+        assertCommit(commits, 1, change2);
+        assertCommit(commits, 2, change1);
+        assertCommit(commits, 3, base);
+    }
+
+    @Test
+    public void stopsAtLastBuild() throws IOException {
+        CommitList commits = RevWalkScanner.scan(git_repo, RevWalkScanner.CHANGES, CommitList.toWords(change2.name()));
+        assertEquals(2, commits.size());
+        assertCommit(commits, 0, change3);
+        assertCommit(commits, 1, change2);
+    }
+
+    @Test
+    public void onlyRefsUnderPrefixAreWalked() throws IOException {
+        ObjectId other = makeCommit("not a change", base);
+        updateRef(other, Constants.R_HEADS + "other");
+        CommitList commits = RevWalkScanner.scan(git_repo, RevWalkScanner.CHANGES, null);
+        assertEquals(4, commits.size());
+        commits = RevWalkScanner.scan(git_repo, RevWalkScanner.refPrefix("something"), null);
+        assertEquals(5, commits.size());
+        assertCommit(commits, 0, other);
+    }
+
+    @Test
+    public void repositoryIsKeptOpenBetweenScans() throws IOException {
+        RevWalkScanner.scan(git_repo, RevWalkScanner.CHANGES, null);
+        int open = RepositoryCache.getInstance().size();
+        ObjectId change4 = makeCommit("change 4", change3);
+        updateRef(change4, "refs/changes/04/4/1");
+        CommitList commits = RevWalkScanner.scan(git_repo, RevWalkScanner.CHANGES, CommitList.toWords(change3.name()));
+        assertEquals(open, RepositoryCache.getInstance().size());
+        assertEquals(2, commits.size());
+        assertCommit(commits, 0, change4);
+    }
+
+    @Test
+    public void onlyChangedRefsAreWalked() throws IOException {
+        // change 3 doesn't lead to the last build, change 2, but the walk still stops there
+        CommitList commits = RevWalkScanner.scan(git_repo, RevWalkScanner.CHANGES, CommitList.toWords(change2.name()),
+                Collections.singleton("refs/changes/03/3/1"));
+        assertEquals(2, commits.size());
+        assertCommit(commits, 0, change3);
+        assertCommit(commits, 1, change2);
+    }
+
+    @Test
+    public void refPrefix() {
+        assertEquals("refs/changes/", RevWalkScanner.refPrefix("refs/changes/*"));
+        assertEquals("refs/", RevWalkScanner.refPrefix("origin/master"));
+        assertEquals("refs/", RevWalkScanner.refPrefix(null));
+    }
+}
@@ -0,0 +1,45 @@
+package hudson.plugins.gerrit.buildchoosers;
+
+import hudson.plugins.gerrit.metrics.GerritMetrics;
+import hudson.plugins.gerrit.metrics.ScanStats;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestScanReport {
+
+    static final String URL = "ssh://gerrit:29418/project.git";
+
+    @Before
+    public void init() {
+        GerritMetrics.getInstance().reset();
+    }
+
+    @Test
+    public void reportIsRecordedOnTheMaster() {
+        ScanReport.scanned(URL, 100, 2, 7000000).send();
+        ScanReport.skipped(URL).send();
+        ScanStats stats = GerritMetrics.getInstance().getScans().get(URL);
+        assertEquals(1, stats.getScans());
+        assertEquals(1, stats.getSkipped());
+        assertEquals(100, stats.getLastSize());
+        assertEquals(2, stats.getLastCandidates());
+    }
+
+    @Test
+    public void reportTravelsFromSlave() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(ScanReport.scanned(URL, 40, 1, 1000000));
+        out.close();
+        ScanReport report = (ScanReport) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        report.call();
+        assertEquals(40, GerritMetrics.getInstance().getScans().get(URL).getLastSize());
+    }
+}
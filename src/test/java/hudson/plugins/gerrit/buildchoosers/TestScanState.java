@@ -0,0 +1,116 @@
+package hudson.plugins.gerrit.buildchoosers;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestScanState {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    File gitDir;
+
+    @Before
+    public void init() {
+        gitDir = folder.newFolder("repository.git");
+    }
+
+    static int[] sha(int n) {
+        return new int[]{n, n, n, n, n};
+    }
+
+    static CommitList commits(long... times) {
+        CommitList commits = new CommitList();
+        for (int i = 0; i < times.length; i++) {
+            commits.commit(sha((int) times[i]), times[i]);
+        }
+        return commits;
+    }
+
+    @Test
+    public void newStateNeedsFullScan() {
+        ScanState state = ScanState.get(gitDir);
+        assertTrue(state.needsFullScan(System.currentTimeMillis()));
+        assertEquals(0, state.getWatermark());
+    }
+
+    @Test
+    public void mergeSkipsKnownCommits() {
+        ScanState state = ScanState.get(gitDir);
+        long now = System.currentTimeMillis();
+        state.replace(commits(100, 300, 200), now);
+        assertFalse(state.needsFullScan(now));
+        assertEquals(300, state.getWatermark());
+
+        state.merge(commits(300, 400, 200, 250), 200);
+        CommitList merged = state.getCommits();
+        assertEquals(5, merged.size());
+        long[] expected = {400, 300, 250, 200, 100};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], merged.getTime(i));
+            assertTrue(merged.matches(i, sha((int) expected[i])));
+        }
+        assertEquals(400, state.getWatermark());
+    }
+
+    @Test
+    public void commitIsFoundAgainAfterMerge() {
+        ScanState state = ScanState.get(gitDir);
+        state.replace(commits(100, 300, 200), System.currentTimeMillis());
+        assertEquals(200, state.getTime(sha(200)));
+        assertEquals(-1, state.getTime(sha(250)));
+
+        state.merge(commits(150, 400), 100);
+        assertEquals(200, state.getTime(sha(200)));
+        CommitList since = state.getCommitsSince(sha(200));
+        assertEquals(3, since.size());
+        assertTrue(since.matches(2, sha(200)));
+    }
+
+    @Test
+    public void stateIsPersisted() throws IOException {
+        File other = folder.newFolder("other.git");
+        ScanState state = ScanState.get(other);
+        state.replace(commits(100, 200), System.currentTimeMillis());
+        assertTrue(new File(other, ScanState.FILE_NAME).exists());
+
+        File copy = folder.newFolder("copy.git");
+        copyFile(new File(other, ScanState.FILE_NAME), new File(copy, ScanState.FILE_NAME));
+        ScanState loaded = ScanState.get(copy);
+        assertEquals(2, loaded.getCommits().size());
+        assertEquals(200, loaded.getWatermark());
+        assertTrue(loaded.getCommits().matches(1, sha(100)));
+    }
+
+    @Test
+    public void corruptStateIsIgnored() throws IOException {
+        File corrupt = folder.newFolder("corrupt.git");
+        FileOutputStream out = new FileOutputStream(new File(corrupt, ScanState.FILE_NAME));
+        out.write(new byte[]{1, 2, 3});
+        out.close();
+        assertTrue(ScanState.get(corrupt).needsFullScan(System.currentTimeMillis()));
+    }
+
+    private static void copyFile(File from, File to) throws IOException {
+        FileInputStream in = new FileInputStream(from);
+        FileOutputStream out = new FileOutputStream(to);
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        out.close();
+    }
+}
@@ -190,6 +190,28 @@ public class TestGit {
         assertEquals(branch_commit.getCommitId().name(), id.name());
     }
 
+    @Test public void repositoryCacheKeepsAtMostMaxSizeRepositories() throws IOException {
+        RepositoryCache cache = new RepositoryCache(1, RepositoryCache.DEFAULT_IDLE_TIMEOUT);
+        assertEquals(c1.getCommitId().name(), cache.getHead(git_repo).name());
+        assertEquals(1, cache.size());
+
+        File other_folder = gitRepoFolder.newFolder("other");
+        Repository other = new Repository(new File(other_folder, ".git"));
+        other.create();
+        cache.getHead(new File(other_folder, ".git"));
+        assertEquals(1, cache.size());
+
+        //first repository was closed, but can be opened again
+        assertEquals(c1.getCommitId().name(), cache.getHead(git_repo).name());
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
 
+    @Test public void repositoryCacheEvictsIdleRepositories() throws IOException {
+        RepositoryCache cache = new RepositoryCache(RepositoryCache.DEFAULT_MAX_SIZE, -1);
+        cache.getHead(git_repo);
+        cache.evictIdle();
+        assertEquals(0, cache.size());
+    }
 
 }
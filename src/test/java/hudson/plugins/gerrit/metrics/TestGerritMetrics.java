@@ -0,0 +1,61 @@
+package hudson.plugins.gerrit.metrics;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestGerritMetrics {
+
+    GerritMetrics metrics;
+
+    @Before
+    public void init() {
+        metrics = GerritMetrics.getInstance();
+        metrics.reset();
+    }
+
+    @Test
+    public void exposedOverJmx() throws Exception {
+        metrics.succeeded(3);
+        metrics.failed(1);
+        metrics.retried();
+        metrics.getExecute().record(5000000);
+        metrics.getScan("/work/.git").recordScan(100, 2, 7000000);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(GerritMetrics.OBJECT_NAME);
+        assertTrue(server.isRegistered(name));
+        assertEquals(3L, server.getAttribute(name, "Successes"));
+        assertEquals(1L, server.getAttribute(name, "Failures"));
+        assertEquals(1L, server.getAttribute(name, "Retries"));
+        CompositeData execute = (CompositeData) server.getAttribute(name, "ExecuteLatency");
+        assertEquals(1L, execute.get("count"));
+        assertEquals(5L, execute.get("p50Millis"));
+        TabularData scans = (TabularData) server.getAttribute(name, "Scans");
+        assertEquals(1, scans.size());
+    }
+
+    @Test
+    public void scansArePerRepository() {
+        metrics.getScan("/a/.git").recordScan(10, 1, 1000000);
+        metrics.getScan("/a/.git").recordScan(30, 0, 3000000);
+        metrics.getScan("/a/.git").recordSkipped();
+        metrics.getScan("/b/.git").recordScan(5, 5, 1000000);
+        ScanStats a = metrics.getScans().get("/a/.git");
+        assertEquals(2, a.getScans());
+        assertEquals(1, a.getSkipped());
+        assertEquals(30, a.getLastSize());
+        assertEquals(0, a.getLastCandidates());
+        assertEquals(2, a.getMeanMillis(), 0.001);
+        assertEquals(3, a.getMaxMillis(), 0.001);
+        assertEquals(2, metrics.getScans().size());
+    }
+}
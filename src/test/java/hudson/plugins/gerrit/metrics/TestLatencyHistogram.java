@@ -0,0 +1,55 @@
+package hudson.plugins.gerrit.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestLatencyHistogram {
+
+    static long millis(long ms) {
+        return TimeUnit.MILLISECONDS.toNanos(ms);
+    }
+
+    @Test
+    public void emptyHistogram() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getMeanMillis(), 0);
+        assertEquals(0, h.getPercentileMillis(0.99));
+    }
+
+    @Test
+    public void countsIntoBuckets() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(millis(1));
+        h.record(millis(3));
+        h.record(millis(3));
+        h.record(millis(120000));
+        long[] counts = h.getBucketCounts();
+        assertEquals(LatencyHistogram.BOUNDS.length + 1, counts.length);
+        assertEquals(1, counts[0]);
+        assertEquals(2, counts[2]);
+        assertEquals(1, counts[counts.length - 1]);
+        assertEquals(4, h.getCount());
+        assertEquals(120000, h.getMaxMillis(), 0.001);
+        assertEquals((1 + 3 + 3 + 120000) / 4.0, h.getMeanMillis(), 0.001);
+    }
+
+    @Test
+    public void percentilesAreBucketBounds() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 0; i < 90; i++) {
+            h.record(millis(4));
+        }
+        for (int i = 0; i < 9; i++) {
+            h.record(millis(150));
+        }
+        h.record(millis(90000));
+        assertEquals(5, h.getPercentileMillis(0.5));
+        assertEquals(5, h.getPercentileMillis(0.9));
+        assertEquals(200, h.getPercentileMillis(0.99));
+        assertEquals(-1, h.getPercentileMillis(1));
+    }
+}
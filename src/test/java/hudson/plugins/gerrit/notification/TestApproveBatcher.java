@@ -0,0 +1,261 @@
+package hudson.plugins.gerrit.notification;
+
+import hudson.plugins.gerrit.ssh.SSHCommandException;
+import hudson.plugins.gerrit.ssh.SSHConnectionPool;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class TestApproveBatcher {
+
+    static final String template = "gerrit approve --verified=%s --message=\"%s\" %s";
+    static final String sha1 = "1234567890123456789012345678901234567890";
+    static final String sha2 = "2234567890123456789012345678901234567890";
+    static final String sha3 = "3234567890123456789012345678901234567890";
+
+    SSHConnectionPool pool;
+    SSHConnectionPool.Key key;
+    ApproveBatcher batcher;
+
+    @Before
+    public void init() {
+        pool = mock(SSHConnectionPool.class);
+        key = new SSHConnectionPool.Key("localhost", 29418, "user", new File("private_key_path"), "");
+        batcher = new ApproveBatcher(pool);
+    }
+
+    private Verification verification(String verified, String message, String revision) {
+        return new Verification(key, template, verified, message, revision);
+    }
+
+    @Test
+    public void fullBatchIsSentAsOneCommand() throws IOException, InterruptedException {
+        batcher.setMaxDelay(60 * 1000);
+        batcher.setMaxBatchSize(3);
+        Delivery d1 = batcher.submit(verification("+1", "ok", sha1));
+        Delivery d2 = batcher.submit(verification("+1", "ok", sha2));
+        assertTrue(!d1.isDone());
+        Delivery d3 = batcher.submit(verification("+1", "ok", sha3));
+        d1.await();
+        d2.await();
+        d3.await();
+        verify(pool).execute(key, "gerrit approve --verified=+1 --message=\"ok\" " + sha1 + " " + sha2 + " " + sha3);
+        verifyNoMoreInteractions(pool);
+    }
+
+    @Test
+    public void batchIsSentAfterDelay() throws IOException, InterruptedException {
+        batcher.setMaxDelay(50);
+        Delivery d1 = batcher.submit(verification("+1", "ok", sha1));
+        Delivery d2 = batcher.submit(verification("+1", "ok", sha2));
+        d1.await();
+        d2.await();
+        verify(pool).execute(key, "gerrit approve --verified=+1 --message=\"ok\" " + sha1 + " " + sha2);
+    }
+
+    @Test
+    public void differentVerdictsAreNotMixed() throws IOException, InterruptedException {
+        batcher.setMaxDelay(50);
+        Delivery d1 = batcher.submit(verification("+1", "ok", sha1));
+        Delivery d2 = batcher.submit(verification("-1", "failed", sha2));
+        d1.await();
+        d2.await();
+        verify(pool).execute(key, "gerrit approve --verified=+1 --message=\"ok\" " + sha1);
+        verify(pool).execute(key, "gerrit approve --verified=-1 --message=\"failed\" " + sha2);
+    }
+
+    @Test
+    public void noDelaySendsImmediately() throws IOException, InterruptedException {
+        batcher.setMaxDelay(0);
+        Delivery d1 = batcher.submit(verification("+1", "ok", sha1));
+        assertTrue(d1.isDone());
+        verify(pool).execute(key, "gerrit approve --verified=+1 --message=\"ok\" " + sha1);
+    }
+
+    @Test
+    public void failureIsReportedToEveryVerificationInBatch() throws IOException, InterruptedException {
+        doThrow(new IOException("Connection refused")).when(pool).execute(eq(key), anyString());
+        batcher.setMaxDelay(60 * 1000);
+        batcher.setMaxBatchSize(2);
+        Delivery d1 = batcher.submit(verification("+1", "ok", sha1));
+        Delivery d2 = batcher.submit(verification("+1", "ok", sha2));
+        for (Delivery d : new Delivery[]{d1, d2}) {
+            try {
+                d.await();
+                fail("Expected failure");
+            } catch (IOException expected) {
+                // ok
+            }
+        }
+    }
+
+    @Test
+    public void newerVerdictReplacesUnsentVote() throws IOException, InterruptedException {
+        batcher.setMaxDelay(60 * 1000);
+        Delivery d1 = batcher.submit(verification("+1", "ok", sha1));
+        Delivery d2 = batcher.submit(verification("-1", "failed", sha1));
+        assertTrue(d1.isDone());
+        batcher.flush();
+        d1.await();
+        d2.await();
+        assertEquals(Delivery.Outcome.SUPERSEDED, d1.getOutcome());
+        assertEquals(Delivery.Outcome.SENT, d2.getOutcome());
+        verify(pool).execute(key, "gerrit approve --verified=-1 --message=\"failed\" " + sha1);
+        verifyNoMoreInteractions(pool);
+    }
+
+    @Test
+    public void voteGerritAlreadyHasIsNotSentAgain() throws IOException, InterruptedException {
+        batcher.setMaxDelay(0);
+        batcher.submit(verification("+1", "ok", sha1)).await();
+        Delivery again = batcher.submit(verification("+1", "ok", sha1));
+        assertTrue(again.isDone());
+        assertEquals(Delivery.Outcome.SKIPPED, again.getOutcome());
+        verify(pool, times(1)).execute(key, "gerrit approve --verified=+1 --message=\"ok\" " + sha1);
+    }
+
+    @Test
+    public void rebuildWithNewLinkIsSent() throws IOException, InterruptedException {
+        batcher.setMaxDelay(0);
+        batcher.submit(verification("+1", "ok ", sha1).withLink("http://hudson/job/a/1/")).await();
+        assertTrue(batcher.submit(verification("+1", "ok ", sha1).withLink("http://hudson/job/a/1/")).isDone());
+        batcher.submit(verification("+1", "ok ", sha1).withLink("http://hudson/job/a/2/")).await();
+        verify(pool, times(1)).execute(key, "gerrit approve --verified=+1 --message=\"ok http://hudson/job/a/1/\" " + sha1);
+        verify(pool, times(1)).execute(key, "gerrit approve --verified=+1 --message=\"ok http://hudson/job/a/2/\" " + sha1);
+    }
+
+    @Test
+    public void buildsVotingTogetherOnOneRevisionAreAllLinked() throws IOException, InterruptedException {
+        batcher.setMaxDelay(60 * 1000);
+        Delivery d1 = batcher.submit(verification("+1", "ok ", sha1).withLink("http://hudson/job/a/1/"));
+        Delivery d2 = batcher.submit(verification("+1", "ok ", sha1).withLink("http://hudson/job/b/7/"));
+        batcher.flush();
+        d1.await();
+        d2.await();
+        verify(pool).execute(key, "gerrit approve --verified=+1 --message=\"ok http://hudson/job/a/1/ "
+                + "http://hudson/job/b/7/\" " + sha1);
+    }
+
+    @Test
+    public void changedVoteIsSentAgain() throws IOException, InterruptedException {
+        batcher.setMaxDelay(0);
+        batcher.submit(verification("+1", "ok", sha1)).await();
+        batcher.submit(verification("-1", "failed", sha1)).await();
+        batcher.submit(verification("+1", "ok", sha1)).await();
+        verify(pool, times(2)).execute(key, "gerrit approve --verified=+1 --message=\"ok\" " + sha1);
+        verify(pool).execute(key, "gerrit approve --verified=-1 --message=\"failed\" " + sha1);
+    }
+
+    @Test
+    public void failedVoteIsSentAgain() throws IOException, InterruptedException {
+        doThrow(new IOException("Connection refused")).doNothing().when(pool).execute(eq(key), anyString());
+        batcher.setMaxDelay(0);
+        try {
+            batcher.submit(verification("+1", "ok", sha1)).await();
+            fail("Expected failure");
+        } catch (IOException expected) {
+            // ok
+        }
+        batcher.submit(verification("+1", "ok", sha1)).await();
+        verify(pool, times(2)).execute(key, "gerrit approve --verified=+1 --message=\"ok\" " + sha1);
+    }
+
+    @Test
+    public void rejectedBatchIsSentOneRevisionAtATime() throws IOException, InterruptedException {
+        doThrow(new SSHCommandException("rejected", 1, "fatal: change is closed"))
+                .when(pool).execute(eq(key), contains(sha2));
+        batcher.setMaxDelay(60 * 1000);
+        batcher.setMaxBatchSize(2);
+        Delivery d1 = batcher.submit(verification("+1", "ok", sha1));
+        Delivery d2 = batcher.submit(verification("+1", "ok", sha2));
+        d1.await();
+        try {
+            d2.await();
+            fail("Expected failure");
+        } catch (SSHCommandException expected) {
+            // ok
+        }
+        verify(pool).execute(key, "gerrit approve --verified=+1 --message=\"ok\" " + sha1 + " " + sha2);
+        verify(pool).execute(key, "gerrit approve --verified=+1 --message=\"ok\" " + sha1);
+        verify(pool).execute(key, "gerrit approve --verified=+1 --message=\"ok\" " + sha2);
+    }
+
+    @Test
+    public void rejectedReviewIsSentAgainWithoutComments() throws IOException, InterruptedException {
+        ReviewInput review = new ReviewInput("Build is unstable", "Verified", -1);
+        review.addFailure("a.TestA.one");
+        review.addComment("src/test/java/a/TestA.java", 12, "boom");
+        byte[] withComments = review.toJson().getBytes("UTF-8");
+        doThrow(new SSHCommandException("rejected", 1, "fatal: file not in patch set"))
+                .when(pool).execute(eq(key), eq("gerrit review --json " + sha1), aryEq(withComments));
+        batcher.setMaxDelay(0);
+        batcher.submit(verification("-1", "Build is unstable", sha1)
+                .withInput("gerrit review --json %3$s", review.toJson())).await();
+        verify(pool).execute(eq(key), eq("gerrit review --json " + sha1), aryEq(withComments));
+        verify(pool).execute(eq(key), eq("gerrit review --json " + sha1),
+                aryEq(ReviewInput.withoutComments(review.toJson()).getBytes("UTF-8")));
+        verifyNoMoreInteractions(pool);
+    }
+
+    @Test
+    public void votesOfDifferentBuildsShareOneCommand() throws IOException, InterruptedException {
+        batcher.setMaxDelay(60 * 1000);
+        batcher.setMaxBatchSize(2);
+        Delivery d1 = batcher.submit(verification("-1", "Build failed ", sha1).withLink("http://hudson/job/a/1/"));
+        Delivery d2 = batcher.submit(verification("-1", "Build failed ", sha2).withLink("http://hudson/job/b/7/"));
+        d1.await();
+        d2.await();
+        verify(pool).execute(key, "gerrit approve --verified=-1 --message=\"Build failed http://hudson/job/a/1/ "
+                + "http://hudson/job/b/7/\" " + sha1 + " " + sha2);
+        verifyNoMoreInteractions(pool);
+    }
+
+    @Test
+    public void fingerprintOfLongReviewIsShort() {
+        StringBuilder review = new StringBuilder();
+        for (int i = 0; i < 256 * 1024; i++) {
+            review.append('x');
+        }
+        Verification v = verification("+1", "ok", sha1).withInput("gerrit review --json %3$s", review.toString());
+        assertTrue(v.getFingerprint().length() < 200);
+        assertFalse(v.getFingerprint().equals(v.withLink("http://hudson/job/a/1/").getFingerprint()));
+        assertFalse(v.getFingerprint().equals(
+                v.withInput("gerrit review --json %3$s", review + "y").getFingerprint()));
+    }
+
+    @Test
+    public void voteSentWhileNewerOneIsQueuedIsNotRemembered() throws IOException, InterruptedException {
+        final String first = "gerrit approve --verified=+1 --message=\"ok\" " + sha1;
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) {
+                batcher.submit(verification("-1", "failed", sha1));
+                return null;
+            }
+        }).doNothing().when(pool).execute(key, first);
+        batcher.setMaxDelay(60 * 1000);
+        Delivery d1 = batcher.submit(verification("+1", "ok", sha1));
+        batcher.flush();
+        d1.await();
+        Delivery again = batcher.submit(verification("+1", "ok", sha1));
+        batcher.flush();
+        again.await();
+        verify(pool, times(2)).execute(key, first);
+    }
+
+    @Test
+    public void batchersShareTheScheduler() {
+        assertSame(SendScheduler.getInstance(), batcher.getScheduler());
+    }
+}
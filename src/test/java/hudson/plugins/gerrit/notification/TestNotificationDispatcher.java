@@ -0,0 +1,126 @@
+package hudson.plugins.gerrit.notification;
+
+import hudson.plugins.gerrit.ssh.SSHConnectionPool;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class TestNotificationDispatcher {
+
+    static final String sha1 = "1234567890123456789012345678901234567890";
+    static final String command = "gerrit approve --verified=+1 --message=\"ok\" " + sha1;
+
+    SSHConnectionPool pool;
+    SSHConnectionPool.Key key;
+    NotificationDispatcher dispatcher;
+    Outcome outcome;
+
+    /* Records what the dispatcher reports and lets the test wait for the final outcome. */
+    static class Outcome implements DeliveryListener {
+        final List<Integer> retries = Collections.synchronizedList(new LinkedList<Integer>());
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile boolean succeeded;
+        volatile Delivery.Outcome skipped;
+        volatile int attempts;
+        volatile IOException failure;
+
+        public void onRetry(Verification verification, int attempt, IOException failure) {
+            retries.add(attempt);
+        }
+
+        public void onSuccess(Verification verification, int attempts) {
+            this.succeeded = true;
+            this.attempts = attempts;
+            done.countDown();
+        }
+
+        public void onSkipped(Verification verification, Delivery.Outcome outcome) {
+            this.skipped = outcome;
+            done.countDown();
+        }
+
+        public void onFailure(Verification verification, int attempts, IOException failure) {
+            this.attempts = attempts;
+            this.failure = failure;
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("No outcome reported", done.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Before
+    public void init() {
+        pool = mock(SSHConnectionPool.class);
+        key = new SSHConnectionPool.Key("localhost", 29418, "user", new File("private_key_path"), "");
+        ApproveBatcher batcher = new ApproveBatcher(pool);
+        batcher.setMaxDelay(0);
+        dispatcher = new NotificationDispatcher(batcher);
+        dispatcher.setRetryDelay(1);
+        dispatcher.setMaxAttempts(3);
+        outcome = new Outcome();
+    }
+
+    Verification verification() {
+        return new Verification(key, "gerrit approve --verified=%s --message=\"%s\" %s", "+1", "ok", sha1);
+    }
+
+    @Test
+    public void queuedVerificationIsDelivered() throws IOException, InterruptedException {
+        dispatcher.dispatch(verification(), outcome);
+        outcome.await();
+        assertTrue(outcome.succeeded);
+        assertEquals(1, outcome.attempts);
+        assertTrue(outcome.retries.isEmpty());
+        verify(pool).execute(key, command);
+    }
+
+    @Test
+    public void duplicateIsReportedAsSkipped() throws IOException, InterruptedException {
+        dispatcher.dispatch(verification(), outcome);
+        outcome.await();
+        Outcome again = new Outcome();
+        dispatcher.dispatch(verification(), again);
+        again.await();
+        assertFalse(again.succeeded);
+        assertEquals(Delivery.Outcome.SKIPPED, again.skipped);
+        verify(pool, times(1)).execute(key, command);
+    }
+
+    @Test
+    public void transientFailureIsRetried() throws IOException, InterruptedException {
+        doThrow(new IOException("Connection refused")).doNothing().when(pool).execute(eq(key), anyString());
+        dispatcher.dispatch(verification(), outcome);
+        outcome.await();
+        assertTrue(outcome.succeeded);
+        assertEquals(2, outcome.attempts);
+        assertEquals(Collections.singletonList(1), outcome.retries);
+        assertNull(outcome.failure);
+    }
+
+    @Test
+    public void retriesStopAtLimit() throws IOException, InterruptedException {
+        doThrow(new IOException("Connection refused")).when(pool).execute(eq(key), anyString());
+        dispatcher.dispatch(verification(), outcome);
+        outcome.await();
+        assertEquals(3, outcome.attempts);
+        assertEquals("Connection refused", outcome.failure.getMessage());
+        assertEquals(2, outcome.retries.size());
+        verify(pool, times(3)).execute(key, command);
+    }
+}
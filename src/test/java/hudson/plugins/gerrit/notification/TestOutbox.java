@@ -0,0 +1,227 @@
+package hudson.plugins.gerrit.notification;
+
+import hudson.plugins.gerrit.ssh.SSHCommandException;
+import hudson.plugins.gerrit.ssh.SSHConnectionPool;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestOutbox {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    File file;
+    SSHConnectionPool.Key key;
+
+    @Before
+    public void init() {
+        file = new File(folder.newFolder("hudson"), Outbox.FILE_NAME);
+        key = new SSHConnectionPool.Key("localhost", 29418, "user", new File("private_key_path"), "secret");
+    }
+
+    Verification verification(String revision) {
+        return new Verification(key, "gerrit approve --verified=%s --message=\"%s\" %s", "1", "Build Successful",
+                revision, Verification.Priority.HIGH, "job");
+    }
+
+    @Test
+    public void pendingVerificationsSurviveReopening() throws IOException {
+        Outbox outbox = new Outbox(file);
+        long sent = outbox.append(verification("aaaa"));
+        long lost = outbox.append(verification("bbbb"));
+        outbox.settle(sent, null);
+        outbox.settle(lost, new IOException("Connection refused"));
+        outbox.close();
+
+        outbox = new Outbox(file);
+        Map<Long, Verification> pending = outbox.getPending();
+        assertEquals(1, pending.size());
+        Verification v = pending.get(lost);
+        assertEquals("bbbb", v.getRevision());
+        assertEquals("localhost", v.getConnection().getHost());
+        assertEquals(29418, v.getConnection().getPort());
+        assertEquals("user", v.getConnection().getUsername());
+        assertEquals(key.getPrivateKeyFile(), v.getConnection().getPrivateKeyFile());
+        assertEquals(Verification.Priority.HIGH, v.getPriority());
+        assertEquals("job", v.getSource());
+        assertEquals(verification("bbbb").toCommand(), v.toCommand());
+        assertTrue(outbox.append(verification("cccc")) > lost);
+    }
+
+    @Test
+    public void linkIsKeptApartFromMessage() throws IOException {
+        Outbox outbox = new Outbox(file);
+        long id = outbox.append(verification("aaaa").withLink("http://hudson/job/job/1/"));
+        outbox.close();
+
+        Verification v = new Outbox(file).getPending().get(id);
+        assertEquals("Build Successful", v.getMessageText());
+        assertEquals("http://hudson/job/job/1/", v.getLink());
+        assertEquals(verification("aaaa").getBatchKey(), v.withConnection(key).getBatchKey());
+    }
+
+    @Test
+    public void reviewInputSurvivesReopening() throws IOException {
+        Outbox outbox = new Outbox(file);
+        StringBuilder input = new StringBuilder("{\"message\":\"\u00e9");
+        for (int i = 0; i < 70000; i++) {
+            input.append('x');
+        }
+        input.append("\"}");
+        long id = outbox.append(verification("aaaa").withInput("gerrit review --json %3$s", input.toString()));
+        outbox.append(verification("bbbb"));
+        outbox.close();
+
+        outbox = new Outbox(file);
+        Verification v = outbox.getPending().get(id);
+        assertEquals(input.toString(), v.getInput());
+        assertEquals("gerrit review --json aaaa", v.toCommand());
+        assertEquals(null, outbox.getPending().get(id + 1).getInput());
+    }
+
+    @Test
+    public void passPhraseIsNotStored() throws IOException {
+        Outbox outbox = new Outbox(file);
+        outbox.append(verification("aaaa"));
+        outbox.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        byte[] journal = new byte[(int) raf.length()];
+        raf.readFully(journal);
+        raf.close();
+        assertFalse(new String(journal, "ISO-8859-1").contains("secret"));
+        assertEquals("", new Outbox(file).getPending().values().iterator().next().getConnection().getPassPhrase());
+    }
+
+    @Test
+    public void resentVerificationUsesResolvedKey() throws IOException {
+        Outbox outbox = new Outbox(file);
+        outbox.append(verification("aaaa"));
+        outbox.close();
+
+        final List<SSHConnectionPool.Key> used = new ArrayList<SSHConnectionPool.Key>();
+        ApproveBatcher batcher = new ApproveBatcher(new SSHConnectionPool() {
+            @Override
+            public void execute(Key connection, String command) {
+                used.add(connection);
+            }
+        }, SendScheduler.getInstance());
+        batcher.setMaxDelay(0);
+        outbox = new Outbox(file);
+        outbox.resend(batcher, new Outbox.KeyResolver() {
+            public SSHConnectionPool.Key resolve(Verification verification) {
+                return "job".equals(verification.getSource()) ? key : null;
+            }
+        });
+        assertEquals(1, used.size());
+        assertEquals("secret", used.get(0).getPassPhrase());
+        assertEquals(0, outbox.size());
+    }
+
+    @Test
+    public void unresolvedVerificationIsNotSentAndExpires() throws IOException {
+        Outbox outbox = new Outbox(file);
+        outbox.append(verification("aaaa"));
+        outbox.close();
+
+        final List<SSHConnectionPool.Key> used = new ArrayList<SSHConnectionPool.Key>();
+        ApproveBatcher batcher = new ApproveBatcher(new SSHConnectionPool() {
+            @Override
+            public void execute(Key connection, String command) {
+                used.add(connection);
+            }
+        }, SendScheduler.getInstance());
+        batcher.setMaxDelay(0);
+        Outbox.KeyResolver removed = new Outbox.KeyResolver() {
+            public SSHConnectionPool.Key resolve(Verification verification) {
+                return null;
+            }
+        };
+        outbox = new Outbox(file);
+        for (int i = 1; i < Outbox.MAX_UNRESOLVED_ATTEMPTS; i++) {
+            outbox.resend(batcher, removed);
+        }
+        assertEquals(1, outbox.size());
+        outbox.resend(batcher, removed);
+        assertEquals(0, outbox.size());
+        assertTrue(used.isEmpty());
+        outbox.close();
+        assertEquals(0, new Outbox(file).size());
+    }
+
+    @Test
+    public void rejectedVerificationIsDropped() throws IOException {
+        Outbox outbox = new Outbox(file);
+        long id = outbox.append(verification("aaaa"));
+        outbox.settle(id, new SSHCommandException("not permitted", 1, "fatal: not permitted"));
+        assertEquals(0, outbox.size());
+    }
+
+    @Test
+    public void timedOutVerificationIsKept() throws IOException {
+        Outbox outbox = new Outbox(file);
+        long id = outbox.append(verification("aaaa"));
+        outbox.settle(id, new SSHCommandException("timed out", null, null));
+        assertEquals(1, outbox.size());
+    }
+
+    @Test
+    public void fullJournalIsCompacted() throws IOException {
+        Outbox outbox = new Outbox(file);
+        long kept = outbox.append(verification("kept"));
+        for (int i = 0; i < 2000; i++) {
+            outbox.settle(outbox.append(verification("sha" + i)), null);
+        }
+        assertTrue(outbox.getPosition() < Outbox.INITIAL_CAPACITY);
+        assertEquals(Outbox.INITIAL_CAPACITY, file.length());
+        outbox.close();
+
+        outbox = new Outbox(file);
+        assertEquals(1, outbox.size());
+        assertEquals("kept", outbox.getPending().get(kept).getRevision());
+    }
+
+    @Test
+    public void tornRecordEndsJournal() throws IOException {
+        Outbox outbox = new Outbox(file);
+        outbox.append(verification("aaaa"));
+        int end = outbox.getPosition();
+        outbox.append(verification("bbbb"));
+        outbox.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(end + 20);
+        raf.write(0x55);
+        raf.close();
+
+        outbox = new Outbox(file);
+        assertEquals(1, outbox.size());
+        outbox.append(verification("cccc"));
+        outbox.close();
+        assertEquals(2, new Outbox(file).size());
+    }
+
+    @Test
+    public void emptyJournalIsCompactedOnResend() throws IOException {
+        Outbox outbox = new Outbox(file);
+        outbox.settle(outbox.append(verification("aaaa")), null);
+        assertTrue(outbox.getPosition() > 0);
+        outbox.resend(null, null);
+        assertEquals(0, outbox.getPosition());
+        outbox.close();
+        assertEquals(0, new Outbox(file).size());
+    }
+}
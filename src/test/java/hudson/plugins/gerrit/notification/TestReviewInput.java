@@ -0,0 +1,76 @@
+package hudson.plugins.gerrit.notification;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestReviewInput {
+
+    @Test
+    public void voteWithoutFailures() {
+        ReviewInput review = new ReviewInput("Build Successful", "Verified", 1);
+        assertEquals("{\"message\":\"Build Successful\",\"labels\":{\"Verified\":1}}", review.toJson());
+    }
+
+    @Test
+    public void commentsAreGroupedByFile() {
+        ReviewInput review = new ReviewInput("Build is unstable", "Verified", -1);
+        review.addFailure("a.TestA.one");
+        review.addComment("src/test/java/a/TestA.java", 12, "expected:<1> but was:<2>");
+        review.addComment("src/test/java/a/TestA.java", 20, "boom");
+        assertEquals("{\"message\":\"Build is unstable\\n\\n1 test failed:\\n* a.TestA.one\","
+                + "\"labels\":{\"Verified\":-1},"
+                + "\"comments\":{\"src/test/java/a/TestA.java\":["
+                + "{\"line\":12,\"message\":\"expected:<1> but was:<2>\"},"
+                + "{\"line\":20,\"message\":\"boom\"}]}}", review.toJson());
+    }
+
+    @Test
+    public void commentsCanBeLeftOut() {
+        ReviewInput review = new ReviewInput("Build is unstable \",\"comments\":{", "Verified", -1);
+        assertNull(ReviewInput.withoutComments(review.toJson()));
+        review.addComment("src/test/java/a/TestA.java", 12, "boom");
+        assertEquals("{\"message\":\"Build is unstable \\\",\\\"comments\\\":{\","
+                + "\"labels\":{\"Verified\":-1}}", ReviewInput.withoutComments(review.toJson()));
+    }
+
+    @Test
+    public void stringsAreEscaped() {
+        assertEquals("\"say \\\"hi\\\"\\\\\\n\\t\\u0001\"", ReviewInput.quote("say \"hi\"\\\n\t\u0001"));
+    }
+
+    @Test
+    public void thousandsOfFailuresStayWithinLimit() throws Exception {
+        int maxBytes = 64 * 1024;
+        ReviewInput review = new ReviewInput("Build is unstable", "Verified", -1, maxBytes);
+        StringBuilder details = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            details.append("\u00e9");
+        }
+        for (int i = 0; i < 5000; i++) {
+            review.addFailure("a.TestA.test" + i);
+            review.addComment("src/test/java/a/TestA" + (i % 50) + ".java", i, details.toString());
+        }
+        String json = review.toJson();
+        assertTrue(json.getBytes("UTF-8").length <= maxBytes);
+        assertEquals(5000, review.getFailures());
+        assertTrue(review.getOmittedComments() > 0);
+        assertEquals(5000, review.getCommentCount() + review.getOmittedComments());
+        assertTrue(review.getMessage().contains("... and " + (5000 - ReviewInput.MAX_LISTED_FAILURES) + " more"));
+        assertFalse(json.contains("test" + ReviewInput.MAX_LISTED_FAILURES + "\\n"));
+    }
+
+    @Test
+    public void longMessageIsCut() throws Exception {
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < ReviewInput.MESSAGE_BYTES; i++) {
+            message.append("\"");
+        }
+        String json = new ReviewInput(message.toString(), "Verified", 0).toJson();
+        assertTrue(json.getBytes("UTF-8").length < ReviewInput.MESSAGE_BYTES);
+        assertTrue(json.endsWith("...\",\"labels\":{\"Verified\":0}}"));
+    }
+}
@@ -0,0 +1,110 @@
+package hudson.plugins.gerrit.notification;
+
+import hudson.plugins.gerrit.ssh.SSHConnectionPool;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestSendScheduler {
+
+    SendScheduler scheduler;
+    SSHConnectionPool.Key key;
+    List<String> sent;
+
+    @Before
+    public void init() {
+        scheduler = new SendScheduler();
+        key = new SSHConnectionPool.Key("localhost", 29418, "user", new File("private_key_path"), "");
+        sent = Collections.synchronizedList(new ArrayList<String>());
+    }
+
+    Runnable record(final String name, final CountDownLatch done) {
+        return new Runnable() {
+            public void run() {
+                sent.add(name);
+                done.countDown();
+            }
+        };
+    }
+
+    /* Occupies the only slot of the host until released. */
+    CountDownLatch block() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                scheduler.submit(key, Verification.Priority.NORMAL, "blocker", new Runnable() {
+                    public void run() {
+                        started.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            // done
+                        }
+                    }
+                });
+            }
+        }.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        return release;
+    }
+
+    @Test
+    public void idleHostRunsInCallingThread() {
+        CountDownLatch done = new CountDownLatch(1);
+        scheduler.submit(key, Verification.Priority.NORMAL, "a", record("a1", done));
+        assertEquals(0, done.getCount());
+    }
+
+    @Test
+    public void waitingCommandsGoByPriorityThenTakeTurns() throws InterruptedException {
+        scheduler.setMaxConcurrent(1);
+        scheduler.setRate(0);
+        CountDownLatch release = block();
+        CountDownLatch done = new CountDownLatch(5);
+        scheduler.submit(key, Verification.Priority.NORMAL, "a", record("a1", done));
+        scheduler.submit(key, Verification.Priority.NORMAL, "a", record("a2", done));
+        scheduler.submit(key, Verification.Priority.NORMAL, "a", record("a3", done));
+        scheduler.submit(key, Verification.Priority.NORMAL, "b", record("b1", done));
+        scheduler.submit(key, Verification.Priority.HIGH, "c", record("c1", done));
+        assertEquals(5, scheduler.getQueued());
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("c1", "a1", "b1", "a2", "a3"), sent);
+    }
+
+    @Test
+    public void otherHostsAreNotHeldUp() throws InterruptedException {
+        scheduler.setMaxConcurrent(1);
+        CountDownLatch release = block();
+        CountDownLatch done = new CountDownLatch(1);
+        SSHConnectionPool.Key other = new SSHConnectionPool.Key("otherhost", 29418, "user", new File("private_key_path"), "");
+        scheduler.submit(other, Verification.Priority.NORMAL, "a", record("a1", done));
+        assertEquals(0, done.getCount());
+        release.countDown();
+    }
+
+    @Test
+    public void rateLimitSpreadsCommands() throws InterruptedException {
+        scheduler.setRate(4);
+        CountDownLatch done = new CountDownLatch(8);
+        long start = System.nanoTime();
+        for (int i = 0; i < 8; i++) {
+            scheduler.submit(key, Verification.Priority.NORMAL, "a", record("a" + i, done));
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("took " + elapsed + " ms", elapsed >= 750);
+    }
+}
@@ -0,0 +1,105 @@
+package hudson.plugins.gerrit.ssh;
+
+import com.sshtools.j2ssh.transport.publickey.InvalidSshKeyException;
+import com.sshtools.j2ssh.transport.publickey.SshPrivateKey;
+import com.sshtools.j2ssh.transport.publickey.SshPrivateKeyFile;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.*;
+
+public class TestPrivateKeyCache {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    File file;
+    PrivateKeyCache cache;
+    LinkedList<SshPrivateKeyFile> parsed;
+
+    @Before
+    public void init() throws IOException {
+        file = folder.newFile("id_rsa");
+        write("key");
+        parsed = new LinkedList<SshPrivateKeyFile>();
+        cache = new PrivateKeyCache() {
+            @Override
+            SshPrivateKeyFile parse(File f) throws IOException {
+                SshPrivateKeyFile keyFile = mock(SshPrivateKeyFile.class);
+                when(keyFile.toPrivateKey("secret")).thenReturn(mock(SshPrivateKey.class));
+                when(keyFile.toPrivateKey("other")).thenReturn(mock(SshPrivateKey.class));
+                when(keyFile.toPrivateKey("wrong")).thenThrow(new InvalidSshKeyException());
+                parsed.add(keyFile);
+                return keyFile;
+            }
+        };
+    }
+
+    void write(String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(content.getBytes("UTF-8"));
+        out.close();
+    }
+
+    @Test
+    public void keyIsParsedAndDecryptedOnce() throws IOException {
+        SshPrivateKey key = cache.getPrivateKey(file, "secret");
+        assertSame(key, cache.getPrivateKey(file, "secret"));
+        assertSame(parsed.getFirst(), cache.getKeyFile(file));
+        assertEquals(1, parsed.size());
+        verify(parsed.getFirst(), times(1)).toPrivateKey("secret");
+    }
+
+    @Test
+    public void changedModificationTimeRereadsFile() throws IOException {
+        SshPrivateKey key = cache.getPrivateKey(file, "secret");
+        file.setLastModified(file.lastModified() - 60 * 1000);
+        assertNotSame(key, cache.getPrivateKey(file, "secret"));
+        assertEquals(2, parsed.size());
+    }
+
+    @Test
+    public void changedSizeRereadsFile() throws IOException {
+        long modified = file.lastModified();
+        SshPrivateKey key = cache.getPrivateKey(file, "secret");
+        write("more");
+        file.setLastModified(modified);
+        assertNotSame(key, cache.getPrivateKey(file, "secret"));
+        assertEquals(2, parsed.size());
+    }
+
+    @Test
+    public void everyPassPhraseHasItsOwnEntry() throws IOException {
+        SshPrivateKey secret = cache.getPrivateKey(file, "secret");
+        SshPrivateKey other = cache.getPrivateKey(file, "other");
+        assertNotSame(secret, other);
+        assertSame(secret, cache.getPrivateKey(file, "secret"));
+        assertSame(other, cache.getPrivateKey(file, "other"));
+        assertEquals(1, parsed.size());
+    }
+
+    @Test
+    public void wrongPassPhraseFailsEveryTime() throws IOException {
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.getPrivateKey(file, "wrong");
+                fail("Expected failure");
+            } catch (InvalidSshKeyException expected) {
+                // ok
+            }
+        }
+        verify(parsed.getFirst(), times(2)).toPrivateKey("wrong");
+        cache.getPrivateKey(file, "secret");
+    }
+}
@@ -0,0 +1,257 @@
+package hudson.plugins.gerrit.ssh;
+
+import com.sshtools.j2ssh.SshClient;
+import com.sshtools.j2ssh.connection.ChannelOutputStream;
+import com.sshtools.j2ssh.connection.ChannelState;
+import com.sshtools.j2ssh.session.SessionChannelClient;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.*;
+
+public class TestSSHConnectionPool {
+
+    SSHConnectionPool pool;
+    SSHConnectionPool.Key key;
+    LinkedList<SSHMarker> created;
+
+    @Before
+    public void init() {
+        created = new LinkedList<SSHMarker>();
+        key = new SSHConnectionPool.Key("localhost", 29418, "user", new File("private_key_path"), "");
+        pool = new SSHConnectionPool() {
+            @Override
+            protected SSHMarker newMarker() {
+                SSHMarker marker = mock(SSHMarker.class);
+                when(marker.isConnected()).thenReturn(true);
+                created.add(marker);
+                return marker;
+            }
+        };
+    }
+
+    @Test
+    public void connectionIsReused() throws IOException, InterruptedException {
+        pool.execute(key, "first");
+        pool.execute(key, "second");
+        assertEquals(1, created.size());
+        SSHMarker marker = created.getFirst();
+        verify(marker, times(1)).connect("localhost", 29418);
+        verify(marker, times(1)).authenticate("user", new File("private_key_path"), "");
+        verify(marker).executeCommand("first");
+        verify(marker).executeCommand("second");
+        verify(marker, never()).disconnect();
+    }
+
+    @Test
+    public void differentKeysGetDifferentConnections() throws IOException, InterruptedException {
+        pool.execute(key, "first");
+        pool.execute(new SSHConnectionPool.Key("localhost", 29418, "other", new File("private_key_path"), ""), "second");
+        assertEquals(2, created.size());
+    }
+
+    @Test
+    public void deadConnectionIsReplaced() throws IOException, InterruptedException {
+        pool.execute(key, "first");
+        SSHMarker first = created.getFirst();
+        when(first.isConnected()).thenReturn(false);
+        pool.execute(key, "second");
+        assertEquals(2, created.size());
+        verify(first).disconnect();
+        verify(created.getLast()).executeCommand("second");
+    }
+
+    @Test
+    public void failedCommandOnReusedConnectionIsRetried() throws IOException, InterruptedException {
+        pool.execute(key, "first");
+        SSHMarker first = created.getFirst();
+        doThrow(new IOException("broken pipe")).when(first).executeCommand("second");
+        pool.execute(key, "second");
+        assertEquals(2, created.size());
+        verify(first).disconnect();
+        verify(created.getLast()).executeCommand("second");
+    }
+
+    @Test(expected = IOException.class)
+    public void failedCommandOnNewConnectionIsNotRetried() throws IOException, InterruptedException {
+        pool = new SSHConnectionPool() {
+            @Override
+            protected SSHMarker newMarker() {
+                SSHMarker marker = mock(SSHMarker.class);
+                try {
+                    doThrow(new IOException("refused")).when(marker).executeCommand(anyString());
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                created.add(marker);
+                return marker;
+            }
+        };
+        try {
+            pool.execute(key, "command");
+        } finally {
+            assertEquals(1, created.size());
+        }
+    }
+
+    @Test
+    public void idleConnectionsAreEvicted() throws IOException, InterruptedException {
+        pool.execute(key, "first");
+        pool.setIdleTimeout(-1);
+        pool.evictIdle();
+        verify(created.getFirst()).disconnect();
+        pool.setIdleTimeout(SSHConnectionPool.DEFAULT_IDLE_TIMEOUT);
+        pool.execute(key, "second");
+        assertEquals(2, created.size());
+    }
+
+    @Test
+    public void rejectedCommandKeepsConnection() throws IOException, InterruptedException {
+        pool.execute(key, "first");
+        SSHMarker first = created.getFirst();
+        doThrow(new SSHCommandException("not permitted", 1, "fatal: not permitted")).when(first).executeCommand("second");
+        try {
+            pool.execute(key, "second");
+            fail("Expected failure");
+        } catch (SSHCommandException expected) {
+            assertEquals(Integer.valueOf(1), expected.getExitCode());
+        }
+        pool.execute(key, "third");
+        assertEquals(1, created.size());
+        verify(first, never()).disconnect();
+    }
+
+    @Test
+    public void timedOutCommandClosesConnection() throws IOException, InterruptedException {
+        pool.execute(key, "first");
+        SSHMarker first = created.getFirst();
+        doThrow(new SSHCommandException("timed out", null, null)).when(first).executeCommand("second");
+        try {
+            pool.execute(key, "second");
+            fail("Expected failure");
+        } catch (SSHCommandException expected) {
+            assertTrue(expected.isTimeout());
+        }
+        verify(first).disconnect();
+        assertEquals(1, created.size());
+    }
+
+    @Test
+    public void concurrentCommandsShareConnection() throws IOException {
+        SSHMarker first = pool.borrow(key);
+        SSHMarker second = pool.borrow(key);
+        assertSame(first, second);
+        assertEquals(1, created.size());
+        verify(first, times(1)).authenticate("user", new File("private_key_path"), "");
+        pool.release(key, first);
+        pool.release(key, second);
+        assertEquals(1, pool.getConnectionCount(key));
+        verify(first, never()).disconnect();
+    }
+
+    @Test
+    public void busyConnectionIsNotShared() throws IOException {
+        pool.setMaxChannelsPerConnection(1);
+        SSHMarker first = pool.borrow(key);
+        SSHMarker second = pool.borrow(key);
+        assertNotSame(first, second);
+        verify(first).setMaxChannels(1);
+        pool.release(key, first);
+        pool.release(key, second);
+        assertEquals(2, pool.getConnectionCount(key));
+        assertSame(second, pool.borrow(key));
+    }
+
+    @Test
+    public void brokenSharedConnectionIsNotReused() throws IOException {
+        SSHMarker first = pool.borrow(key);
+        pool.borrow(key);
+        pool.invalidate(first);
+        assertEquals(0, pool.getConnectionCount(key));
+        pool.release(key, first);
+        assertEquals(0, pool.getConnectionCount(key));
+        assertNotSame(first, pool.borrow(key));
+        assertEquals(2, created.size());
+    }
+
+    @Test
+    public void interruptedCommandGivesConnectionBack() throws IOException, InterruptedException {
+        pool.setMaxChannelsPerConnection(1);
+        pool.execute(key, "first");
+        SSHMarker first = created.getFirst();
+        doThrow(new InterruptedException()).when(first).executeCommand("second");
+        try {
+            pool.execute(key, "second");
+            fail("Expected interruption");
+        } catch (InterruptedException expected) {
+            // ok
+        }
+        pool.execute(key, "third");
+        assertEquals(1, created.size());
+        verify(first).executeCommand("third");
+        verify(first, never()).disconnect();
+    }
+
+    @Test
+    public void unexpectedFailureClosesConnection() throws IOException, InterruptedException {
+        pool.execute(key, "first");
+        SSHMarker first = created.getFirst();
+        doThrow(new IllegalStateException("channel gone")).when(first).executeCommand("second");
+        try {
+            pool.execute(key, "second");
+            fail("Expected failure");
+        } catch (IllegalStateException expected) {
+            // ok
+        }
+        verify(first).disconnect();
+        assertEquals(0, pool.getConnectionCount(key));
+    }
+
+    @Test
+    public void inputIsWrittenToStdin() throws IOException, InterruptedException {
+        final SshClient client = mock(SshClient.class);
+        SessionChannelClient session = mock(SessionChannelClient.class);
+        ChannelOutputStream stdin = mock(ChannelOutputStream.class);
+        ChannelState state = mock(ChannelState.class);
+        when(client.isConnected()).thenReturn(true);
+        when(client.openSessionChannel()).thenReturn(session);
+        when(session.executeCommand("gerrit review --json")).thenReturn(true);
+        when(session.getOutputStream()).thenReturn(stdin);
+        when(session.getState()).thenReturn(state);
+        when(state.waitForState(eq(ChannelState.CHANNEL_CLOSED), anyInt())).thenReturn(true);
+        when(session.getExitCode()).thenReturn(0);
+        pool = new SSHConnectionPool() {
+            @Override
+            protected SSHMarker newMarker() {
+                return new SSHMarker() {
+                    @Override
+                    protected SshClient newClient() {
+                        return client;
+                    }
+
+                    @Override
+                    public void authenticate(String username, File private_key_file, String passPhrase) {
+                    }
+                };
+            }
+        };
+        byte[] input = "{\"message\":\"Build successful\"}".getBytes("UTF-8");
+
+        pool.execute(key, "gerrit review --json", input);
+
+        InOrder order = inOrder(stdin, session);
+        order.verify(stdin).write(input);
+        order.verify(stdin).flush();
+        order.verify(session).setLocalEOF();
+    }
+}
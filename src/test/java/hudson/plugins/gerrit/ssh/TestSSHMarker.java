@@ -0,0 +1,76 @@
+package hudson.plugins.gerrit.ssh;
+
+import com.sshtools.j2ssh.SshClient;
+import com.sshtools.j2ssh.connection.ChannelState;
+import com.sshtools.j2ssh.session.SessionChannelClient;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.*;
+
+public class TestSSHMarker {
+
+    SSHMarker marker;
+    CountDownLatch started;
+    CountDownLatch finish;
+
+    @Before
+    public void init() throws IOException, InterruptedException {
+        started = new CountDownLatch(1);
+        finish = new CountDownLatch(1);
+        final SshClient client = mock(SshClient.class);
+        SessionChannelClient session = mock(SessionChannelClient.class);
+        ChannelState state = mock(ChannelState.class);
+        when(client.openSessionChannel()).thenReturn(session);
+        when(session.executeCommand(anyString())).thenReturn(true);
+        when(session.getState()).thenReturn(state);
+        when(session.getExitCode()).thenReturn(0);
+        when(state.waitForState(eq(ChannelState.CHANNEL_CLOSED), anyInt())).thenAnswer(new Answer<Boolean>() {
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                started.countDown();
+                finish.await();
+                return true;
+            }
+        });
+        marker = new SSHMarker() {
+            @Override
+            protected SshClient newClient() {
+                return client;
+            }
+        };
+        marker.connect("localhost", 29418);
+    }
+
+    @Test
+    public void runningCommandIsCountedAcrossReconfiguration() throws Exception {
+        Thread command = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    marker.executeCommand("gerrit version");
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        command.start();
+        started.await();
+        assertEquals(1, marker.getActiveChannels());
+
+        marker.setMaxChannels(1);
+        assertEquals(1, marker.getActiveChannels());
+        marker.setMaxChannels(8);
+        assertEquals(1, marker.getActiveChannels());
+
+        finish.countDown();
+        command.join();
+        assertEquals(0, marker.getActiveChannels());
+        assertEquals(8, marker.getMaxChannels());
+    }
+}
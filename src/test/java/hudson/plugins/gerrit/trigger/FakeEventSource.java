@@ -0,0 +1,59 @@
+package hudson.plugins.gerrit.trigger;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local stand-in for gerrit stream-events. Every queued session is served by one call to
+ * open, which blocks until a session is queued.
+ */
+public class FakeEventSource implements EventSource {
+
+    private static final String FAILURE = "\u0000failure";
+
+    private final BlockingQueue<String> sessions = new LinkedBlockingQueue<String>();
+    private final AtomicInteger opened = new AtomicInteger();
+
+    /**
+     * Queues a session that sends the given lines and then ends.
+     */
+    public void session(String... lines) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines) {
+            sb.append(line).append('\n');
+        }
+        sessions.add(sb.toString());
+    }
+
+    /**
+     * Queues a connection attempt that fails.
+     */
+    public void failure() {
+        sessions.add(FAILURE);
+    }
+
+    public int getOpened() {
+        return opened.get();
+    }
+
+    public Reader open() throws IOException, InterruptedException {
+        String session = sessions.take();
+        opened.incrementAndGet();
+        if (session == FAILURE) {
+            throw new IOException("Connection refused");
+        }
+        return new StringReader(session);
+    }
+
+    static String patchsetCreated(String project, String branch, int change, int patchSet, String revision) {
+        return "{\"type\":\"patchset-created\",\"change\":{\"project\":\"" + project + "\",\"branch\":\"" + branch
+                + "\",\"id\":\"I0123\",\"number\":\"" + change + "\",\"subject\":\"Fix it\""
+                + ",\"url\":\"http://gerrit/" + change + "\"},\"patchSet\":{\"number\":\"" + patchSet
+                + "\",\"revision\":\"" + revision + "\",\"ref\":\"refs/changes/"
+                + String.format("%02d", change % 100) + "/" + change + "/" + patchSet + "\"}}";
+    }
+}
@@ -0,0 +1,58 @@
+package hudson.plugins.gerrit.trigger;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestEventParser {
+
+    static final String REVISION = "2d5c3b0e7a9c2a0e3f7d6a3d9b1c0e4f5a6b7c8d";
+
+    @Test
+    public void parsesPatchsetCreated() {
+        PatchsetCreated event = EventParser.parse(FakeEventSource.patchsetCreated("tools", "master", 1234, 3, REVISION));
+        assertEquals("tools", event.getProject());
+        assertEquals("master", event.getBranch());
+        assertEquals("1234", event.getChangeNumber());
+        assertEquals("http://gerrit/1234", event.getChangeUrl());
+        assertEquals("3", event.getPatchSetNumber());
+        assertEquals(REVISION, event.getRevision());
+        assertEquals("refs/changes/34/1234/3", event.getRef());
+    }
+
+    @Test
+    public void ignoresOtherEvents() {
+        assertNull(EventParser.parse("{\"type\":\"comment-added\",\"comment\":\"patchset-created\"}"));
+        assertNull(EventParser.parse("{\"type\":\"change-merged\",\"change\":{},\"patchSet\":{\"revision\":\"" + REVISION + "\"}}"));
+    }
+
+    @Test
+    public void ignoresMalformedLines() {
+        assertNull(EventParser.parse(""));
+        assertNull(EventParser.parse("{\"type\":\"patchset-created\",\"change\":"));
+        assertNull(EventParser.parse("{\"type\":\"patchset-created\",\"change\":{\"project\":\"tools\"}}"));
+    }
+
+    @Test
+    public void readsEventsLineByLine() throws IOException {
+        String stream = FakeEventSource.patchsetCreated("tools", "master", 1, 1, REVISION) + "\n"
+                + "{\"type\":\"comment-added\"}\n"
+                + "garbage\n"
+                + FakeEventSource.patchsetCreated("tools", "stable", 2, 5, REVISION);
+        final List<PatchsetCreated> events = new ArrayList<PatchsetCreated>();
+        EventParser.parse(new StringReader(stream), new EventParser.Handler() {
+            public void patchsetCreated(PatchsetCreated event) {
+                events.add(event);
+            }
+        });
+        assertEquals(2, events.size());
+        assertEquals("1", events.get(0).getChangeNumber());
+        assertEquals("stable", events.get(1).getBranch());
+    }
+}
@@ -0,0 +1,85 @@
+package hudson.plugins.gerrit.trigger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class TestEventStream {
+
+    FakeEventSource source;
+    EventStream stream;
+    BlockingQueue<PatchsetCreated> events;
+
+    @Before
+    public void init() {
+        source = new FakeEventSource();
+        stream = new EventStream(source);
+        stream.setMinReconnectDelay(10);
+        events = new LinkedBlockingQueue<PatchsetCreated>();
+        stream.addHandler(new EventParser.Handler() {
+            public void patchsetCreated(PatchsetCreated event) {
+                events.add(event);
+            }
+        });
+    }
+
+    @After
+    public void close() throws InterruptedException {
+        stream.stop();
+    }
+
+    PatchsetCreated next() throws InterruptedException {
+        return events.poll(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void deliversEvents() throws InterruptedException {
+        source.session(FakeEventSource.patchsetCreated("tools", "master", 1, 1, TestEventParser.REVISION),
+                FakeEventSource.patchsetCreated("tools", "master", 1, 2, TestEventParser.REVISION));
+        stream.start();
+        assertEquals("1", next().getPatchSetNumber());
+        assertEquals("2", next().getPatchSetNumber());
+    }
+
+    @Test
+    public void reconnectsAfterStreamEndsOrFails() throws InterruptedException {
+        source.session(FakeEventSource.patchsetCreated("tools", "master", 1, 1, TestEventParser.REVISION));
+        source.failure();
+        source.session(FakeEventSource.patchsetCreated("tools", "master", 2, 1, TestEventParser.REVISION));
+        stream.start();
+        assertEquals("1", next().getChangeNumber());
+        assertEquals("2", next().getChangeNumber());
+        assertEquals(3, source.getOpened());
+    }
+
+    @Test
+    public void failingHandlerDoesNotStopOthers() throws InterruptedException {
+        stream.addHandler(new EventParser.Handler() {
+            public void patchsetCreated(PatchsetCreated event) {
+                throw new IllegalStateException("broken job");
+            }
+        });
+        source.session(FakeEventSource.patchsetCreated("tools", "master", 1, 1, TestEventParser.REVISION),
+                FakeEventSource.patchsetCreated("tools", "master", 2, 1, TestEventParser.REVISION));
+        stream.start();
+        assertEquals("1", next().getChangeNumber());
+        assertEquals("2", next().getChangeNumber());
+    }
+
+    @Test
+    public void stopEndsTheStream() throws InterruptedException {
+        stream.start();
+        stream.stop();
+        assertFalse(stream.isRunning());
+        source.session(FakeEventSource.patchsetCreated("tools", "master", 1, 1, TestEventParser.REVISION));
+        assertNull(events.poll(100, TimeUnit.MILLISECONDS));
+    }
+}